@@ -0,0 +1,254 @@
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides at accept time whether a new connection gets a session. The
+ * server has one session capacity shared by its protocols, of which each
+ * protocol has a reserved part no other protocol can take: a flood of SMTP
+ * connections can use the unreserved headroom but never the places kept
+ * for POP3 and IMAP, while a protocol that is quiet leaves its headroom to
+ * the others. Each source address is also limited in open sessions and in
+ * new connections per second. A connection that is not admitted gets the
+ * protocol's "busy" reply and is closed right away, instead of waiting in
+ * a queue for a greeting that may come minutes later.
+ */
+public class AdmissionControl {
+
+    // A source may open this many seconds' worth of connections at once
+    private static final double BURST_SECONDS = 2.0;
+    // Addresses without sessions are forgotten after this long
+    private static final long SOURCE_IDLE_NANOS = 60_000_000_000L;
+    private static final int SWEEP_EVERY = 1024;
+
+    /** An admitted connection; release it once when the connection is gone. */
+    public static final class Ticket {
+        private final Gate gate;
+        private final InetAddress source;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Ticket(Gate gate, InetAddress source) {
+            this.gate = gate;
+            this.source = source;
+        }
+    }
+
+    /** Sessions of one protocol; active only changes under the lock. */
+    private static final class Gate {
+        final int reserved;
+        volatile int active;
+        final LongAdder admitted = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+
+        Gate(int reserved) {
+            this.reserved = reserved;
+        }
+    }
+
+    /** Sessions and connection budget of one address; only touched inside sources.compute. */
+    private static final class Source {
+        int active;
+        double tokens;
+        long refilled;
+
+        Source(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilled = now;
+        }
+    }
+
+    private final String domain;
+    private final Map<String, Gate> gates = new HashMap<>();
+    private final int capacity;
+    // What is left of the capacity once every reservation is taken out
+    private final int sharedCapacity;
+    private final Lock lock = new ReentrantLock();
+    // Sessions beyond their protocol's reservation, across protocols
+    private int sharedActive = 0;
+    private final int maxSessionsPerSource;
+    private final double connectionsPerSecond;
+    private final ConcurrentHashMap<InetAddress, Source> sources = new ConcurrentHashMap<>();
+    private final AtomicInteger untilSweep = new AtomicInteger(SWEEP_EVERY);
+
+    /**
+     * @param domain               this server's domain, for the SMTP reply
+     * @param capacity             sessions the server may have at once
+     *                             (running or waiting for a thread)
+     * @param reserved             part of the capacity kept for each
+     *                             protocol; together at most capacity
+     * @param maxSessionsPerSource sessions one address may have open at
+     *                             once, across protocols; 0 for no limit
+     * @param connectionsPerSecond new connections one address may open per
+     *                             second, in bursts of twice that; 0 for
+     *                             no limit
+     */
+    public AdmissionControl(String domain, int capacity, Map<String, Integer> reserved,
+                            int maxSessionsPerSource, double connectionsPerSecond) {
+        this.domain = domain;
+        int totalReserved = 0;
+        for (Map.Entry<String, Integer> e : reserved.entrySet()) {
+            gates.put(e.getKey(), new Gate(e.getValue()));
+            totalReserved += e.getValue();
+        }
+        if (totalReserved > capacity) {
+            throw new IllegalArgumentException("Reservations exceed the capacity of " + capacity);
+        }
+        this.capacity = capacity;
+        this.sharedCapacity = capacity - totalReserved;
+        this.maxSessionsPerSource = maxSessionsPerSource;
+        this.connectionsPerSecond = connectionsPerSecond;
+    }
+
+    /** Admit a connection from an address, or return null if it must be turned away. */
+    public Ticket tryAdmit(String protocolName, InetAddress source) {
+        Gate gate = gates.get(protocolName);
+        if (!admitSource(source)) {
+            gate.rejected.increment();
+            return null;
+        }
+        if (!acquire(gate)) {
+            releaseSource(source);
+            gate.rejected.increment();
+            return null;
+        }
+        gate.admitted.increment();
+        return new Ticket(gate, source);
+    }
+
+    /** Give back a ticket's place; later calls do nothing. */
+    public void release(Ticket ticket) {
+        if (ticket.released.compareAndSet(false, true)) {
+            Gate gate = ticket.gate;
+            lock.lock();
+            try {
+                // The last session in is the one counted as borrowed
+                if (gate.active > gate.reserved) {
+                    sharedActive--;
+                }
+                gate.active--;
+            } finally {
+                lock.unlock();
+            }
+            releaseSource(ticket.source);
+        }
+    }
+
+    /** A place within the gate's reservation if one is free, else from the shared headroom. */
+    private boolean acquire(Gate gate) {
+        lock.lock();
+        try {
+            if (gate.active < gate.reserved) {
+                gate.active++;
+                return true;
+            }
+            if (sharedActive < sharedCapacity) {
+                sharedActive++;
+                gate.active++;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * What a turned-away client reads before the connection closes: the
+     * protocol's reply for a server that cannot take it now.
+     */
+    public byte[] rejection(String protocolName) {
+        String reply;
+        if ("SMTP".equals(protocolName)) {
+            reply = "421 " + domain + " Service not available, closing transmission channel";
+        } else if ("POP3".equals(protocolName)) {
+            reply = "-ERR Server busy, try again later";
+        } else {
+            reply = "* BYE Server busy, try again later";
+        }
+        return (reply + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public int getActive(String protocolName) {
+        return gates.get(protocolName).active;
+    }
+
+    /** Sessions kept for a protocol whatever the others do. */
+    public int getReserved(String protocolName) {
+        return gates.get(protocolName).reserved;
+    }
+
+    /** Sessions a protocol may reach when the others leave it all the headroom. */
+    public int getCapacity(String protocolName) {
+        return gates.get(protocolName).reserved + sharedCapacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getAdmitted(String protocolName) {
+        return gates.get(protocolName).admitted.sum();
+    }
+
+    public long getRejected(String protocolName) {
+        return gates.get(protocolName).rejected.sum();
+    }
+
+    private boolean admitSource(InetAddress address) {
+        if (maxSessionsPerSource <= 0 && connectionsPerSecond <= 0) {
+            return true;
+        }
+        if (untilSweep.decrementAndGet() <= 0) {
+            untilSweep.set(SWEEP_EVERY);
+            sweep();
+        }
+        long now = System.nanoTime();
+        boolean[] admitted = new boolean[1];
+        sources.compute(address, (a, s) -> {
+            double burst = BURST_SECONDS * connectionsPerSecond;
+            if (s == null) {
+                s = new Source(burst, now);
+            } else {
+                double refill = (now - s.refilled) / 1e9 * connectionsPerSecond;
+                s.tokens = Math.min(burst, s.tokens + refill);
+                s.refilled = now;
+            }
+            boolean underSessions = maxSessionsPerSource <= 0 || s.active < maxSessionsPerSource;
+            boolean underRate = connectionsPerSecond <= 0 || s.tokens >= 1;
+            if (underSessions && underRate) {
+                if (connectionsPerSecond > 0) {
+                    s.tokens--;
+                }
+                s.active++;
+                admitted[0] = true;
+            }
+            return s;
+        });
+        return admitted[0];
+    }
+
+    private void releaseSource(InetAddress address) {
+        if (maxSessionsPerSource > 0 || connectionsPerSecond > 0) {
+            sources.computeIfPresent(address, (a, s) -> {
+                s.active--;
+                return s;
+            });
+        }
+    }
+
+    /** Forget addresses that have had no session for a while. */
+    private void sweep() {
+        long now = System.nanoTime();
+        for (InetAddress address : sources.keySet()) {
+            sources.computeIfPresent(address,
+                    (a, s) -> s.active <= 0 && now - s.refilled > SOURCE_IDLE_NANOS ? null : s);
+        }
+    }
+}
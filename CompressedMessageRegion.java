@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A stored message kept DEFLATE-compressed (see MessageCompression),
+ * presented as its wire form: the compressed range of the file is inflated
+ * a buffer at a time as the region is sent or read, so a large message is
+ * never decompressed whole into memory. The count is that of the wire form.
+ */
+public class CompressedMessageRegion extends MessageRegion {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final FileChannel channel;
+    private final long position;
+    private final long storedCount;
+    private final long count;
+    private final Inflater inflater = new Inflater();
+    private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+    // Inflated bytes not sent yet, in read mode
+    private final ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+    // Compressed bytes read from the file so far
+    private long consumed = 0;
+    // Inflated bytes still to be dropped before the region starts (narrow)
+    private long skip;
+    private long transferred = 0;
+
+    /**
+     * @param position    where the compressed bytes start in the file
+     * @param storedCount number of compressed bytes
+     * @param count       size of the wire form they inflate to
+     */
+    public CompressedMessageRegion(FileChannel channel, long position, long storedCount, long count) {
+        this(channel, position, storedCount, 0, count);
+    }
+
+    private CompressedMessageRegion(FileChannel channel, long position, long storedCount, long skip, long count) {
+        super(channel, position, count);
+        this.channel = channel;
+        this.position = position;
+        this.storedCount = storedCount;
+        this.skip = skip;
+        this.count = count;
+        output.limit(0);
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean isDone() {
+        return transferred >= count;
+    }
+
+    /**
+     * Send inflated bytes until the target accepts no more or one buffer
+     * has gone out. Returns the number of bytes sent by this call.
+     */
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if (isDone()) {
+            return 0;
+        }
+        if (!output.hasRemaining()) {
+            fill();
+        }
+        int limit = output.limit();
+        output.limit(output.position() + (int) Math.min(output.remaining(), count - transferred));
+        int n;
+        try {
+            n = target.write(output);
+        } finally {
+            output.limit(limit);
+        }
+        transferred += n;
+        return n;
+    }
+
+    /**
+     * The sub-range [offset, offset + length) of this region, clipped to
+     * it: the bytes before it are inflated and dropped. Call it before
+     * anything is read; the new region takes over the file.
+     */
+    @Override
+    public MessageRegion narrow(long offset, long length) {
+        long start = Math.min(offset, count);
+        inflater.end();
+        return new CompressedMessageRegion(channel, position, storedCount, skip + start,
+                Math.min(length, count - start));
+    }
+
+    @Override
+    public InputStream newInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return n < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (isDone()) {
+                    return -1;
+                }
+                if (!output.hasRemaining()) {
+                    fill();
+                }
+                int n = (int) Math.min(len, Math.min(output.remaining(), count - transferred));
+                output.get(b, off, n);
+                transferred += n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                CompressedMessageRegion.this.close();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        super.close();
+    }
+
+    /** Inflate the next bytes of the region into output (left in read mode). */
+    private void fill() throws IOException {
+        do {
+            output.clear();
+            try {
+                while (output.position() == 0) {
+                    if (inflater.finished()) {
+                        throw new IOException("Compressed message shorter than its size");
+                    }
+                    if (inflater.needsInput()) {
+                        readInput();
+                    }
+                    if (inflater.inflate(output) == 0 && inflater.needsDictionary()) {
+                        throw new IOException("Corrupt compressed message: preset dictionary");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed message: " + e.getMessage());
+            }
+            output.flip();
+            int dropped = (int) Math.min(skip, output.remaining());
+            output.position(dropped);
+            skip -= dropped;
+        } while (!output.hasRemaining());
+    }
+
+    private void readInput() throws IOException {
+        input.clear();
+        input.limit((int) Math.min(input.capacity(), storedCount - consumed));
+        if (!input.hasRemaining()) {
+            throw new IOException("Compressed message truncated");
+        }
+        int n = channel.read(input, position + consumed);
+        if (n < 0) {
+            throw new IOException("Message file truncated");
+        }
+        consumed += n;
+        input.flip();
+        inflater.setInput(input);
+    }
+}
@@ -1,3 +1,500 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Minimal DNS stub resolver for outbound delivery: asks one recursive
+ * nameserver for MX, A and AAAA records over UDP (TCP when the reply is
+ * truncated), in process instead of forking dig for every message.
+ *
+ * Answers are cached for their TTL, and "no such name / no such record"
+ * answers for the SOA negative TTL (RFC 2308). Concurrent lookups of the
+ * same name and type share one query.
+ */
 public class DNSResolver {
-    
+
+    static final int TYPE_A = 1;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_MX = 15;
+    static final int TYPE_AAAA = 28;
+    private static final int CLASS_IN = 1;
+
+    private static final int RCODE_OK = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    private static final int DNS_PORT = 53;
+    private static final int UDP_TIMEOUT_MILLIS = 2000;
+    private static final int UDP_ATTEMPTS = 3;
+    private static final int TCP_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_UDP_PAYLOAD = 512;
+
+    // Negative answers without an SOA are kept this long
+    private static final long DEFAULT_NEGATIVE_TTL = 300;
+    // Upper bound on how long anything is cached, whatever the TTL says
+    private static final long MAX_TTL = 24 * 60 * 60;
+    private static final int MAX_CACHE_ENTRIES = 10_000;
+
+    // Queries sent to the nameserver, as opposed to answered from the cache
+    private static final Histogram LOOKUP_TIME = Metrics.histogram("dns_lookup_seconds");
+    private static final LongAdder LOOKUP_FAILURES = Metrics.counter("dns_lookup_failures_total");
+    private static final LongAdder CACHE_HITS = Metrics.counter("dns_cache_hits_total");
+    private static final LongAdder CACHE_MISSES = Metrics.counter("dns_cache_misses_total");
+
+    private final InetSocketAddress nameserver;
+    private final Map<String, Answer> cache = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Answer>> inFlight = new ConcurrentHashMap<>();
+
+    public DNSResolver(InetSocketAddress nameserver) {
+        this.nameserver = nameserver;
+    }
+
+    /**
+     * Resolver using the first nameserver of /etc/resolv.conf, or the
+     * loopback address if there is none.
+     */
+    public static DNSResolver systemDefault() {
+        Path conf = Paths.get("/etc/resolv.conf");
+        if (Files.isReadable(conf)) {
+            try (BufferedReader reader = Files.newBufferedReader(conf, StandardCharsets.ISO_8859_1)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.trim().split("\\s+");
+                    if (parts.length >= 2 && "nameserver".equals(parts[0])) {
+                        return new DNSResolver(new InetSocketAddress(
+                                InetAddress.getByName(parts[1]), DNS_PORT));
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return new DNSResolver(new InetSocketAddress(InetAddress.getLoopbackAddress(), DNS_PORT));
+    }
+
+    /** Parse "host" or "host:port" (the port defaults to 53). */
+    public static DNSResolver forNameserver(String spec) throws IOException {
+        int colon = spec.lastIndexOf(':');
+        if (colon > 0 && spec.indexOf(':') == colon) {
+            return new DNSResolver(new InetSocketAddress(InetAddress.getByName(spec.substring(0, colon)),
+                    Integer.parseInt(spec.substring(colon + 1))));
+        }
+        return new DNSResolver(new InetSocketAddress(InetAddress.getByName(spec), DNS_PORT));
+    }
+
+    /**
+     * The hosts accepting mail for a domain, most preferred first. A domain
+     * without MX records that has an address is its own mail host (RFC 5321
+     * 5.1). Empty if the domain does not exist, has no address, or
+     * publishes a null MX (RFC 7505).
+     *
+     * Throws if the nameserver could not give an answer.
+     */
+    public List<String> lookupMx(String domain) throws IOException {
+        Answer answer = query(domain, TYPE_MX);
+        if (answer.rcode == RCODE_NXDOMAIN) {
+            return Collections.emptyList();
+        }
+        List<Record> mx = new ArrayList<>();
+        for (Record r : answer.records) {
+            if (r.type == TYPE_MX) {
+                mx.add(r);
+            }
+        }
+        if (mx.isEmpty()) {
+            return lookupAddresses(domain).isEmpty()
+                    ? Collections.emptyList()
+                    : Collections.singletonList(domain);
+        }
+        // Stable sort: equal preferences keep the nameserver's order
+        mx.sort(Comparator.comparingInt(r -> r.preference));
+        List<String> hosts = new ArrayList<>();
+        for (Record r : mx) {
+            if (r.host.isEmpty()) {
+                // Null MX: the domain accepts no mail at all
+                return Collections.emptyList();
+            }
+            hosts.add(r.host);
+        }
+        return hosts;
+    }
+
+    /** IPv4 then IPv6 addresses of a host; empty if it has none. */
+    public List<InetAddress> lookupAddresses(String host) throws IOException {
+        List<InetAddress> addresses = new ArrayList<>();
+        IOException failure = null;
+        for (int type : new int[] {TYPE_A, TYPE_AAAA}) {
+            try {
+                for (Record r : query(host, type).records) {
+                    if (r.type == type) {
+                        addresses.add(r.address);
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (addresses.isEmpty() && failure != null) {
+            throw failure;
+        }
+        return addresses;
+    }
+
+    /**
+     * Cached answer for a name and type, querying the nameserver when
+     * there is none. Only one query per name and type is outstanding; other
+     * callers wait for its result.
+     */
+    private Answer query(String name, int type) throws IOException {
+        String key = type + ":" + name.toLowerCase(Locale.ROOT);
+        long now = System.currentTimeMillis();
+        Answer cached = cache.get(key);
+        if (cached != null && cached.expiresAt > now) {
+            CACHE_HITS.increment();
+            return cached;
+        }
+        CACHE_MISSES.increment();
+
+        CompletableFuture<Answer> mine = new CompletableFuture<>();
+        CompletableFuture<Answer> pending = inFlight.putIfAbsent(key, mine);
+        if (pending != null) {
+            try {
+                return pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted resolving " + name);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException
+                        ? (IOException) cause
+                        : new IOException("Failed to resolve " + name, cause);
+            }
+        }
+
+        long start = System.nanoTime();
+        try {
+            Answer answer = exchange(name, type);
+            LOOKUP_TIME.recordSince(start);
+            remember(key, answer);
+            mine.complete(answer);
+            return answer;
+        } catch (IOException | RuntimeException e) {
+            LOOKUP_FAILURES.increment();
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private void remember(String key, Answer answer) {
+        if (answer.expiresAt <= System.currentTimeMillis()) {
+            return;
+        }
+        if (cache.size() >= MAX_CACHE_ENTRIES) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Answer> it = cache.values().iterator(); it.hasNext(); ) {
+                if (it.next().expiresAt <= now) {
+                    it.remove();
+                }
+            }
+            if (cache.size() >= MAX_CACHE_ENTRIES) {
+                cache.clear();
+            }
+        }
+        cache.put(key, answer);
+    }
+
+    /** Send one query and parse the reply; UDP first, TCP if truncated. */
+    private Answer exchange(String name, int type) throws IOException {
+        int id = ThreadLocalRandom.current().nextInt(0x10000);
+        byte[] query = buildQuery(id, name, type);
+
+        byte[] reply = null;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(UDP_TIMEOUT_MILLIS);
+            socket.connect(nameserver);
+            byte[] buf = new byte[MAX_UDP_PAYLOAD];
+            for (int attempt = 0; attempt < UDP_ATTEMPTS && reply == null; attempt++) {
+                socket.send(new DatagramPacket(query, query.length));
+                try {
+                    // Skip stray datagrams that do not answer this query
+                    while (reply == null) {
+                        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                        socket.receive(packet);
+                        if (packet.getLength() >= 12 && readShort(buf, 0) == id) {
+                            reply = Arrays.copyOf(buf, packet.getLength());
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    // retry
+                }
+            }
+        }
+        if (reply == null) {
+            throw new IOException("No answer from nameserver " + nameserver + " for " + name);
+        }
+        if ((reply[2] & 0x02) != 0) {
+            reply = exchangeTcp(query, id);
+        }
+        return parse(reply, name, type);
+    }
+
+    private byte[] exchangeTcp(byte[] query, int id) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(nameserver, TCP_TIMEOUT_MILLIS);
+            socket.setSoTimeout(TCP_TIMEOUT_MILLIS);
+            OutputStream out = socket.getOutputStream();
+            byte[] framed = new byte[query.length + 2];
+            framed[0] = (byte) (query.length >>> 8);
+            framed[1] = (byte) query.length;
+            System.arraycopy(query, 0, framed, 2, query.length);
+            out.write(framed);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] reply = new byte[in.readUnsignedShort()];
+            in.readFully(reply);
+            if (reply.length < 12 || readShort(reply, 0) != id) {
+                throw new IOException("Mismatched TCP answer from nameserver " + nameserver);
+            }
+            return reply;
+        }
+    }
+
+    /**
+     * Whether a name can be looked up: ASCII labels of 1 to 63 characters,
+     * 253 characters at most in all (RFC 1035), an optional final dot.
+     */
+    public static boolean isValidName(String name) {
+        String n = name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+        if (n.isEmpty() || n.length() > 253) {
+            return false;
+        }
+        int labelLength = 0;
+        for (int i = 0; i < n.length(); i++) {
+            char c = n.charAt(i);
+            if (c == '.') {
+                if (labelLength == 0) {
+                    return false;
+                }
+                labelLength = 0;
+            } else if (c > 0x7F || ++labelLength > 63) {
+                return false;
+            }
+        }
+        return labelLength > 0;
+    }
+
+    static byte[] buildQuery(int id, String name, int type) throws IOException {
+        if (!isValidName(name)) {
+            throw new IOException("Invalid DNS name: " + name);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(18 + name.length() + 2);
+        buf.putShort((short) id);
+        buf.putShort((short) 0x0100);  // standard query, recursion desired
+        buf.putShort((short) 1);       // one question
+        buf.putShort((short) 0);
+        buf.putShort((short) 0);
+        buf.putShort((short) 0);
+        for (String label : name.split("\\.")) {
+            if (label.isEmpty()) {
+                continue;
+            }
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            buf.put((byte) bytes.length);
+            buf.put(bytes);
+        }
+        buf.put((byte) 0);
+        buf.putShort((short) type);
+        buf.putShort((short) CLASS_IN);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    static Answer parse(byte[] msg, String name, int type) throws IOException {
+        try {
+            int rcode = msg[3] & 0x0F;
+            if (rcode != RCODE_OK && rcode != RCODE_NXDOMAIN) {
+                throw new IOException("Nameserver returned rcode " + rcode + " for " + name);
+            }
+            int qdCount = readShort(msg, 4);
+            int anCount = readShort(msg, 6);
+            int nsCount = readShort(msg, 8);
+
+            int[] pos = {12};
+            for (int i = 0; i < qdCount; i++) {
+                readName(msg, pos);
+                pos[0] += 4;
+            }
+
+            List<Record> records = new ArrayList<>();
+            long minTtl = MAX_TTL;
+            for (int i = 0; i < anCount; i++) {
+                Record r = readRecord(msg, pos);
+                if (r != null) {
+                    records.add(r);
+                    minTtl = Math.min(minTtl, r.ttl);
+                }
+            }
+
+            boolean negative = rcode == RCODE_NXDOMAIN || !hasType(records, type);
+            if (negative) {
+                // Negative TTL: min(SOA TTL, SOA minimum) from the authority section
+                long negativeTtl = DEFAULT_NEGATIVE_TTL;
+                for (int i = 0; i < nsCount; i++) {
+                    Record r = readRecord(msg, pos);
+                    if (r != null && r.type == TYPE_SOA) {
+                        negativeTtl = Math.min(r.ttl, r.soaMinimum);
+                    }
+                }
+                minTtl = Math.min(negativeTtl, MAX_TTL);
+            }
+            return new Answer(rcode, records, System.currentTimeMillis() + minTtl * 1000);
+        } catch (IndexOutOfBoundsException e) {
+            // A length or offset pointing past the reply
+            throw new IOException("Malformed DNS answer for " + name);
+        }
+    }
+
+    private static boolean hasType(List<Record> records, int type) {
+        for (Record r : records) {
+            if (r.type == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** One resource record; null for types this resolver does not use. */
+    private static Record readRecord(byte[] msg, int[] pos) throws IOException {
+        readName(msg, pos);
+        int type = readShort(msg, pos[0]);
+        long ttl = readInt(msg, pos[0] + 4) & 0xFFFFFFFFL;
+        int rdLength = readShort(msg, pos[0] + 8);
+        int rdata = pos[0] + 10;
+        pos[0] = rdata + rdLength;
+        if (pos[0] > msg.length) {
+            throw new IOException("Truncated DNS record");
+        }
+
+        Record r = new Record(type, Math.min(ttl, MAX_TTL));
+        int[] at = {rdata};
+        switch (type) {
+            case TYPE_MX:
+                r.preference = readShort(msg, rdata);
+                at[0] = rdata + 2;
+                r.host = readName(msg, at);
+                return r;
+            case TYPE_A:
+            case TYPE_AAAA:
+                r.address = InetAddress.getByAddress(Arrays.copyOfRange(msg, rdata, rdata + rdLength));
+                return r;
+            case TYPE_SOA:
+                readName(msg, at);  // MNAME
+                readName(msg, at);  // RNAME
+                r.soaMinimum = readInt(msg, at[0] + 16) & 0xFFFFFFFFL;
+                return r;
+            default:
+                // CNAMEs are followed by the recursive nameserver; only
+                // the records they lead to matter here
+                return null;
+        }
+    }
+
+    /** Read a possibly compressed domain name, advancing pos past it. */
+    private static String readName(byte[] msg, int[] pos) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int p = pos[0];
+        boolean jumped = false;
+        int jumps = 0;
+        while (true) {
+            if (p >= msg.length) {
+                throw new IOException("Truncated DNS name");
+            }
+            int len = msg[p] & 0xFF;
+            if ((len & 0xC0) == 0xC0) {
+                if (++jumps > 32) {
+                    throw new IOException("DNS name compression loop");
+                }
+                if (!jumped) {
+                    pos[0] = p + 2;
+                    jumped = true;
+                }
+                p = ((len & 0x3F) << 8) | (msg[p + 1] & 0xFF);
+                continue;
+            }
+            if (len == 0) {
+                if (!jumped) {
+                    pos[0] = p + 1;
+                }
+                return sb.toString();
+            }
+            if ((len & 0xC0) != 0 || p + 1 + len > msg.length) {
+                throw new IOException("Truncated DNS name");
+            }
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(new String(msg, p + 1, len, StandardCharsets.US_ASCII));
+            p += 1 + len;
+        }
+    }
+
+    private static int readShort(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (readShort(b, off) << 16) | readShort(b, off + 2);
+    }
+
+    static final class Answer {
+        final int rcode;
+        final List<Record> records;
+        final long expiresAt;
+
+        Answer(int rcode, List<Record> records, long expiresAt) {
+            this.rcode = rcode;
+            this.records = records;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    static final class Record {
+        final int type;
+        final long ttl;
+        int preference;
+        String host;
+        InetAddress address;
+        long soaMinimum;
+
+        Record(int type, long ttl) {
+            this.type = type;
+            this.ttl = ttl;
+        }
+    }
 }
@@ -0,0 +1,353 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * One file per message in the owner's directory under the storage root,
+ * named after the message UID. Each directory also holds a MailboxIndex
+ * (".index") so listing never has to scan or stat the message files.
+ *
+ * A message is written to a hidden temporary file and renamed to its
+ * name once complete, and only then recorded in the index, so a crash
+ * never leaves a partial message that could be served; recover() cleans
+ * up after one.
+ *
+ * With compression on, messages that compress well are stored DEFLATEd
+ * as "<uid>.msgz" instead (see MessageCompression).
+ */
+public class FileMailStore implements MailStore {
+
+    private static final String INDEX_FILE = ".index";
+    private static final String MESSAGE_SUFFIX = ".msg";
+    private static final String COMPRESSED_SUFFIX = ".msgz";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File baseDir;
+    // Null when messages are stored as they are
+    private final MessageCompression compression;
+    // Opened indexes, keyed by mailbox
+    private final Map<String, MailboxIndex> indexes = new ConcurrentHashMap<>();
+
+    public FileMailStore(File baseDir) {
+        this(baseDir, null);
+    }
+
+    public FileMailStore(File baseDir, MessageCompression compression) {
+        this.baseDir = baseDir;
+        this.compression = compression;
+    }
+
+    @Override
+    public StoredMessage store(String mailbox, SpooledMessage message) throws IOException {
+        MailboxIndex index = index(mailbox);
+        long uid = index.nextUid();
+        File tmp = new File(new File(baseDir, mailbox), "." + uid + TEMP_SUFFIX);
+        long size = message.size();
+        long stored;
+        int codec;
+        try {
+            try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                stored = compression != null ? compression.write(message, ch) : message.writeTo(ch);
+                // On disk before the rename: recovery takes renamed files as complete
+                ch.force(true);
+            }
+            codec = MessageCompression.codec(size, stored);
+            Files.move(tmp.toPath(), messageFile(mailbox, uid, codec).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            // ...and the rename itself on disk before the index records it
+            FileSync.syncDirectory(tmp.getParentFile());
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        MailboxIndex.Entry entry = new MailboxIndex.Entry(uid, size, -1, 0, message.stuffedLines(), 0,
+                codec, stored);
+        index.add(entry);
+        return entry.toMessage(mailbox);
+    }
+
+    /**
+     * Hard-link the original file into the recipient's mailbox: the body is
+     * written once per delivery however many local recipients it has, and
+     * the filesystem frees it when the last mailbox deletes its link.
+     * Message files are never modified in place, so sharing is safe. The
+     * original's index is another mailbox's, not locked here, so its codec
+     * is told by which file exists.
+     */
+    @Override
+    public StoredMessage storeCopy(String mailbox, StoredMessage original, SpooledMessage message)
+            throws IOException {
+        MailboxIndex index = index(mailbox);
+        long uid = index.nextUid();
+        int codec = MessageCompression.CODEC_DEFLATE;
+        File source = messageFile(original.getMailbox(), original.getUid(), codec);
+        if (!source.isFile()) {
+            codec = MessageCompression.CODEC_NONE;
+            source = messageFile(original.getMailbox(), original.getUid(), codec);
+        }
+        try {
+            Files.createLink(messageFile(mailbox, uid, codec).toPath(), source.toPath());
+            FileSync.syncDirectory(new File(baseDir, mailbox));
+        } catch (IOException | UnsupportedOperationException e) {
+            // No hard links here, or the original is already gone: write a copy
+            return store(mailbox, message);
+        }
+        MailboxIndex.Entry entry = new MailboxIndex.Entry(uid, original.getSize(), -1, 0,
+                original.getStuffedLines(), 0, codec, source.length());
+        index.add(entry);
+        return entry.toMessage(mailbox);
+    }
+
+    @Override
+    public List<StoredMessage> list(String mailbox) throws IOException {
+        MailboxIndex index = index(mailbox);
+        List<StoredMessage> messages = new ArrayList<>(index.size());
+        for (MailboxIndex.Entry e : index.entries()) {
+            messages.add(e.toMessage(mailbox));
+        }
+        return messages;
+    }
+
+    @Override
+    public List<String> readLines(StoredMessage message) throws IOException {
+        return WireFormat.decodeLines(open(message).newInputStream());
+    }
+
+    @Override
+    public MessageRegion open(StoredMessage message) throws IOException {
+        MailboxIndex.Entry entry = entry(message);
+        FileChannel ch = FileChannel.open(existingMessageFile(message, entry).toPath(), StandardOpenOption.READ);
+        if (entry.codec == MessageCompression.CODEC_NONE) {
+            return new MessageRegion(ch, 0, ch.size());
+        }
+        return MessageCompression.open(ch, 0, ch.size(), entry.size, entry.codec);
+    }
+
+    @Override
+    public void delete(StoredMessage message) throws IOException {
+        File messageFile = existingMessageFile(message, entry(message));
+        if (!messageFile.delete()) {
+            throw new IOException("Failed to delete message: " + messageFile.getName());
+        }
+        index(message.getMailbox()).remove(message.getUid());
+    }
+
+    @Override
+    public void setFlags(StoredMessage message, int flags) throws IOException {
+        index(message.getMailbox()).setFlags(message.getUid(), flags);
+    }
+
+    /**
+     * Delete temporary files of interrupted writes, forget index entries
+     * whose file is gone (deleted just before a crash), and index message
+     * files the index never heard of. Those were renamed into place, so
+     * they are complete: keeping them may deliver a message twice if the
+     * client never got its reply, but never loses one.
+     */
+    @Override
+    public int recover(String mailbox) throws IOException {
+        // Opened first: without an index this rebuilds it from the files
+        MailboxIndex index = index(mailbox);
+        File userDir = new File(baseDir, mailbox);
+        String[] names = userDir.list();
+        if (names == null) {
+            return 0;
+        }
+        int repairs = 0;
+        Set<Long> onDisk = new HashSet<>(names.length * 4 / 3 + 1);
+        for (String name : names) {
+            if (name.startsWith(".") && name.endsWith(TEMP_SUFFIX)) {
+                // A message or index rewrite that never completed; the
+                // index being rewritten is still intact
+                if (new File(userDir, name).delete()) {
+                    repairs++;
+                }
+            } else {
+                long uid = messageUid(name);
+                if (uid > 0) {
+                    onDisk.add(uid);
+                }
+            }
+        }
+        List<MailboxIndex.Entry> kept = new ArrayList<>(index.size());
+        int missing = 0;
+        for (MailboxIndex.Entry e : index.entries()) {
+            if (onDisk.remove(e.uid)) {
+                kept.add(e);
+            } else {
+                missing++;
+            }
+        }
+        for (long uid : onDisk) {
+            kept.add(fileEntry(mailbox, uid));
+        }
+        if (missing > 0 || !onDisk.isEmpty()) {
+            kept.sort(Comparator.comparingLong(e -> e.uid));
+            index.rewrite(kept);
+        }
+        return repairs + missing + onDisk.size();
+    }
+
+    /** The UID of a message file name ("<uid>.msg" or "<uid>.msgz"), or -1. */
+    private static long messageUid(String name) {
+        String suffix = name.endsWith(MESSAGE_SUFFIX) ? MESSAGE_SUFFIX
+                : name.endsWith(COMPRESSED_SUFFIX) ? COMPRESSED_SUFFIX
+                : null;
+        if (suffix == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * An index entry for a message file found on disk, without the dot
+     * count and flags the index would have recorded. A compressed file is
+     * inflated once to learn its wire-form size.
+     */
+    private MailboxIndex.Entry fileEntry(String mailbox, long uid) throws IOException {
+        File compressed = messageFile(mailbox, uid, MessageCompression.CODEC_DEFLATE);
+        if (!compressed.isFile()) {
+            return new MailboxIndex.Entry(uid, messageFile(mailbox, uid).length());
+        }
+        long size = 0;
+        try (InputStream in = new InflaterInputStream(Files.newInputStream(compressed.toPath()))) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                size += n;
+            }
+        }
+        return new MailboxIndex.Entry(uid, size, -1, 0, -1, 0,
+                MessageCompression.CODEC_DEFLATE, compressed.length());
+    }
+
+    private MailboxIndex index(String mailbox) throws IOException {
+        MailboxIndex index = indexes.get(mailbox);
+        if (index != null) {
+            return index;
+        }
+        try {
+            return indexes.computeIfAbsent(mailbox, m -> {
+                try {
+                    return openIndex(m);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private MailboxIndex openIndex(String mailbox) throws IOException {
+        File userDir = getOrCreateUserDir(mailbox);
+        MailboxIndex index = MailboxIndex.open(new File(userDir, INDEX_FILE));
+        if (!index.exists()) {
+            importUnindexedMessages(mailbox, userDir, index);
+        }
+        return index;
+    }
+
+    /**
+     * Index a mailbox that has none. Message files ("<uid>.msg", whose
+     * index was lost) keep their UIDs. Mailboxes written before the index
+     * existed hold msg_*.txt files in plain text: give them UIDs after
+     * those, in their old listing order (modification time, then name),
+     * and convert them to wire form, leaving their bytes unchanged apart
+     * from line endings and dot-stuffing.
+     */
+    private void importUnindexedMessages(String mailbox, File userDir, MailboxIndex index)
+            throws IOException {
+        List<MailboxIndex.Entry> entries = new ArrayList<>();
+        File[] messageFiles = userDir.listFiles(f -> messageUid(f.getName()) > 0);
+        if (messageFiles != null && messageFiles.length > 0) {
+            for (File f : messageFiles) {
+                entries.add(fileEntry(mailbox, messageUid(f.getName())));
+            }
+            entries.sort(Comparator.comparingLong(e -> e.uid));
+            // Moves nextUid past them before any legacy file gets one
+            index.rewrite(entries);
+        }
+        File[] files = userDir.listFiles(f -> f.isFile() && !f.getName().startsWith(".")
+                && messageUid(f.getName()) < 0);
+        if (files != null) {
+            Arrays.sort(files, Comparator
+                    .comparingLong(File::lastModified)
+                    .thenComparing(File::getName));
+            for (File f : files) {
+                long uid = index.nextUid();
+                // Bytes as they are: the platform charset may not be the
+                // one they were written in
+                byte[] wire = WireFormat.encode(Files.readAllBytes(f.toPath()));
+                File tmp = new File(userDir, "." + uid + TEMP_SUFFIX);
+                try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    ByteBuffer buf = ByteBuffer.wrap(wire);
+                    while (buf.hasRemaining()) {
+                        ch.write(buf);
+                    }
+                    ch.force(true);
+                }
+                Files.move(tmp.toPath(), messageFile(mailbox, uid).toPath(), StandardCopyOption.ATOMIC_MOVE);
+                if (!f.delete()) {
+                    throw new IOException("Failed to import message: " + f.getName());
+                }
+                entries.add(new MailboxIndex.Entry(uid, wire.length, -1, 0,
+                        WireFormat.countStuffedLines(wire), 0));
+            }
+        }
+        index.rewrite(entries);
+    }
+
+    private File messageFile(String mailbox, long uid) {
+        return messageFile(mailbox, uid, MessageCompression.CODEC_NONE);
+    }
+
+    private File messageFile(String mailbox, long uid, int codec) {
+        String suffix = codec == MessageCompression.CODEC_NONE ? MESSAGE_SUFFIX : COMPRESSED_SUFFIX;
+        return new File(new File(baseDir, mailbox), uid + suffix);
+    }
+
+    private MailboxIndex.Entry entry(StoredMessage message) throws IOException {
+        MailboxIndex.Entry entry = index(message.getMailbox()).get(message.getUid());
+        if (entry == null) {
+            throw new IOException("Message does not exist: " + message.getUid());
+        }
+        return entry;
+    }
+
+    private File existingMessageFile(StoredMessage message, MailboxIndex.Entry entry) throws IOException {
+        File messageFile = messageFile(message.getMailbox(), message.getUid(), entry.codec);
+        if (!messageFile.isFile()) {
+            throw new IOException("Message file does not exist: " + messageFile.getName());
+        }
+        return messageFile;
+    }
+
+    private File getOrCreateUserDir(String userEmail) {
+        File userDir = new File(baseDir, userEmail);
+        if (!userDir.exists()) {
+            userDir.mkdirs();
+        }
+        return userDir;
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Durability helpers for the write-aside-and-rename pattern used by the
+ * stores and the outbound queue. Forcing a file only makes its contents
+ * durable; the rename that publishes it lives in the directory, which has
+ * to be forced as well.
+ */
+public final class FileSync {
+
+    private FileSync() {
+    }
+
+    /**
+     * Make the renames, links and creations in a directory durable. Not
+     * every platform can open a directory (Windows cannot); there the
+     * rename is left to the filesystem.
+     */
+    public static void syncDirectory(File dir) throws IOException {
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try (FileChannel d = ch) {
+            d.force(true);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with HDR-style log-linear buckets: values
+ * up to 2^SUB_BITS get one bucket each, larger ones share a power of two
+ * split into 2^SUB_BITS buckets, so any percentile is reported within
+ * about 6% of the true value. Recording is one array increment and two
+ * LongAdder adds, with no allocation.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Enough for any non-negative long
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /** Record one value, normally a duration in nanoseconds. */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    /** Record the time since a System.nanoTime() reading. */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * The value below which a fraction q of the recorded values fall (the
+     * upper edge of its bucket), or 0 if nothing was recorded. Recording
+     * may go on meanwhile; the answer then reflects part of it.
+     */
+    public long percentile(double q) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(BUCKETS - 1);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long low = (1L << exponent) | (sub << (exponent - SUB_BITS));
+        long width = 1L << (exponent - SUB_BITS);
+        return low + width - 1 < low ? Long.MAX_VALUE : low + width - 1;
+    }
+}
@@ -1,14 +1,91 @@
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-public class IMAPHandler implements Runnable {
+/**
+ * IMAP4rev1 (RFC 3501) over the user's mailbox, which clients see as INBOX.
+ * UIDs, sizes and flags come from the mailbox index, header fields and
+ * MIME part offsets from MailboxManager's structure cache, and FETCH reads
+ * only the bytes it sends: BODY.PEEK[]<0.2048> or BODY[2] never touches
+ * the rest of the message file.
+ *
+ * Messages are stored in SMTP wire form, where a line starting with a dot
+ * carries an extra one. When the index says a message has no such line,
+ * its stored bytes are the message and ranges go straight from the file;
+ * otherwise they are read through WireFormat.unstuffing.
+ */
+public class IMAPHandler implements Runnable, ProtocolSession {
+
+    private static final String CAPABILITIES = "IMAP4rev1 LITERAL+";
+    private static final String INBOX = "INBOX";
+    // Mailboxes never change identity, and UIDs are never reused
+    private static final long UID_VALIDITY = 1;
+    // Literals only carry command arguments here (no APPEND)
+    private static final int MAX_LITERAL = 8192;
+
+    // Flag names by bit position of the StoredMessage FLAG_ constants
+    private static final String[] FLAG_NAMES = {"\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft"};
+
+    private static final byte[] CAPABILITY = ProtocolOutput.encodeLine("* CAPABILITY " + CAPABILITIES);
+    private static final byte[] FLAGS = ProtocolOutput.encodeLine(
+            "* FLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft)");
+    private static final byte[] PERMANENT_FLAGS = ProtocolOutput.encodeLine(
+            "* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft)] Flags permitted");
+    private static final byte[] NO_PERMANENT_FLAGS = ProtocolOutput.encodeLine(
+            "* OK [PERMANENTFLAGS ()] Read-only mailbox");
+    private static final byte[] NO_RECENT = ProtocolOutput.encodeLine("* 0 RECENT");
+    private static final byte[] CONTINUE = ProtocolOutput.encodeLine("+ Ready for literal data");
+
+    private static final Map<String, Histogram> COMMAND_TIMES = Metrics.histograms("imap_command_seconds",
+            "command", "CAPABILITY", "NOOP", "CHECK", "LOGOUT", "LOGIN", "SELECT", "EXAMINE", "LIST", "LSUB",
+            "STATUS", "FETCH", "STORE", "SEARCH", "EXPUNGE", "CLOSE", "UID FETCH", "UID STORE", "UID SEARCH");
+
+    private static final Pattern LITERAL = Pattern.compile("\\{(\\d{1,10})(\\+?)\\}$");
+    private static final Pattern PART_NUMBER = Pattern.compile("[1-9]\\d{0,4}(\\.[1-9]\\d{0,4})*");
+    private static final Pattern PARTIAL = Pattern.compile("<(\\d{1,18})\\.(\\d{1,18})>");
+    private static final DateTimeFormatter INTERNALDATE_FORMAT =
+            DateTimeFormatter.ofPattern("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+    private static final DateTimeFormatter SEARCH_DATE_FORMAT = new DateTimeFormatterBuilder()
+            .parseCaseInsensitive().appendPattern("d-MMM-yyyy").toFormatter(Locale.US);
+    private static final Pattern SEQUENCE_SET = Pattern.compile("[0-9*:,]+");
+    private static final ZonedDateTime NO_DATE = Instant.EPOCH.atZone(ZoneOffset.UTC);
 
     private final Socket client;
     private final MailboxManager mailboxManager;
     private final UserManager userManager;
     private final String serverDomain;
 
+    // Null until LOGIN
+    private String currentUser;
+    // The selected mailbox, null outside the selected state; message
+    // sequence number n is messages.get(n - 1)
+    private List<StoredMessage> messages;
+    private boolean readOnly;
+
+    // A command split by literals, joined back as quoted strings
+    private final StringBuilder pending = new StringBuilder();
+    private ByteArrayOutputStream literal;
+    private long literalRemaining = 0;
+    private boolean literalTooLarge = false;
+
     public IMAPHandler(Socket client,
                        MailboxManager mailboxManager,
                        UserManager userManager,
@@ -26,6 +103,7 @@ public class IMAPHandler implements Runnable {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            closed();
             try {
                 client.close();
             } catch (IOException ignored) {}
@@ -33,15 +111,1178 @@ public class IMAPHandler implements Runnable {
     }
 
     private void handleSession() throws IOException {
-        OutputStream out = client.getOutputStream();
-        // Minimal IMAP greeting; Later implement CAPABILITY/LOGIN/etc.
-        writeLine(out, "* OK IMAP server ready (" + serverDomain + ")");
-        // For now, immediately close with a fake tag
-        writeLine(out, "A1 OK LOGOUT completed");
+        ProtocolOutput out = ProtocolOutput.forSocket(client);
+        serve(new LineReader(client.getInputStream()), out);
+    }
+
+    @Override
+    public boolean greet(ProtocolOutput out) throws IOException {
+        out.writeLine("* OK [CAPABILITY " + CAPABILITIES + "] IMAP server ready (" + serverDomain + ")");
+        return true;
+    }
+
+    @Override
+    public boolean handleLine(String line, ProtocolOutput out) throws IOException {
+        Matcher m = LITERAL.matcher(line);
+        if (!m.find()) {
+            pending.append(line);
+            String command = pending.toString();
+            pending.setLength(0);
+            if (literalTooLarge) {
+                literalTooLarge = false;
+                out.writeLine(tagOf(command) + " BAD Literal too large");
+                return true;
+            }
+            return execute(command, out);
+        }
+
+        // The line ends with {n} or {n+}: n bytes of the same command follow
+        pending.append(line, 0, m.start());
+        long size = Long.parseLong(m.group(1));
+        boolean synchronizing = m.group(2).isEmpty();
+        if (size > MAX_LITERAL) {
+            if (synchronizing) {
+                // The client waits for our go-ahead, so it sends nothing more
+                out.writeLine(tagOf(pending.toString()) + " BAD Literal too large");
+                pending.setLength(0);
+                literalTooLarge = false;
+                return true;
+            }
+            literalTooLarge = true;
+        } else if (size == 0) {
+            pending.append("\"\"");
+            return true;
+        } else if (!literalTooLarge) {
+            literal = new ByteArrayOutputStream((int) size);
+        }
+        literalRemaining = size;
+        if (synchronizing) {
+            out.write(CONTINUE);
+        }
+        return true;
+    }
+
+    @Override
+    public long bytesExpected() {
+        return literalRemaining;
+    }
+
+    @Override
+    public boolean handleBytes(ByteBuffer data, ProtocolOutput out) throws IOException {
+        int n = data.remaining();
+        if (literal != null) {
+            byte[] bytes = new byte[n];
+            data.get(bytes);
+            literal.write(bytes, 0, n);
+        } else {
+            data.position(data.limit());
+        }
+        literalRemaining -= n;
+        if (literalRemaining == 0 && literal != null) {
+            pending.append(quote(new String(literal.toByteArray(), LineScanner.CHARSET)));
+            literal = null;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean lineTooLong(ProtocolOutput out) throws IOException {
+        pending.setLength(0);
+        literalTooLarge = false;
+        out.writeLine("* BAD Line too long");
+        return true;
+    }
+
+    private boolean execute(String command, ProtocolOutput out) throws IOException {
+        if (command.trim().isEmpty()) {
+            return true;
+        }
+        List<Object> args;
+        try {
+            args = parseArgs(command);
+        } catch (IllegalArgumentException e) {
+            out.writeLine(tagOf(command) + " BAD " + e.getMessage());
+            return true;
+        }
+        if (args.size() < 2 || !(args.get(0) instanceof String) || !(args.get(1) instanceof String)) {
+            out.writeLine(tagOf(command) + " BAD Missing command");
+            return true;
+        }
+        String tag = (String) args.get(0);
+        String cmd = ((String) args.get(1)).toUpperCase(Locale.ROOT);
+        List<Object> rest = args.subList(2, args.size());
+        boolean byUid = false;
+        if (cmd.equals("UID") && !rest.isEmpty() && rest.get(0) instanceof String) {
+            byUid = true;
+            cmd = ((String) rest.get(0)).toUpperCase(Locale.ROOT);
+            rest = rest.subList(1, rest.size());
+            if (!cmd.equals("FETCH") && !cmd.equals("STORE") && !cmd.equals("SEARCH")) {
+                out.writeLine(tag + " BAD Unknown UID command");
+                return true;
+            }
+        }
+
+        Histogram timer = COMMAND_TIMES.getOrDefault(byUid ? "UID " + cmd : cmd, COMMAND_TIMES.get("OTHER"));
+        long start = System.nanoTime();
+        try {
+            return dispatch(tag, cmd, rest, byUid, out);
+        } finally {
+            timer.recordSince(start);
+        }
+    }
+
+    private boolean dispatch(String tag, String cmd, List<Object> rest, boolean byUid, ProtocolOutput out)
+            throws IOException {
+        try {
+            switch (cmd) {
+                case "CAPABILITY":
+                    out.write(CAPABILITY);
+                    out.writeLine(tag + " OK CAPABILITY completed");
+                    return true;
+                case "NOOP":
+                case "CHECK":
+                    if (messages != null) {
+                        refresh(out);
+                    }
+                    out.writeLine(tag + " OK " + cmd + " completed");
+                    return true;
+                case "LOGOUT":
+                    out.writeLine("* BYE IMAP server logging out");
+                    out.writeLine(tag + " OK LOGOUT completed");
+                    return false;
+                case "LOGIN":
+                    handleLogin(tag, rest, out);
+                    return true;
+                default:
+                    break;
+            }
+
+            if (currentUser == null) {
+                out.writeLine(tag + " NO Not authenticated");
+                return true;
+            }
+            switch (cmd) {
+                case "SELECT":
+                case "EXAMINE":
+                    handleSelect(tag, cmd, rest, out);
+                    return true;
+                case "LIST":
+                case "LSUB":
+                    handleList(tag, cmd, rest, out);
+                    return true;
+                case "STATUS":
+                    handleStatus(tag, rest, out);
+                    return true;
+                case "CREATE":
+                case "DELETE":
+                case "RENAME":
+                case "SUBSCRIBE":
+                case "UNSUBSCRIBE":
+                case "APPEND":
+                case "COPY":
+                    out.writeLine(tag + " NO Only INBOX is available");
+                    return true;
+                default:
+                    break;
+            }
+
+            if (messages == null) {
+                out.writeLine(tag + " BAD No mailbox selected");
+                return true;
+            }
+            switch (cmd) {
+                case "FETCH":
+                    handleFetch(tag, rest, byUid, out);
+                    break;
+                case "STORE":
+                    handleStore(tag, rest, byUid, out);
+                    break;
+                case "SEARCH":
+                    handleSearch(tag, rest, byUid, out);
+                    break;
+                case "EXPUNGE":
+                    if (readOnly) {
+                        out.writeLine(tag + " NO Mailbox is read-only");
+                    } else {
+                        IOException failure = expunge(out, true);
+                        out.writeLine(failure == null ? tag + " OK EXPUNGE completed"
+                                : tag + " NO EXPUNGE incomplete: " + failure.getMessage());
+                    }
+                    break;
+                case "CLOSE": {
+                    IOException failure = readOnly ? null : expunge(out, false);
+                    // Deselected either way; what is left stays \Deleted
+                    messages = null;
+                    out.writeLine(failure == null ? tag + " OK CLOSE completed"
+                            : tag + " OK CLOSE completed, but " + failure.getMessage());
+                    break;
+                }
+                default:
+                    out.writeLine(tag + " BAD Unknown command");
+            }
+        } catch (IOException e) {
+            out.writeLine(tag + " NO " + cmd + " failed: " + e.getMessage());
+        }
+        return true;
+    }
+
+    private void handleLogin(String tag, List<Object> args, ProtocolOutput out) throws IOException {
+        if (currentUser != null) {
+            out.writeLine(tag + " BAD Already authenticated");
+            return;
+        }
+        if (args.size() != 2 || !(args.get(0) instanceof String) || !(args.get(1) instanceof String)) {
+            out.writeLine(tag + " BAD LOGIN expects a user name and a password");
+            return;
+        }
+        String user = (String) args.get(0);
+        String password = (String) args.get(1);
+        if (!userManager.isValidUser(user, serverDomain) || !userManager.checkPassword(user, password)) {
+            out.writeLine(tag + " NO LOGIN failed");
+            return;
+        }
+        currentUser = user;
+        out.writeLine(tag + " OK LOGIN completed");
+    }
+
+    private void handleSelect(String tag, String cmd, List<Object> args, ProtocolOutput out)
+            throws IOException {
+        // Any SELECT deselects the current mailbox first, so a failed one
+        // leaves none selected (RFC 3501, 6.3.1)
+        messages = null;
+        if (args.size() != 1 || !(args.get(0) instanceof String)) {
+            out.writeLine(tag + " BAD " + cmd + " expects a mailbox name");
+            return;
+        }
+        if (!INBOX.equalsIgnoreCase((String) args.get(0))) {
+            out.writeLine(tag + " NO No such mailbox");
+            return;
+        }
+        messages = new ArrayList<>(mailboxManager.listMessages(currentUser));
+        readOnly = cmd.equals("EXAMINE");
+
+        out.write(FLAGS);
+        out.writeLine("* " + messages.size() + " EXISTS");
+        out.write(NO_RECENT);
+        for (int i = 0; i < messages.size(); i++) {
+            if ((messages.get(i).getFlags() & StoredMessage.FLAG_SEEN) == 0) {
+                out.writeLine("* OK [UNSEEN " + (i + 1) + "] First unseen message");
+                break;
+            }
+        }
+        out.writeLine("* OK [UIDVALIDITY " + UID_VALIDITY + "] UIDs valid");
+        out.writeLine("* OK [UIDNEXT " + uidNext(messages) + "] Predicted next UID");
+        out.write(readOnly ? NO_PERMANENT_FLAGS : PERMANENT_FLAGS);
+        out.writeLine(tag + (readOnly ? " OK [READ-ONLY] " : " OK [READ-WRITE] ") + cmd + " completed");
+    }
+
+    private void handleList(String tag, String cmd, List<Object> args, ProtocolOutput out)
+            throws IOException {
+        if (args.size() != 2 || !(args.get(0) instanceof String) || !(args.get(1) instanceof String)) {
+            out.writeLine(tag + " BAD " + cmd + " expects a reference and a mailbox pattern");
+            return;
+        }
+        String pattern = (String) args.get(0) + args.get(1);
+        if (((String) args.get(1)).isEmpty()) {
+            // The hierarchy delimiter and root
+            out.writeLine("* " + cmd + " (\\Noselect) \"/\" \"\"");
+        } else if (matchesInbox(pattern)) {
+            out.writeLine("* " + cmd + " () \"/\" " + INBOX);
+        }
+        out.writeLine(tag + " OK " + cmd + " completed");
+    }
+
+    private void handleStatus(String tag, List<Object> args, ProtocolOutput out) throws IOException {
+        if (args.size() != 2 || !(args.get(0) instanceof String) || !(args.get(1) instanceof List)) {
+            out.writeLine(tag + " BAD STATUS expects a mailbox name and a list of items");
+            return;
+        }
+        if (!INBOX.equalsIgnoreCase((String) args.get(0))) {
+            out.writeLine(tag + " NO No such mailbox");
+            return;
+        }
+        List<StoredMessage> current = mailboxManager.listMessages(currentUser);
+        StringBuilder status = new StringBuilder("* STATUS ").append(INBOX).append(" (");
+        for (Object o : (List<?>) args.get(1)) {
+            String item = o instanceof String ? ((String) o).toUpperCase(Locale.ROOT) : "";
+            long value;
+            switch (item) {
+                case "MESSAGES":
+                    value = current.size();
+                    break;
+                case "RECENT":
+                    value = 0;
+                    break;
+                case "UIDNEXT":
+                    value = uidNext(current);
+                    break;
+                case "UIDVALIDITY":
+                    value = UID_VALIDITY;
+                    break;
+                case "UNSEEN":
+                    value = current.stream()
+                            .filter(msg -> (msg.getFlags() & StoredMessage.FLAG_SEEN) == 0)
+                            .count();
+                    break;
+                default:
+                    out.writeLine(tag + " BAD Unknown status item");
+                    return;
+            }
+            if (status.charAt(status.length() - 1) != '(') {
+                status.append(' ');
+            }
+            status.append(item).append(' ').append(value);
+        }
+        out.writeLine(status.append(')').toString());
+        out.writeLine(tag + " OK STATUS completed");
+    }
+
+    /**
+     * Bring the selected mailbox up to date with changes made by other
+     * sessions: messages gone, flags changed, new messages.
+     */
+    private void refresh(ProtocolOutput out) throws IOException {
+        Map<Long, StoredMessage> current = new HashMap<>();
+        List<StoredMessage> listed = mailboxManager.listMessages(currentUser);
+        for (StoredMessage m : listed) {
+            current.put(m.getUid(), m);
+        }
+        long lastUid = messages.isEmpty() ? 0 : messages.get(messages.size() - 1).getUid();
+
+        // Highest first, so the sequence numbers still to report stay valid
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            if (!current.containsKey(messages.get(i).getUid())) {
+                messages.remove(i);
+                out.writeLine("* " + (i + 1) + " EXPUNGE");
+            }
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            StoredMessage now = current.get(messages.get(i).getUid());
+            if (now.getFlags() != messages.get(i).getFlags()) {
+                messages.set(i, now);
+                out.writeLine("* " + (i + 1) + " FETCH (FLAGS " + flagList(now.getFlags()) + ")");
+            }
+        }
+        int before = messages.size();
+        for (StoredMessage m : listed) {
+            if (m.getUid() > lastUid) {
+                messages.add(m);
+            }
+        }
+        if (messages.size() != before) {
+            out.writeLine("* " + messages.size() + " EXISTS");
+        }
+    }
+
+    /**
+     * Remove the messages flagged \Deleted. Every deletion is tried before
+     * anything is reported, so the message list and the untagged EXPUNGE
+     * responses (if report) only cover the ones that succeeded. Returns
+     * what went wrong with the others, or null if there were none.
+     */
+    private IOException expunge(ProtocolOutput out, boolean report) throws IOException {
+        List<Integer> expunged = new ArrayList<>();
+        IOException firstError = null;
+        int failed = 0;
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            StoredMessage m = messages.get(i);
+            if ((m.getFlags() & StoredMessage.FLAG_DELETED) != 0) {
+                try {
+                    mailboxManager.deleteMessage(m);
+                    expunged.add(i);
+                } catch (IOException e) {
+                    failed++;
+                    if (firstError == null) {
+                        firstError = e;
+                    }
+                }
+            }
+        }
+        // Highest first, so the sequence numbers still to report stay valid
+        for (int i : expunged) {
+            messages.remove(i);
+            if (report) {
+                out.writeLine("* " + (i + 1) + " EXPUNGE");
+            }
+        }
+        if (firstError == null) {
+            return null;
+        }
+        return new IOException(failed + " message(s) could not be expunged: " + firstError.getMessage(),
+                firstError);
+    }
+
+    /**
+     * Text and date criteria are answered by the mailbox's search index
+     * (MailboxManager.search), flags, sizes and message sets by the
+     * session's message list.
+     */
+    private void handleSearch(String tag, List<Object> args, boolean byUid, ProtocolOutput out)
+            throws IOException {
+        String name = byUid ? "UID SEARCH" : "SEARCH";
+        int[] pos = {0};
+        if (args.size() >= 2 && args.get(0) instanceof String
+                && ((String) args.get(0)).equalsIgnoreCase("CHARSET")) {
+            String charset = String.valueOf(args.get(1));
+            if (!charset.equalsIgnoreCase("UTF-8") && !charset.equalsIgnoreCase("US-ASCII")) {
+                out.writeLine(tag + " NO [BADCHARSET (UTF-8 US-ASCII)] Unsupported charset");
+                return;
+            }
+            pos[0] = 2;
+        }
+        if (pos[0] >= args.size()) {
+            out.writeLine(tag + " BAD " + name + " expects search criteria");
+            return;
+        }
+        boolean[] match;
+        try {
+            match = searchAll(args, pos);
+        } catch (IllegalArgumentException e) {
+            out.writeLine(tag + " BAD " + e.getMessage());
+            return;
+        }
+        StringBuilder line = new StringBuilder("* SEARCH");
+        for (int i = 0; i < match.length; i++) {
+            if (match[i]) {
+                line.append(' ').append(byUid ? messages.get(i).getUid() : i + 1);
+            }
+        }
+        out.writeLine(line.toString());
+        out.writeLine(tag + " OK " + name + " completed");
+    }
+
+    /** All the search keys from pos on, ANDed. */
+    private boolean[] searchAll(List<Object> args, int[] pos) throws IOException {
+        boolean[] match = searchKey(args, pos);
+        while (pos[0] < args.size()) {
+            boolean[] next = searchKey(args, pos);
+            for (int i = 0; i < match.length; i++) {
+                match[i] &= next[i];
+            }
+        }
+        return match;
+    }
+
+    /** Evaluate the search key at pos, and move past it and its arguments. */
+    private boolean[] searchKey(List<Object> args, int[] pos) throws IOException {
+        Object arg = args.get(pos[0]++);
+        if (arg instanceof List) {
+            List<Object> group = castList(arg);
+            if (group.isEmpty()) {
+                throw new IllegalArgumentException("Empty search group");
+            }
+            return searchAll(group, new int[] {0});
+        }
+        String key = ((String) arg).toUpperCase(Locale.ROOT);
+        boolean[] match = new boolean[messages.size()];
+        switch (key) {
+            case "ALL":
+            case "OLD":
+                Arrays.fill(match, true);
+                return match;
+            case "NEW":
+            case "RECENT":
+                // No message is ever \Recent
+                return match;
+            case "ANSWERED":
+            case "UNANSWERED":
+                return withFlag(StoredMessage.FLAG_ANSWERED, key.equals("ANSWERED"));
+            case "DELETED":
+            case "UNDELETED":
+                return withFlag(StoredMessage.FLAG_DELETED, key.equals("DELETED"));
+            case "DRAFT":
+            case "UNDRAFT":
+                return withFlag(StoredMessage.FLAG_DRAFT, key.equals("DRAFT"));
+            case "FLAGGED":
+            case "UNFLAGGED":
+                return withFlag(StoredMessage.FLAG_FLAGGED, key.equals("FLAGGED"));
+            case "SEEN":
+            case "UNSEEN":
+                return withFlag(StoredMessage.FLAG_SEEN, key.equals("SEEN"));
+            case "KEYWORD":
+            case "UNKEYWORD":
+                // Keywords are not stored: every message lacks every one
+                searchString(args, pos);
+                Arrays.fill(match, key.equals("UNKEYWORD"));
+                return match;
+            case "FROM":
+                return indexed(SearchIndex.Query.from(searchString(args, pos)));
+            case "TO":
+            case "CC":
+                return indexed(SearchIndex.Query.to(searchString(args, pos)));
+            case "BCC":
+                // Not part of delivered messages
+                searchString(args, pos);
+                return match;
+            case "SUBJECT":
+                return indexed(SearchIndex.Query.subject(searchString(args, pos)));
+            case "BODY":
+                return indexed(SearchIndex.Query.body(searchString(args, pos)));
+            case "TEXT":
+                return indexed(SearchIndex.Query.text(searchString(args, pos)));
+            case "HEADER":
+                return indexed(headerQuery(searchString(args, pos), searchString(args, pos)));
+            case "BEFORE":
+            case "SENTBEFORE":
+                return indexed(SearchIndex.Query.sentBetween(null, searchDate(args, pos).minusDays(1)));
+            case "ON":
+            case "SENTON":
+                LocalDate day = searchDate(args, pos);
+                return indexed(SearchIndex.Query.sentBetween(day, day));
+            case "SINCE":
+            case "SENTSINCE":
+                return indexed(SearchIndex.Query.sentBetween(searchDate(args, pos), null));
+            case "LARGER":
+            case "SMALLER":
+                long size = searchNumber(args, pos);
+                for (int i = 0; i < match.length; i++) {
+                    long messageSize = contentSize(messages.get(i));
+                    match[i] = key.equals("LARGER") ? messageSize > size : messageSize < size;
+                }
+                return match;
+            case "UID":
+                return inSet(searchString(args, pos), true);
+            case "NOT":
+                boolean[] negated = searchKey(args, pos);
+                for (int i = 0; i < match.length; i++) {
+                    match[i] = !negated[i];
+                }
+                return match;
+            case "OR":
+                boolean[] either = searchKey(args, pos);
+                boolean[] other = searchKey(args, pos);
+                for (int i = 0; i < match.length; i++) {
+                    match[i] = either[i] || other[i];
+                }
+                return match;
+            default:
+                if (SEQUENCE_SET.matcher(key).matches()) {
+                    return inSet(key, false);
+                }
+                throw new IllegalArgumentException("Unknown search key: " + arg);
+        }
+    }
+
+    private static SearchIndex.Query headerQuery(String field, String value) {
+        switch (field.toLowerCase(Locale.ROOT)) {
+            case "from":
+                return SearchIndex.Query.from(value);
+            case "to":
+            case "cc":
+                return SearchIndex.Query.to(value);
+            case "subject":
+                return SearchIndex.Query.subject(value);
+            default:
+                throw new IllegalArgumentException("Only From, To, Cc and Subject are searchable headers");
+        }
+    }
+
+    private boolean[] indexed(SearchIndex.Query query) throws IOException {
+        long[] uids = mailboxManager.search(currentUser, query);
+        boolean[] match = new boolean[messages.size()];
+        for (int i = 0; i < match.length; i++) {
+            match[i] = Arrays.binarySearch(uids, messages.get(i).getUid()) >= 0;
+        }
+        return match;
+    }
+
+    private boolean[] withFlag(int flag, boolean set) {
+        boolean[] match = new boolean[messages.size()];
+        for (int i = 0; i < match.length; i++) {
+            match[i] = ((messages.get(i).getFlags() & flag) != 0) == set;
+        }
+        return match;
+    }
+
+    private boolean[] inSet(String set, boolean byUid) {
+        int[] targets = resolve(set, byUid);
+        if (targets == null) {
+            throw new IllegalArgumentException("Invalid message set");
+        }
+        boolean[] match = new boolean[messages.size()];
+        for (int i : targets) {
+            match[i] = true;
+        }
+        return match;
+    }
+
+    private long contentSize(StoredMessage m) throws IOException {
+        long size = m.getContentSize();
+        return size >= 0 ? size : mailboxManager.messageStructure(m).getSize();
+    }
+
+    /** A search string; literals and quoted strings arrive as UTF-8 bytes. */
+    private static String searchString(List<Object> args, int[] pos) {
+        if (pos[0] >= args.size() || !(args.get(pos[0]) instanceof String)) {
+            throw new IllegalArgumentException("Missing search argument");
+        }
+        String s = (String) args.get(pos[0]++);
+        return new String(s.getBytes(LineScanner.CHARSET), StandardCharsets.UTF_8);
+    }
+
+    private static LocalDate searchDate(List<Object> args, int[] pos) {
+        String s = searchString(args, pos);
+        try {
+            return LocalDate.parse(s, SEARCH_DATE_FORMAT);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date: " + s);
+        }
+    }
+
+    private static long searchNumber(List<Object> args, int[] pos) {
+        String s = searchString(args, pos);
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number: " + s);
+        }
+    }
+
+    private void handleStore(String tag, List<Object> args, boolean byUid, ProtocolOutput out)
+            throws IOException {
+        String name = byUid ? "UID STORE" : "STORE";
+        if (args.size() < 3 || !(args.get(0) instanceof String) || !(args.get(1) instanceof String)) {
+            out.writeLine(tag + " BAD " + name + " expects a message set, an action and flags");
+            return;
+        }
+        String action = ((String) args.get(1)).toUpperCase(Locale.ROOT);
+        char mode = action.charAt(0) == '+' || action.charAt(0) == '-' ? action.charAt(0) : '=';
+        String what = mode == '=' ? action : action.substring(1);
+        boolean silent = what.equals("FLAGS.SILENT");
+        if (!silent && !what.equals("FLAGS")) {
+            out.writeLine(tag + " BAD Unknown STORE action");
+            return;
+        }
+        List<Object> flagArgs = args.size() == 3 && args.get(2) instanceof List
+                ? castList(args.get(2))
+                : args.subList(2, args.size());
+        int mask = 0;
+        for (Object o : flagArgs) {
+            int bit = o instanceof String ? flagBit((String) o) : 0;
+            if (bit == 0) {
+                out.writeLine(tag + " BAD Unsupported flag");
+                return;
+            }
+            mask |= bit;
+        }
+        int[] targets = resolve((String) args.get(0), byUid);
+        if (targets == null) {
+            out.writeLine(tag + " BAD Invalid message set");
+            return;
+        }
+        if (readOnly) {
+            out.writeLine(tag + " NO Mailbox is read-only");
+            return;
+        }
+
+        for (int i : targets) {
+            StoredMessage m = messages.get(i);
+            int flags = mode == '+' ? m.getFlags() | mask
+                    : mode == '-' ? m.getFlags() & ~mask
+                    : mask;
+            if (flags != m.getFlags()) {
+                mailboxManager.setFlags(m, flags);
+                m = m.withFlags(flags);
+                messages.set(i, m);
+            }
+            if (!silent) {
+                out.writeLine("* " + (i + 1) + " FETCH ("
+                        + (byUid ? "UID " + m.getUid() + " " : "")
+                        + "FLAGS " + flagList(flags) + ")");
+            }
+        }
+        out.writeLine(tag + " OK " + name + " completed");
+    }
+
+    /** One data item of a FETCH command. */
+    private static final class FetchItem {
+        // FLAGS, UID, RFC822.SIZE, INTERNALDATE or BODY (any message content)
+        final String name;
+        // For BODY: "", HEADER, TEXT, HEADER.FIELDS, HEADER.FIELDS.NOT or a part number
+        final String section;
+        final List<String> fields;
+        final boolean setsSeen;
+        // Partial range <offset.length>; offset -1 for the whole section
+        final long offset;
+        final long length;
+        // Item name in the response
+        final String label;
+
+        FetchItem(String name, String section, List<String> fields, boolean setsSeen,
+                  long offset, long length, String label) {
+            this.name = name;
+            this.section = section;
+            this.fields = fields;
+            this.setsSeen = setsSeen;
+            this.offset = offset;
+            this.length = length;
+            this.label = label;
+        }
+    }
+
+    private void handleFetch(String tag, List<Object> args, boolean byUid, ProtocolOutput out)
+            throws IOException {
+        String name = byUid ? "UID FETCH" : "FETCH";
+        if (args.size() != 2 || !(args.get(0) instanceof String)) {
+            out.writeLine(tag + " BAD " + name + " expects a message set and data items");
+            return;
+        }
+        List<FetchItem> items = new ArrayList<>();
+        if (byUid) {
+            items.add(new FetchItem("UID", null, null, false, -1, -1, "UID"));
+        }
+        List<Object> requested = args.get(1) instanceof List ? castList(args.get(1)) : List.of(args.get(1));
+        for (Object o : requested) {
+            if (!(o instanceof String) || !addFetchItems((String) o, items)) {
+                out.writeLine(tag + " BAD Unsupported data item: " + o);
+                return;
+            }
+        }
+        int[] targets = resolve((String) args.get(0), byUid);
+        if (targets == null) {
+            out.writeLine(tag + " BAD Invalid message set");
+            return;
+        }
+        for (int i : targets) {
+            fetchOne(i, items, out);
+        }
+        out.writeLine(tag + " OK " + name + " completed");
+    }
+
+    private void fetchOne(int index, List<FetchItem> items, ProtocolOutput out) throws IOException {
+        StoredMessage m = messages.get(index);
+        boolean addFlags = false;
+        if (!readOnly && (m.getFlags() & StoredMessage.FLAG_SEEN) == 0
+                && items.stream().anyMatch(item -> item.setsSeen)) {
+            int flags = m.getFlags() | StoredMessage.FLAG_SEEN;
+            mailboxManager.setFlags(m, flags);
+            m = m.withFlags(flags);
+            messages.set(index, m);
+            // Clients learn about implicit flag changes in the same response
+            addFlags = items.stream().noneMatch(item -> item.name.equals("FLAGS"));
+        }
+
+        StringBuilder line = new StringBuilder("* ").append(index + 1).append(" FETCH (");
+        boolean first = true;
+        for (FetchItem item : items) {
+            if (!first) {
+                line.append(' ');
+            }
+            first = false;
+            switch (item.name) {
+                case "FLAGS":
+                    line.append("FLAGS ").append(flagList(m.getFlags()));
+                    break;
+                case "UID":
+                    line.append("UID ").append(m.getUid());
+                    break;
+                case "RFC822.SIZE":
+                    line.append("RFC822.SIZE ").append(contentSize(m));
+                    break;
+                case "INTERNALDATE":
+                    String date = internalDate(mailboxManager.messageStructure(m).getHeader("Date"));
+                    line.append("INTERNALDATE \"").append(date).append('"');
+                    break;
+                default:
+                    MessageStructure structure = mailboxManager.messageStructure(m);
+                    byte[] data = null;
+                    long start = 0;
+                    long end;
+                    switch (item.section) {
+                        case "":
+                            end = structure.getSize();
+                            break;
+                        case "HEADER":
+                            end = structure.getHeaderLength();
+                            data = cachedHeader(structure);
+                            break;
+                        case "TEXT":
+                            start = structure.getHeaderLength();
+                            end = structure.getSize();
+                            break;
+                        case "HEADER.FIELDS":
+                        case "HEADER.FIELDS.NOT":
+                            data = headerFields(structure, item);
+                            end = data.length;
+                            break;
+                        default:
+                            // A part number: the body of that MIME part
+                            MessageStructure.Part part = structure.getPart(item.section);
+                            start = part != null ? part.getBodyStart() : 0;
+                            end = part != null ? part.getEnd() : 0;
+                    }
+                    if (item.offset >= 0) {
+                        start = Math.min(end, start + item.offset);
+                        end = Math.min(end, start + item.length);
+                    }
+                    line.append(item.label).append(" {").append(end - start).append('}');
+                    out.writeLine(line.toString());
+                    line.setLength(0);
+                    if (data != null) {
+                        out.write(data, (int) start, (int) (end - start));
+                    } else {
+                        writeRange(m, start, end - start, out);
+                    }
+            }
+        }
+        if (addFlags) {
+            line.append(" FLAGS ").append(flagList(m.getFlags()));
+        }
+        out.writeLine(line.append(')').toString());
     }
 
-    private void writeLine(OutputStream out, String s) throws IOException {
-        out.write((s + "\r\n").getBytes());
-        out.flush();
+    /**
+     * Add the items named by one FETCH argument (an item or a macro).
+     * Returns false if it is not supported.
+     */
+    private static boolean addFetchItems(String atom, List<FetchItem> items) {
+        String upper = atom.toUpperCase(Locale.ROOT);
+        switch (upper) {
+            case "FAST":
+                return addFetchItems("FLAGS", items) && addFetchItems("INTERNALDATE", items)
+                        && addFetchItems("RFC822.SIZE", items);
+            case "FLAGS":
+            case "UID":
+            case "RFC822.SIZE":
+            case "INTERNALDATE":
+                if (items.stream().noneMatch(item -> item.name.equals(upper))) {
+                    items.add(new FetchItem(upper, null, null, false, -1, -1, upper));
+                }
+                return true;
+            case "RFC822":
+                items.add(new FetchItem("BODY", "", null, true, -1, -1, upper));
+                return true;
+            case "RFC822.HEADER":
+                items.add(new FetchItem("BODY", "HEADER", null, false, -1, -1, upper));
+                return true;
+            case "RFC822.TEXT":
+                items.add(new FetchItem("BODY", "TEXT", null, true, -1, -1, upper));
+                return true;
+            default:
+                break;
+        }
+
+        boolean peek = upper.startsWith("BODY.PEEK[");
+        if (!peek && !upper.startsWith("BODY[")) {
+            // ENVELOPE, BODYSTRUCTURE and friends need a MIME parser
+            return false;
+        }
+        String rest = atom.substring(peek ? 10 : 5);
+        int close = rest.lastIndexOf(']');
+        if (close < 0) {
+            return false;
+        }
+        String section = rest.substring(0, close).toUpperCase(Locale.ROOT);
+        String label = section;
+        List<String> fields = null;
+        if (section.startsWith("HEADER.FIELDS")) {
+            boolean not = section.startsWith("HEADER.FIELDS.NOT");
+            String names = section.substring(not ? 17 : 13);
+            List<Object> parsed;
+            try {
+                parsed = parseArgs(names);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            if (parsed.size() != 1 || !(parsed.get(0) instanceof List) || castList(parsed.get(0)).isEmpty()) {
+                return false;
+            }
+            fields = new ArrayList<>();
+            for (Object o : castList(parsed.get(0))) {
+                if (!(o instanceof String)) {
+                    return false;
+                }
+                fields.add((String) o);
+            }
+            section = not ? "HEADER.FIELDS.NOT" : "HEADER.FIELDS";
+            label = section + " (" + String.join(" ", fields) + ")";
+        } else if (!section.isEmpty() && !section.equals("HEADER") && !section.equals("TEXT")
+                && !PART_NUMBER.matcher(section).matches()) {
+            return false;
+        }
+
+        long offset = -1;
+        long length = -1;
+        String partial = rest.substring(close + 1);
+        if (!partial.isEmpty()) {
+            Matcher m = PARTIAL.matcher(partial);
+            if (!m.matches()) {
+                return false;
+            }
+            offset = Long.parseLong(m.group(1));
+            length = Long.parseLong(m.group(2));
+        }
+        label = "BODY[" + label + "]" + (offset >= 0 ? "<" + offset + ">" : "");
+        items.add(new FetchItem("BODY", section, fields, !peek, offset, length, label));
+        return true;
+    }
+
+    /** Send length bytes of the message content from offset on. */
+    private void writeRange(StoredMessage m, long offset, long length, ProtocolOutput out)
+            throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (m.getStuffedLines() == 0) {
+            // Straight from the file, like POP3 RETR
+            out.transferFrom(mailboxManager.openMessage(m).narrow(offset, length));
+            return;
+        }
+        byte[] buf = new byte[(int) Math.min(length, 8192)];
+        try (InputStream in = mailboxManager.openMessageContent(m)) {
+            if (in.skip(offset) != offset) {
+                throw new IOException("Message file truncated");
+            }
+            long remaining = length;
+            while (remaining > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n < 0) {
+                    throw new IOException("Message file truncated");
+                }
+                out.write(buf, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    /**
+     * BODY[HEADER] from the structure cache, or null if the cached fields
+     * are not the whole header (then it is read from the file).
+     */
+    private static byte[] cachedHeader(MessageStructure structure) {
+        if (!structure.isHeaderComplete()) {
+            return null;
+        }
+        StringBuilder header = new StringBuilder();
+        for (String field : structure.getHeaderFields()) {
+            header.append(field);
+        }
+        byte[] data = header.append("\r\n").toString().getBytes(LineScanner.CHARSET);
+        return data.length == structure.getHeaderLength() ? data : null;
+    }
+
+    /** BODY[HEADER.FIELDS (...)] and BODY[HEADER.FIELDS.NOT (...)]. */
+    private static byte[] headerFields(MessageStructure structure, FetchItem item) {
+        boolean not = item.section.equals("HEADER.FIELDS.NOT");
+        StringBuilder result = new StringBuilder();
+        for (String field : structure.getHeaderFields()) {
+            int colon = field.indexOf(':');
+            String name = colon < 0 ? "" : field.substring(0, colon).trim();
+            boolean listed = item.fields.stream().anyMatch(name::equalsIgnoreCase);
+            if (listed != not) {
+                result.append(field);
+            }
+        }
+        return result.append("\r\n").toString().getBytes(LineScanner.CHARSET);
+    }
+
+    /**
+     * Arrival times are not recorded, so INTERNALDATE is the Date header
+     * (the epoch if there is none or it cannot be parsed).
+     */
+    private static String internalDate(String date) {
+        ZonedDateTime time = NO_DATE;
+        if (date != null) {
+            // Drop a trailing comment such as "(CET)"
+            int comment = date.indexOf('(');
+            if (comment >= 0) {
+                date = date.substring(0, comment);
+            }
+            try {
+                time = ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            } catch (DateTimeParseException ignored) {
+            }
+        }
+        return INTERNALDATE_FORMAT.format(time);
+    }
+
+    /**
+     * Resolve a sequence set ("1:4,7,9:*") to message indexes in ascending
+     * order. Returns null if it is malformed or names a sequence number
+     * that does not exist; UIDs that do not exist are skipped.
+     */
+    private int[] resolve(String set, boolean byUid) {
+        int count = messages.size();
+        long max = byUid ? uidNext(messages) - 1 : count;
+        boolean[] hit = new boolean[count];
+        for (String range : set.split(",", -1)) {
+            int colon = range.indexOf(':');
+            long a = parseNumber(colon < 0 ? range : range.substring(0, colon), max);
+            long b = colon < 0 ? a : parseNumber(range.substring(colon + 1), max);
+            if (a < 0 || b < 0) {
+                return null;
+            }
+            long low = Math.min(a, b);
+            long high = Math.max(a, b);
+            if (byUid) {
+                for (int i = 0; i < count; i++) {
+                    long uid = messages.get(i).getUid();
+                    hit[i] |= uid >= low && uid <= high;
+                }
+            } else {
+                if (low < 1 || high > count) {
+                    return null;
+                }
+                for (long n = low; n <= high; n++) {
+                    hit[(int) n - 1] = true;
+                }
+            }
+        }
+        int n = 0;
+        int[] indexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (hit[i]) {
+                indexes[n++] = i;
+            }
+        }
+        return Arrays.copyOf(indexes, n);
+    }
+
+    private static long parseNumber(String s, long max) {
+        if (s.equals("*")) {
+            return max;
+        }
+        try {
+            long n = Long.parseLong(s);
+            return n > 0 ? n : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long uidNext(List<StoredMessage> listed) {
+        return listed.isEmpty() ? 1 : listed.get(listed.size() - 1).getUid() + 1;
+    }
+
+    private static String flagList(int flags) {
+        StringBuilder list = new StringBuilder("(");
+        for (int bit = 0; bit < FLAG_NAMES.length; bit++) {
+            if ((flags & (1 << bit)) != 0) {
+                if (list.length() > 1) {
+                    list.append(' ');
+                }
+                list.append(FLAG_NAMES[bit]);
+            }
+        }
+        return list.append(')').toString();
+    }
+
+    /** The FLAG_ bit of a system flag name, 0 if it is not one we store. */
+    private static int flagBit(String name) {
+        for (int bit = 0; bit < FLAG_NAMES.length; bit++) {
+            if (FLAG_NAMES[bit].equalsIgnoreCase(name)) {
+                return 1 << bit;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean matchesInbox(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '%') {
+                regex.append("[^/]*");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE).matcher(INBOX).matches();
+    }
+
+    private static String tagOf(String command) {
+        int space = command.indexOf(' ');
+        String tag = space < 0 ? command : command.substring(0, space);
+        return tag.isEmpty() ? "*" : tag;
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> castList(Object o) {
+        return (List<Object>) o;
+    }
+
+    /**
+     * Split a command into atoms and strings (as String) and parenthesized
+     * lists (as List). An atom keeps any [...] part whole, spaces included,
+     * as in BODY[HEADER.FIELDS (FROM TO)]<0.100>.
+     */
+    private static List<Object> parseArgs(String s) {
+        int[] pos = {0};
+        return parseList(s, pos, false);
+    }
+
+    private static List<Object> parseList(String s, int[] pos, boolean nested) {
+        List<Object> items = new ArrayList<>();
+        while (true) {
+            while (pos[0] < s.length() && s.charAt(pos[0]) == ' ') {
+                pos[0]++;
+            }
+            if (pos[0] >= s.length()) {
+                if (nested) {
+                    throw new IllegalArgumentException("Missing )");
+                }
+                return items;
+            }
+            char c = s.charAt(pos[0]);
+            if (c == ')') {
+                if (!nested) {
+                    throw new IllegalArgumentException("Unexpected )");
+                }
+                pos[0]++;
+                return items;
+            } else if (c == '(') {
+                pos[0]++;
+                items.add(parseList(s, pos, true));
+            } else if (c == '"') {
+                items.add(parseQuoted(s, pos));
+            } else {
+                items.add(parseAtom(s, pos));
+            }
+        }
+    }
+
+    private static String parseQuoted(String s, int[] pos) {
+        StringBuilder value = new StringBuilder();
+        int i = pos[0] + 1;
+        while (i < s.length()) {
+            char c = s.charAt(i++);
+            if (c == '"') {
+                pos[0] = i;
+                return value.toString();
+            }
+            if (c == '\\' && i < s.length()) {
+                c = s.charAt(i++);
+            }
+            value.append(c);
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    private static String parseAtom(String s, int[] pos) {
+        int start = pos[0];
+        int i = start;
+        int depth = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (depth == 0 && (c == ' ' || c == '(' || c == ')')) {
+                break;
+            }
+            if (c == '[') {
+                depth++;
+            } else if (c == ']' && depth > 0) {
+                depth--;
+            }
+            i++;
+        }
+        if (depth > 0) {
+            throw new IllegalArgumentException("Missing ]");
+        }
+        pos[0] = i;
+        return s.substring(start, i);
     }
 }
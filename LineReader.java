@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Blocking input for the protocol handlers: one reusable read buffer and a
+ * LineScanner, instead of a BufferedReader over an InputStreamReader in the
+ * platform charset. Lines and raw byte counts (SMTP BDAT) can be read in
+ * any order from the same buffer.
+ */
+public class LineReader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** A line went over LineScanner.MAX_LINE_LENGTH; it has been skipped. */
+    public static class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LineTooLongException() {
+            super("Line longer than " + LineScanner.MAX_LINE_LENGTH + " bytes");
+        }
+    }
+
+    private final InputStream in;
+    // Unread input, always in read mode (position..limit)
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final LineScanner scanner = new LineScanner();
+
+    public LineReader(InputStream in) {
+        this.in = in;
+        buffer.limit(0);
+    }
+
+    /**
+     * The next line without its terminator, or null at end of input.
+     */
+    public String readLine() throws IOException {
+        while (!scanner.scan(buffer)) {
+            if (!fill()) {
+                // Unterminated last line
+                if (!scanner.hasPartialLine()) {
+                    return null;
+                }
+                break;
+            }
+        }
+        if (scanner.isTooLong()) {
+            scanner.takeLine();
+            throw new LineTooLongException();
+        }
+        return scanner.takeLine();
+    }
+
+    /**
+     * Up to max raw bytes, as a view of the read buffer that is valid until
+     * the next call; null at end of input. Blocks only if nothing is
+     * buffered.
+     */
+    public ByteBuffer readBytes(long max) throws IOException {
+        if (!buffer.hasRemaining() && !fill()) {
+            return null;
+        }
+        int n = (int) Math.min(max, buffer.remaining());
+        ByteBuffer data = buffer.slice(buffer.position(), n);
+        buffer.position(buffer.position() + n);
+        return data;
+    }
+
+    /** True if input is available without blocking. */
+    public boolean ready() throws IOException {
+        return buffer.hasRemaining() || in.available() > 0;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer.array(), 0, buffer.capacity());
+        if (n < 0) {
+            buffer.limit(0);
+            return false;
+        }
+        buffer.position(0);
+        buffer.limit(n);
+        return true;
+    }
+}
@@ -0,0 +1,87 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits protocol input into lines at the byte level, for both the blocking
+ * LineReader and the selector front end. Lines end at LF (a preceding CR is
+ * dropped) and are decoded as ISO-8859-1, which maps every byte to one char
+ * and back: commands are ASCII anyway, and 8-bit message content reaches
+ * the spool unchanged whatever the platform charset is.
+ *
+ * A line longer than MAX_LINE_LENGTH is consumed up to its end but not
+ * kept; isTooLong() tells the caller to reject it.
+ */
+final class LineScanner {
+
+    // Far above the 1000 octets RFC 5321 allows for a text line
+    static final int MAX_LINE_LENGTH = 8192;
+    static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+    private static final int INITIAL_CAPACITY = 128;
+
+    // Reused for every line of the connection; grows up to MAX_LINE_LENGTH
+    private byte[] line = new byte[INITIAL_CAPACITY];
+    private int length;
+    private boolean tooLong;
+
+    /**
+     * Consume bytes from a heap buffer up to and including the next LF.
+     * Returns true if a line is complete; the buffer is then positioned
+     * after it. Otherwise everything was consumed into the partial line.
+     */
+    boolean scan(ByteBuffer buf) {
+        byte[] src = buf.array();
+        int start = buf.arrayOffset() + buf.position();
+        int end = buf.arrayOffset() + buf.limit();
+        int i = start;
+        while (i < end && src[i] != '\n') {
+            i++;
+        }
+        append(src, start, i - start);
+        if (i < end) {
+            buf.position(i + 1 - buf.arrayOffset());
+            return true;
+        }
+        buf.position(buf.limit());
+        return false;
+    }
+
+    /** True if the completed line went over MAX_LINE_LENGTH. */
+    boolean isTooLong() {
+        return tooLong;
+    }
+
+    boolean hasPartialLine() {
+        return length > 0 || tooLong;
+    }
+
+    /** The completed line without its terminator; the scanner starts a new one. */
+    String takeLine() {
+        int len = length;
+        if (len > 0 && line[len - 1] == '\r') {
+            len--;
+        }
+        String s = new String(line, 0, len, CHARSET);
+        length = 0;
+        tooLong = false;
+        return s;
+    }
+
+    private void append(byte[] src, int off, int len) {
+        if (tooLong || len == 0) {
+            return;
+        }
+        if (length + len > MAX_LINE_LENGTH) {
+            tooLong = true;
+            length = 0;
+            return;
+        }
+        if (length + len > line.length) {
+            line = Arrays.copyOf(line, Math.min(Math.max(line.length * 2, length + len), MAX_LINE_LENGTH));
+        }
+        System.arraycopy(src, off, line, length, len);
+        length += len;
+    }
+}
@@ -0,0 +1,749 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a running MailServer with synthetic clients and reports the
+ * throughput and latency percentiles of every command, as the clients see
+ * them:
+ *
+ *   java LoadGenerator --write-users load-users.txt --accounts 1000
+ *   java MailServer uliege.be 64 --users load-users.txt --per-ip 0 \
+ *        --relay-port 2525 --dns 127.0.0.1:5353
+ *   java LoadGenerator --senders 500 --pop3 100 --imap 100 --duration 120
+ *
+ * Senders run SMTP sessions back to back (EHLO, then MAIL, RCPT and DATA
+ * for each message, QUIT); message sizes and recipients per message follow
+ * weighted distributions, and each recipient is local (one of the load
+ * accounts) or remote with a given probability. POP3 and IMAP readers log
+ * in to the load accounts, list the mailbox, retrieve some messages and
+ * delete them, so mailboxes stay small however long the run. Every client
+ * is a virtual thread, so thousands of them cost little.
+ *
+ * Remote recipients are delivered by the server to an SmtpSink in this
+ * process, which StubDnsServer names as the MX of every domain; the
+ * server must be started with the --relay-port and --dns options above,
+ * and with --per-ip 0 since every client comes from one address.
+ *
+ * The clients are closed-loop: each waits for a reply before its next
+ * command, so latencies are those of the offered load, which itself
+ * drops when the server slows down. Use --think to model idle time
+ * between sessions. Nothing is measured during the warmup.
+ */
+public class LoadGenerator {
+
+    private static final String PASSWORD = "password";
+    private static final String SENDER = "loadgen@loadgen.test";
+    private static final String REMOTE_DOMAIN_SUFFIX = ".loadgen.test";
+    private static final int SOCKET_TIMEOUT_MILLIS = 60_000;
+    // Pause after a failed session, so a refusing server is not spun on
+    private static final long ERROR_PAUSE_MILLIS = 100;
+    private static final int PROGRESS_SECONDS = 5;
+    private static final byte[] END_OF_DATA = ".\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final String[] WORDS = {
+        "mail", "server", "load", "test", "message", "latency", "throughput", "queue",
+        "delivery", "mailbox", "protocol", "session", "client", "reply", "command", "the",
+    };
+
+    /** Latency and failures of one protocol command. */
+    private static final class Command {
+        final Histogram latency = new Histogram();
+        final LongAdder errors = new LongAdder();
+        // An example of what went wrong, for the report
+        volatile String lastError;
+    }
+
+    /** A command's reply was not the expected one; the session is abandoned. */
+    private static final class UnexpectedReplyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnexpectedReplyException(String command, String reply) {
+            super(command + ": " + reply);
+        }
+    }
+
+    /** One exchange with the server, returning the reply that decides success. */
+    private interface Exchange {
+        String run() throws IOException;
+    }
+
+    /** Values drawn with weights, parsed from "value:weight,value:weight,...". */
+    static final class Distribution {
+        private final long[] values;
+        private final long[] cumulative;
+
+        Distribution(String spec) {
+            String[] entries = spec.split(",");
+            values = new long[entries.length];
+            cumulative = new long[entries.length];
+            long total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].trim().split(":");
+                long weight = parts.length == 2 ? Long.parseLong(parts[1]) : 1;
+                if (weight <= 0) {
+                    throw new IllegalArgumentException("Weights must be positive: " + spec);
+                }
+                values[i] = parseSize(parts[0]);
+                total += weight;
+                cumulative[i] = total;
+            }
+        }
+
+        long pick() {
+            long r = ThreadLocalRandom.current().nextLong(cumulative[cumulative.length - 1]);
+            int i = 0;
+            while (cumulative[i] <= r) {
+                i++;
+            }
+            return values[i];
+        }
+
+        long[] values() {
+            return values;
+        }
+
+        /** "64", "16k" or "2m". */
+        private static long parseSize(String text) {
+            String t = text.trim().toLowerCase(Locale.ROOT);
+            long unit = 1;
+            if (t.endsWith("k")) {
+                unit = 1024;
+            } else if (t.endsWith("m")) {
+                unit = 1024 * 1024;
+            }
+            long value = Long.parseLong(unit == 1 ? t : t.substring(0, t.length() - 1));
+            if (value <= 0) {
+                throw new IllegalArgumentException("Not a positive value: " + text);
+            }
+            return value * unit;
+        }
+    }
+
+    /** A client connection: lines out, replies read with a LineReader. */
+    private static final class Connection implements Closeable {
+        private final Socket socket;
+        private final LineReader in;
+        private final OutputStream out;
+        private int nextTag;
+        // From the last IMAP SELECT
+        private int exists;
+
+        Connection(String host, int port) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), SOCKET_TIMEOUT_MILLIS);
+                socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+                in = new LineReader(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        void send(String line) throws IOException {
+            out.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        String readLine() throws IOException {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException("Connection closed by server");
+            }
+            return line;
+        }
+
+        /** SMTP: the last line of a possibly multi-line reply. */
+        String smtp(String line) throws IOException {
+            send(line);
+            return smtpReply();
+        }
+
+        String smtpReply() throws IOException {
+            String reply = readLine();
+            while (reply.length() > 3 && reply.charAt(3) == '-') {
+                reply = readLine();
+            }
+            return reply;
+        }
+
+        /** POP3: the status line, after reading a multi-line body up to its dot. */
+        String pop3(String line, boolean multiLine) throws IOException {
+            send(line);
+            String status = readLine();
+            if (multiLine && status.startsWith("+OK")) {
+                while (!readLine().equals(".")) {
+                    // Listing or message lines, dot-stuffed; only the end matters
+                }
+            }
+            return status;
+        }
+
+        /** IMAP: the tagged status ("OK ...", "NO ...") after the untagged responses. */
+        String imap(String command) throws IOException {
+            String tag = "a" + (++nextTag);
+            send(tag + " " + command);
+            while (true) {
+                String line = readLine();
+                if (line.startsWith(tag + " ")) {
+                    return line.substring(tag.length() + 1);
+                }
+                if (line.startsWith("* ") && line.endsWith(" EXISTS")) {
+                    exists = Integer.parseInt(line.substring(2, line.length() - 7));
+                }
+                skipLiteral(line);
+            }
+        }
+
+        /** A line ending in "{n}" is followed by n bytes of literal data. */
+        private void skipLiteral(String line) throws IOException {
+            int open = line.lastIndexOf('{');
+            if (open < 0 || !line.endsWith("}")) {
+                return;
+            }
+            long remaining = Long.parseLong(line.substring(open + 1, line.length() - 1));
+            while (remaining > 0) {
+                ByteBuffer data = in.readBytes(remaining);
+                if (data == null) {
+                    throw new IOException("Connection closed by server");
+                }
+                remaining -= data.remaining();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    // Options
+    private String host = "127.0.0.1";
+    private String domain = "uliege.be";
+    private int smtpPort = 25;
+    private int pop3Port = 110;
+    private int imapPort = 143;
+    private int senders = 100;
+    private int pop3Readers = 20;
+    private int imapReaders = 20;
+    private int warmupSeconds = 10;
+    private int durationSeconds = 60;
+    private Distribution sizes = new Distribution("2k:60,16k:30,256k:9,2m:1");
+    private Distribution fanout = new Distribution("1:80,3:15,20:5");
+    private double localShare = 0.8;
+    private int messagesPerSession = 1;
+    private int retrievePerSession = 10;
+    private long thinkMillis;
+    private int accounts = 100;
+    private int remoteDomains = 50;
+    private int sinkPort = 2525;
+    private int dnsPort = 5353;
+    private String sinkAddress = "127.0.0.1";
+    private int dnsTtl = 300;
+
+    private final Map<String, Command> commands = new LinkedHashMap<>();
+    // Message in wire form for each size of the distribution
+    private final Map<Long, byte[]> messages = new HashMap<>();
+    private volatile boolean running = true;
+    private volatile boolean measuring;
+
+    // Sessions completed, counted throughout (progress lines)
+    private final LongAdder smtpSessions = new LongAdder();
+    private final LongAdder pop3Sessions = new LongAdder();
+    private final LongAdder imapSessions = new LongAdder();
+    private final LongAdder sessionErrors = new LongAdder();
+    private final LongAdder messagesAccepted = new LongAdder();
+    // Measured only
+    private final LongAdder measuredMessages = new LongAdder();
+    private final LongAdder measuredBytes = new LongAdder();
+    private final LongAdder measuredLocal = new LongAdder();
+    private final LongAdder measuredRemote = new LongAdder();
+
+    private SmtpSink sink;
+    private StubDnsServer dns;
+
+    private LoadGenerator() {
+        for (String c : new String[] {"CONNECT", "EHLO", "MAIL", "RCPT", "DATA", ".", "QUIT"}) {
+            commands.put("SMTP " + c, new Command());
+        }
+        for (String c : new String[] {"CONNECT", "USER", "PASS", "STAT", "LIST", "RETR", "DELE", "QUIT"}) {
+            commands.put("POP3 " + c, new Command());
+        }
+        for (String c : new String[] {"CONNECT", "LOGIN", "SELECT", "FETCH", "FETCH BODY[]",
+                                      "STORE", "EXPUNGE", "LOGOUT"}) {
+            commands.put("IMAP " + c, new Command());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        File usersFile = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 >= args.length) {
+                    usage("Missing value for " + option);
+                }
+                String value = args[++i];
+                switch (option) {
+                    case "--host":
+                        generator.host = value;
+                        break;
+                    case "--domain":
+                        generator.domain = value;
+                        break;
+                    case "--smtp-port":
+                        generator.smtpPort = Integer.parseInt(value);
+                        break;
+                    case "--pop3-port":
+                        generator.pop3Port = Integer.parseInt(value);
+                        break;
+                    case "--imap-port":
+                        generator.imapPort = Integer.parseInt(value);
+                        break;
+                    case "--senders":
+                        generator.senders = Integer.parseInt(value);
+                        break;
+                    case "--pop3":
+                        generator.pop3Readers = Integer.parseInt(value);
+                        break;
+                    case "--imap":
+                        generator.imapReaders = Integer.parseInt(value);
+                        break;
+                    case "--warmup":
+                        generator.warmupSeconds = Integer.parseInt(value);
+                        break;
+                    case "--duration":
+                        generator.durationSeconds = Integer.parseInt(value);
+                        break;
+                    case "--sizes":
+                        generator.sizes = new Distribution(value);
+                        break;
+                    case "--fanout":
+                        generator.fanout = new Distribution(value);
+                        break;
+                    case "--local":
+                        generator.localShare = Double.parseDouble(value);
+                        break;
+                    case "--messages":
+                        generator.messagesPerSession = Integer.parseInt(value);
+                        break;
+                    case "--retrieve":
+                        generator.retrievePerSession = Integer.parseInt(value);
+                        break;
+                    case "--think":
+                        generator.thinkMillis = Long.parseLong(value);
+                        break;
+                    case "--accounts":
+                        generator.accounts = Integer.parseInt(value);
+                        break;
+                    case "--remote-domains":
+                        generator.remoteDomains = Integer.parseInt(value);
+                        break;
+                    case "--sink-port":
+                        generator.sinkPort = Integer.parseInt(value);
+                        break;
+                    case "--dns-port":
+                        generator.dnsPort = Integer.parseInt(value);
+                        break;
+                    case "--sink-address":
+                        generator.sinkAddress = value;
+                        break;
+                    case "--dns-ttl":
+                        generator.dnsTtl = Integer.parseInt(value);
+                        break;
+                    case "--write-users":
+                        usersFile = new File(value);
+                        break;
+                    default:
+                        usage("Unknown option: " + option);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+        if (usersFile != null) {
+            generator.writeUsers(usersFile);
+            return;
+        }
+        generator.run();
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: java LoadGenerator [--write-users <file>] [--host <host>] [--domain <domain>]"
+                + " [--smtp-port|--pop3-port|--imap-port <port>] [--senders <n>] [--pop3 <n>] [--imap <n>]"
+                + " [--warmup <s>] [--duration <s>] [--sizes <size:weight,...>] [--fanout <rcpts:weight,...>]"
+                + " [--local <share>] [--messages <per session>] [--retrieve <per session>] [--think <ms>]"
+                + " [--accounts <n>] [--remote-domains <n>] [--sink-port <port>] [--dns-port <port>]"
+                + " [--sink-address <ipv4>] [--dns-ttl <s>]");
+        System.exit(1);
+    }
+
+    /**
+     * Write a users file with the load accounts load1..loadN@domain, all
+     * with the same password. One credential serves them all, so writing
+     * a million accounts costs one PBKDF2 derivation.
+     */
+    private void writeUsers(File file) throws IOException {
+        String credential = UserManager.hashPassword(PASSWORD);
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            w.write("# LoadGenerator accounts, password \"" + PASSWORD + "\"\n");
+            for (int i = 1; i <= accounts; i++) {
+                w.write(account(i) + " " + credential + "\n");
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Wrote " + accounts + " accounts to " + file);
+    }
+
+    private String account(int i) {
+        return "load" + i + "@" + domain;
+    }
+
+    private void run() throws Exception {
+        for (long size : sizes.values()) {
+            messages.put(size, message(size));
+        }
+        InetAddress mailHost = InetAddress.getByName(sinkAddress);
+        if (!(mailHost instanceof Inet4Address)) {
+            usage("--sink-address must be an IPv4 address");
+        }
+        sink = new SmtpSink();
+        sink.start(sinkPort);
+        dns = new StubDnsServer((Inet4Address) mailHost, dnsTtl);
+        dns.start(dnsPort);
+        System.out.println("SMTP sink on port " + sinkPort + ", stub DNS on port " + dnsPort
+                + "; run the server with --relay-port " + sinkPort + " --dns " + sinkAddress + ":" + dnsPort
+                + " --per-ip 0");
+        System.out.println("Load: " + senders + " SMTP senders, " + pop3Readers + " POP3 and " + imapReaders
+                + " IMAP readers against " + host + ", " + warmupSeconds + " s warmup, "
+                + durationSeconds + " s measured");
+
+        ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+        // Started over the first half of the warmup, not all in the same instant
+        int total = senders + pop3Readers + imapReaders;
+        long spreadMillis = warmupSeconds * 500L;
+        int started = 0;
+        for (int i = 0; i < senders; i++) {
+            long delay = spreadMillis * started++ / Math.max(1, total);
+            clients.execute(() -> loop(delay, this::smtpSession, smtpSessions));
+        }
+        int readers = pop3Readers + imapReaders;
+        for (int i = 0; i < readers; i++) {
+            int reader = i;
+            long delay = spreadMillis * started++ / Math.max(1, total);
+            if (i < pop3Readers) {
+                clients.execute(() -> loop(delay, () -> pop3Session(readerAccount(reader, readers)), pop3Sessions));
+            } else {
+                clients.execute(() -> loop(delay, () -> imapSession(readerAccount(reader, readers)), imapSessions));
+            }
+        }
+
+        long begin = System.nanoTime();
+        progress(begin, warmupSeconds, "warmup");
+        measuring = true;
+        long measureStart = System.nanoTime();
+        long sinkMessages = sink.getMessages();
+        long sinkRecipients = sink.getRecipients();
+        long dnsQueries = dns.getQueries();
+        progress(begin, warmupSeconds + durationSeconds, "measure");
+        measuring = false;
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        running = false;
+
+        report(seconds, sink.getMessages() - sinkMessages, sink.getRecipients() - sinkRecipients,
+                dns.getQueries() - dnsQueries);
+        clients.shutdownNow();
+        sink.stop();
+        dns.stop();
+    }
+
+    /** Sessions back to back until the run ends. */
+    private void loop(long delayMillis, Exchange session, LongAdder sessions) {
+        pause(delayMillis);
+        while (running) {
+            try {
+                session.run();
+                sessions.increment();
+                pause(thinkMillis);
+            } catch (IOException e) {
+                sessionErrors.increment();
+                pause(ERROR_PAUSE_MILLIS);
+            }
+        }
+    }
+
+    private static void pause(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Accounts are split between readers (reader r of n owns accounts r+1,
+     * r+1+n, ...), so two readers never delete from the same mailbox; with
+     * more readers than accounts, some share one.
+     */
+    private int readerAccount(int reader, int readers) {
+        if (readers > accounts) {
+            return reader % accounts + 1;
+        }
+        int owned = (accounts - reader + readers - 1) / readers;
+        return reader + 1 + readers * ThreadLocalRandom.current().nextInt(owned);
+    }
+
+    /** Progress lines every few seconds until untilSeconds after begin. */
+    private void progress(long begin, int untilSeconds, String phase) {
+        long lastSmtp = smtpSessions.sum();
+        long lastPop3 = pop3Sessions.sum();
+        long lastImap = imapSessions.sum();
+        long lastMessages = messagesAccepted.sum();
+        long lastSink = sink.getMessages();
+        long lastErrors = sessionErrors.sum();
+        long last = System.nanoTime();
+        long end = begin + untilSeconds * 1_000_000_000L;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                return;
+            }
+            pause(Math.min(PROGRESS_SECONDS * 1000L, (end - now) / 1_000_000 + 1));
+            now = System.nanoTime();
+            double interval = (now - last) / 1e9;
+            long smtp = smtpSessions.sum();
+            long pop3 = pop3Sessions.sum();
+            long imap = imapSessions.sum();
+            long accepted = messagesAccepted.sum();
+            long sunk = sink.getMessages();
+            long errors = sessionErrors.sum();
+            System.out.printf(Locale.ROOT,
+                    "[%4ds] %-7s %8.1f msg/s accepted  %8.1f msg/s to sink  sessions/s smtp %.1f pop3 %.1f"
+                    + " imap %.1f  failed sessions %d%n",
+                    (now - begin) / 1_000_000_000L, phase, (accepted - lastMessages) / interval,
+                    (sunk - lastSink) / interval, (smtp - lastSmtp) / interval, (pop3 - lastPop3) / interval,
+                    (imap - lastImap) / interval, errors - lastErrors);
+            lastSmtp = smtp;
+            lastPop3 = pop3;
+            lastImap = imap;
+            lastMessages = accepted;
+            lastSink = sunk;
+            lastErrors = errors;
+            last = now;
+        }
+    }
+
+    private void report(double seconds, long sinkMessages, long sinkRecipients, long dnsQueries) {
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Measured %.1f s%n", seconds);
+        System.out.printf(Locale.ROOT, "%-18s %10s %10s %8s %10s %10s %10s%n",
+                "command", "count", "per s", "errors", "p50 ms", "p99 ms", "p99.9 ms");
+        for (Map.Entry<String, Command> e : commands.entrySet()) {
+            Histogram h = e.getValue().latency;
+            long errors = e.getValue().errors.sum();
+            if (h.getCount() == 0 && errors == 0) {
+                continue;
+            }
+            System.out.printf(Locale.ROOT, "%-18s %10d %10.1f %8d %10.2f %10.2f %10.2f%n",
+                    e.getKey(), h.getCount(), h.getCount() / seconds, errors,
+                    h.percentile(0.5) / 1e6, h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6);
+        }
+        for (Map.Entry<String, Command> e : commands.entrySet()) {
+            String error = e.getValue().lastError;
+            if (error != null) {
+                System.out.println("Last " + e.getKey() + " error: " + error);
+            }
+        }
+        long accepted = measuredMessages.sum();
+        System.out.printf(Locale.ROOT, "Messages accepted: %d (%.1f/s, %.2f MB/s), recipients local %d, remote %d%n",
+                accepted, accepted / seconds, measuredBytes.sum() / seconds / (1024 * 1024),
+                measuredLocal.sum(), measuredRemote.sum());
+        System.out.printf(Locale.ROOT, "Remote deliveries to the sink: %d messages (%.1f/s), %d recipients;"
+                + " DNS queries answered: %d%n", sinkMessages, sinkMessages / seconds, sinkRecipients, dnsQueries);
+    }
+
+    /**
+     * Time one exchange under a command's name; anything but the expected
+     * reply counts as an error and ends the session.
+     */
+    private String timed(String command, String expected, Exchange exchange) throws IOException {
+        Command c = commands.get(command);
+        long start = System.nanoTime();
+        String reply;
+        try {
+            reply = exchange.run();
+        } catch (IOException e) {
+            if (measuring) {
+                c.errors.increment();
+                c.lastError = e.toString();
+            }
+            throw e;
+        }
+        if (!reply.startsWith(expected)) {
+            if (measuring) {
+                c.errors.increment();
+                c.lastError = reply;
+            }
+            throw new UnexpectedReplyException(command, reply);
+        }
+        if (measuring) {
+            c.latency.recordSince(start);
+        }
+        return reply;
+    }
+
+    /** Connect and read the greeting, timed together. */
+    private Connection connect(String protocol, int port, String expected) throws IOException {
+        Connection[] conn = new Connection[1];
+        try {
+            timed(protocol + " CONNECT", expected, () -> {
+                conn[0] = new Connection(host, port);
+                return protocol.equals("SMTP") ? conn[0].smtpReply() : conn[0].readLine();
+            });
+        } catch (IOException e) {
+            if (conn[0] != null) {
+                conn[0].close();
+            }
+            throw e;
+        }
+        return conn[0];
+    }
+
+    private String smtpSession() throws IOException {
+        try (Connection c = connect("SMTP", smtpPort, "220")) {
+            timed("SMTP EHLO", "250", () -> c.smtp("EHLO loadgen.test"));
+            for (int m = 0; m < messagesPerSession; m++) {
+                byte[] message = messages.get(sizes.pick());
+                timed("SMTP MAIL", "250", () -> c.smtp("MAIL FROM:<" + SENDER + ">"));
+                long rcpts = fanout.pick();
+                int local = 0;
+                for (int r = 0; r < rcpts; r++) {
+                    boolean isLocal = ThreadLocalRandom.current().nextDouble() < localShare;
+                    String rcpt = isLocal ? localRecipient() : remoteRecipient();
+                    timed("SMTP RCPT", "250", () -> c.smtp("RCPT TO:<" + rcpt + ">"));
+                    local += isLocal ? 1 : 0;
+                }
+                timed("SMTP DATA", "354", () -> c.smtp("DATA"));
+                timed("SMTP .", "250", () -> {
+                    c.out.write(message);
+                    c.out.write(END_OF_DATA);
+                    c.out.flush();
+                    return c.smtpReply();
+                });
+                messagesAccepted.increment();
+                if (measuring) {
+                    measuredMessages.increment();
+                    measuredBytes.add(message.length);
+                    measuredLocal.add(local);
+                    measuredRemote.add(rcpts - local);
+                }
+            }
+            return timed("SMTP QUIT", "221", () -> c.smtp("QUIT"));
+        }
+    }
+
+    private String localRecipient() {
+        return account(ThreadLocalRandom.current().nextInt(accounts) + 1);
+    }
+
+    private String remoteRecipient() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return "user" + random.nextInt(1000) + "@remote" + random.nextInt(remoteDomains) + REMOTE_DOMAIN_SUFFIX;
+    }
+
+    private String pop3Session(int account) throws IOException {
+        try (Connection c = connect("POP3", pop3Port, "+OK")) {
+            timed("POP3 USER", "+OK", () -> c.pop3("USER " + account(account), false));
+            timed("POP3 PASS", "+OK", () -> c.pop3("PASS " + PASSWORD, false));
+            String stat = timed("POP3 STAT", "+OK", () -> c.pop3("STAT", false));
+            int count = Integer.parseInt(stat.split(" ")[1]);
+            timed("POP3 LIST", "+OK", () -> c.pop3("LIST", true));
+            int retrieve = Math.min(count, retrievePerSession);
+            for (int i = 1; i <= retrieve; i++) {
+                String command = "RETR " + i;
+                timed("POP3 RETR", "+OK", () -> c.pop3(command, true));
+            }
+            for (int i = 1; i <= retrieve; i++) {
+                String command = "DELE " + i;
+                timed("POP3 DELE", "+OK", () -> c.pop3(command, false));
+            }
+            return timed("POP3 QUIT", "+OK", () -> c.pop3("QUIT", false));
+        }
+    }
+
+    private String imapSession(int account) throws IOException {
+        try (Connection c = connect("IMAP", imapPort, "* OK")) {
+            timed("IMAP LOGIN", "OK", () -> c.imap("LOGIN \"" + account(account) + "\" \"" + PASSWORD + "\""));
+            timed("IMAP SELECT", "OK", () -> c.imap("SELECT INBOX"));
+            int retrieve = Math.min(c.exists, retrievePerSession);
+            if (retrieve > 0) {
+                timed("IMAP FETCH", "OK", () -> c.imap("FETCH 1:* (UID FLAGS RFC822.SIZE)"));
+                String range = "1:" + retrieve;
+                timed("IMAP FETCH BODY[]", "OK", () -> c.imap("FETCH " + range + " BODY[]"));
+                timed("IMAP STORE", "OK", () -> c.imap("STORE " + range + " +FLAGS (\\Deleted)"));
+                timed("IMAP EXPUNGE", "OK", () -> c.imap("EXPUNGE"));
+            }
+            return timed("IMAP LOGOUT", "OK", () -> c.imap("LOGOUT"));
+        }
+    }
+
+    /**
+     * A message of about size bytes in wire form: a few headers and lines
+     * of words, none starting with a dot, so it needs no stuffing.
+     */
+    private static byte[] message(long size) {
+        StringBuilder sb = new StringBuilder((int) Math.min(size + 1024, Integer.MAX_VALUE));
+        sb.append("From: <").append(SENDER).append(">\r\n")
+                .append("To: undisclosed-recipients:;\r\n")
+                .append("Subject: Load test message of ").append(size).append(" bytes\r\n")
+                .append("Message-ID: <").append(size).append('.').append(SENDER).append(">\r\n")
+                .append("MIME-Version: 1.0\r\n")
+                .append("Content-Type: text/plain; charset=US-ASCII\r\n\r\n");
+        List<String> line = new ArrayList<>();
+        int lineLength = 0;
+        int word = 0;
+        while (sb.length() < size) {
+            String w = WORDS[word++ % WORDS.length];
+            if (lineLength + w.length() + 1 > 72) {
+                sb.append(String.join(" ", line)).append("\r\n");
+                line.clear();
+                lineLength = 0;
+            }
+            line.add(w);
+            lineLength += w.length() + 1;
+        }
+        if (!line.isEmpty()) {
+            sb.append(String.join(" ", line)).append("\r\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
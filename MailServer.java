@@ -1,28 +1,232 @@
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import javax.management.JMException;
 
 public class MailServer {
 
+    /**
+     * How client sessions are executed.
+     * POOL: one platform thread per session from a fixed pool of maxThreads.
+     * VIRTUAL: one virtual thread per session, no upper bound.
+     * SELECTOR: non-blocking front end, the pool only runs commands.
+     */
+    public enum ExecutionMode { POOL, VIRTUAL, SELECTOR }
+
+    private static final String[] PROTOCOLS = {"SMTP", "POP3", "IMAP"};
+    // Sessions that may wait for a pool thread, per thread
+    private static final int WAITING_PER_THREAD = 1;
+    // Session capacity when sessions do not hold a pool thread
+    private static final int MAX_SESSIONS = 2000;
+    public static final int DEFAULT_SESSIONS_PER_IP = 20;
+    public static final double DEFAULT_CONNECTIONS_PER_IP = 20;
+    // Loopback port of the plain-text metrics
+    public static final int DEFAULT_METRICS_PORT = 9100;
+
     private final String domain;
+    // Runs the sessions (blocking modes) or their commands (selector mode)
     private final ExecutorService threadPool;
+    private final AdmissionControl admission;
     private final MailboxManager mailboxManager;
     private final UserManager userManager;
+    private final OutboundQueue outboundQueue;
+    private final ExecutionMode mode;
+
+    /**
+     * Settings of a server, from the command line or set by hand. Every
+     * setting but the domain and the thread count has a default.
+     */
+    public static final class Config {
+        private final String domain;
+        private final int maxThreads;
+        private ExecutionMode mode = ExecutionMode.POOL;
+        private boolean segmentStore = false;
+        private MessageCompression compression = null;
+        private File storageDir = new File("storage");
+        private File usersFile = new File(UserManager.DEFAULT_FILE);
+        private DNSResolver resolver = null;
+        private int relayPort = RemoteDelivery.SMTP_PORT;
+        private int sessionsPerIp = DEFAULT_SESSIONS_PER_IP;
+        private double connectionsPerIp = DEFAULT_CONNECTIONS_PER_IP;
+
+        /**
+         * @param domain     the mail domain this server is responsible for
+         * @param maxThreads size of the worker pool (pool and selector modes)
+         */
+        public Config(String domain, int maxThreads) {
+            this.domain = domain;
+            this.maxThreads = maxThreads;
+        }
+
+        public Config mode(ExecutionMode value) {
+            mode = value;
+            return this;
+        }
+
+        /** Append messages to per-mailbox segment logs instead of one file each. */
+        public Config segmentStore(boolean value) {
+            segmentStore = value;
+            return this;
+        }
+
+        /** Compress stored messages that are worth it; null (the default) to store them as they are. */
+        public Config compression(MessageCompression value) {
+            compression = value;
+            return this;
+        }
+
+        /** Directory holding the mailboxes, the outbound queue and the spool. */
+        public Config storageDir(File value) {
+            storageDir = value;
+            return this;
+        }
+
+        /** Accounts file, see UserManager; created with the default accounts if missing. */
+        public Config usersFile(File value) {
+            usersFile = value;
+            return this;
+        }
+
+        /** DNS client used to find remote MX hosts; the system's by default. */
+        public Config resolver(DNSResolver value) {
+            resolver = value;
+            return this;
+        }
+
+        /**
+         * Port used to reach remote MX hosts (normally 25; a different one
+         * lets a local SMTP sink stand in for them).
+         */
+        public Config relayPort(int value) {
+            relayPort = value;
+            return this;
+        }
+
+        /** Sessions one client address may hold at once; 0 for no limit. */
+        public Config sessionsPerIp(int value) {
+            sessionsPerIp = value;
+            return this;
+        }
+
+        /**
+         * New connections one client address may open per second, in
+         * bursts of twice that; 0 for no limit.
+         */
+        public Config connectionsPerIp(double value) {
+            connectionsPerIp = value;
+            return this;
+        }
+    }
 
     public MailServer(String domain, int maxThreads) {
+        this(new Config(domain, maxThreads));
+    }
+
+    public MailServer(Config config) {
+        String domain = config.domain;
+        int maxThreads = config.maxThreads;
+        ExecutionMode mode = config.mode;
         this.domain = domain;
-        this.threadPool = Executors.newFixedThreadPool(maxThreads);
-        this.mailboxManager = new MailboxManager();
-        this.userManager = new UserManager();
+        this.mode = mode;
+        int capacity;
+        if (mode == ExecutionMode.VIRTUAL) {
+            this.threadPool = Executors.newVirtualThreadPerTaskExecutor();
+            capacity = MAX_SESSIONS;
+        } else {
+            // Pool mode: every protocol's sessions share the threads, with
+            // some sessions waiting for one. Selector mode: the threads only
+            // run commands, so sessions are bounded on their own
+            this.threadPool = Executors.newFixedThreadPool(maxThreads);
+            capacity = mode == ExecutionMode.POOL ? maxThreads * (1 + WAITING_PER_THREAD) : MAX_SESSIONS;
+        }
+        // A quarter of the capacity is kept for each protocol; the last
+        // quarter goes to whichever protocols need it
+        Map<String, Integer> reserved = new HashMap<>();
+        for (String protocol : PROTOCOLS) {
+            reserved.put(protocol, capacity / 4);
+        }
+        this.admission = new AdmissionControl(domain, capacity, reserved,
+                config.sessionsPerIp, config.connectionsPerIp);
+        this.mailboxManager = new MailboxManager(config.storageDir, config.segmentStore, config.compression);
+        this.userManager = new UserManager(config.usersFile);
+        DNSResolver resolver = config.resolver != null ? config.resolver : DNSResolver.systemDefault();
+        this.outboundQueue = new OutboundQueue(mailboxManager.getQueueDir(), domain,
+                mailboxManager, userManager, new RemoteDelivery(domain, resolver, config.relayPort));
+        registerMetrics();
+    }
+
+    /** Gauges over the state this server owns; the hot paths record their own metrics. */
+    private void registerMetrics() {
+        for (String protocol : PROTOCOLS) {
+            Metrics.gauge("sessions_active", () -> admission.getActive(protocol), "protocol", protocol);
+            Metrics.gauge("sessions_reserved", () -> admission.getReserved(protocol), "protocol", protocol);
+            Metrics.gauge("sessions_capacity", () -> admission.getCapacity(protocol), "protocol", protocol);
+            Metrics.cumulative("sessions_admitted_total", () -> admission.getAdmitted(protocol), "protocol", protocol);
+            Metrics.cumulative("sessions_rejected_total", () -> admission.getRejected(protocol), "protocol", protocol);
+        }
+        Metrics.gauge("sessions_capacity_total", admission::getCapacity);
+        if (threadPool instanceof ThreadPoolExecutor) {
+            // Admitted sessions (pool mode) or commands (selector mode)
+            // still waiting for a thread
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) threadPool;
+            Metrics.gauge(mode == ExecutionMode.POOL ? "sessions_waiting" : "selector_tasks_waiting",
+                    () -> executor.getQueue().size());
+        }
+        MessageStructureCache cache = mailboxManager.getStructureCache();
+        Metrics.cumulative("structure_cache_hits_total", cache::getHits);
+        Metrics.cumulative("structure_cache_misses_total", cache::getMisses);
+        Metrics.cumulative("structure_cache_evictions_total", cache::getEvictions);
+        Metrics.gauge("structure_cache_bytes", cache::getWeight);
+        Metrics.gauge("structure_cache_entries", cache::size);
+        Metrics.gauge("users", userManager::size);
+    }
+
+    /**
+     * Publish the metrics through JMX and, unless port is 0, as plain text
+     * on that loopback port. Neither is needed to serve mail, so a failure
+     * (such as the port being taken) is reported and the server goes on.
+     */
+    public void startMetrics(int port) {
+        try {
+            Metrics.registerMBean();
+        } catch (JMException e) {
+            System.err.println("Metrics not registered with JMX: " + e.getMessage());
+        }
+        if (port > 0) {
+            try {
+                Metrics.serve(port);
+            } catch (IOException e) {
+                System.err.println("Metrics not served on port " + port + ": " + e.getMessage());
+            }
+        }
     }
 
     public void start() throws IOException {
+        // Repair the mailboxes after a crash, then resume deliveries left
+        // over from the previous run (bounces may go to local mailboxes);
+        // both before the listeners open
+        mailboxManager.recover();
+        outboundQueue.recover();
+
+        if (mode == ExecutionMode.SELECTOR) {
+            startSelector();
+            return;
+        }
+
         // Ports: SMTP 25, POP3 110, IMAP 143
-        ServerSocket smtpServer = new ServerSocket(25);
-        ServerSocket pop3Server = new ServerSocket(110);
-        ServerSocket imapServer = new ServerSocket(143);
+        ServerSocket smtpServer = openServerSocket(25);
+        ServerSocket pop3Server = openServerSocket(110);
+        ServerSocket imapServer = openServerSocket(143);
 
         // Accept loops for each protocol
         startAcceptLoop(smtpServer, "SMTP");
@@ -30,14 +234,43 @@ public class MailServer {
         startAcceptLoop(imapServer, "IMAP");
     }
 
+    private ServerSocket openServerSocket(int port) throws IOException {
+        // Opened through a channel so accepted sockets have a SocketChannel,
+        // which lets POP3 RETR send messages with FileChannel.transferTo
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        return channel.socket();
+    }
+
+    private void startSelector() throws IOException {
+        // One selector thread for all connections; the pool only runs commands
+        SelectorFrontEnd frontEnd = new SelectorFrontEnd(threadPool, this::createSessionForProtocol, admission);
+        frontEnd.listen(25, "SMTP");
+        frontEnd.listen(110, "POP3");
+        frontEnd.listen(143, "IMAP");
+        frontEnd.start();
+    }
+
     private void startAcceptLoop(ServerSocket serverSocket, String protocolName) {
         Thread t = new Thread(() -> {
             while (true) {
                 try {
                     Socket client = serverSocket.accept();
+                    AdmissionControl.Ticket ticket = admission.tryAdmit(protocolName, client.getInetAddress());
+                    if (ticket == null) {
+                        reject(client, protocolName);
+                        continue;
+                    }
                     // Dispatch to correct handler
                     Runnable worker = createWorkerForProtocol(protocolName, client);
-                    threadPool.execute(worker); // limited thread pool
+                    // A pool thread, or one virtual thread each
+                    threadPool.execute(() -> {
+                        try {
+                            worker.run();
+                        } finally {
+                            admission.release(ticket);
+                        }
+                    });
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -46,9 +279,22 @@ public class MailServer {
         t.start();
     }
 
+    /**
+     * Turn a connection away with the protocol's busy reply. The reply fits
+     * in the new socket's send buffer, so the accept loop never waits here.
+     */
+    private void reject(Socket client, String protocolName) {
+        try (SocketChannel channel = client.getChannel()) {
+            channel.configureBlocking(false);
+            channel.write(ByteBuffer.wrap(admission.rejection(protocolName)));
+        } catch (IOException ignored) {
+            // Gone already
+        }
+    }
+
     private Runnable createWorkerForProtocol(String protocolName, Socket client) {
         if ("SMTP".equals(protocolName)) {
-            return new SMTPHandler(client, mailboxManager, userManager, domain);
+            return new SMTPHandler(client, mailboxManager, userManager, domain, outboundQueue);
         } else if ("POP3".equals(protocolName)) {
             return new POP3Handler(client, mailboxManager, userManager, domain);
         } else {
@@ -56,16 +302,66 @@ public class MailServer {
         }
     }
 
+    private ProtocolSession createSessionForProtocol(String protocolName) {
+        // No socket: the selector front end owns the channel
+        if ("SMTP".equals(protocolName)) {
+            return new SMTPHandler(null, mailboxManager, userManager, domain, outboundQueue);
+        } else if ("POP3".equals(protocolName)) {
+            return new POP3Handler(null, mailboxManager, userManager, domain);
+        } else {
+            return new IMAPHandler(null, mailboxManager, userManager, domain);
+        }
+    }
+
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("Usage: java MailServer <domain> <maxThreads>");
+        if (args.length < 2) {
+            System.err.println("Usage: java MailServer <domain> <maxThreads> [--nio | --virtual] [--segments] [--compress] [--compress-min <bytes>] [--relay-port <port>] [--dns <host[:port]>] [--users <file>] [--per-ip <sessions>] [--per-ip-rate <connections/s>] [--metrics-port <port>]");
             System.exit(1);
         }
-        String domain = args[0];
-        int maxThreads = Integer.parseInt(args[1]);
+        Config config = new Config(args[0], Integer.parseInt(args[1]));
+        boolean compress = false;
+        long compressMin = MessageCompression.DEFAULT_MIN_SIZE;
+        String nameserver = null;
+        int metricsPort = DEFAULT_METRICS_PORT;
+        for (int i = 2; i < args.length; i++) {
+            if ("--nio".equals(args[i])) {
+                config.mode(ExecutionMode.SELECTOR);
+            } else if ("--virtual".equals(args[i])) {
+                config.mode(ExecutionMode.VIRTUAL);
+            } else if ("--segments".equals(args[i])) {
+                config.segmentStore(true);
+            } else if ("--compress".equals(args[i])) {
+                compress = true;
+            } else if ("--compress-min".equals(args[i]) && i + 1 < args.length) {
+                compress = true;
+                compressMin = Long.parseLong(args[++i]);
+            } else if ("--relay-port".equals(args[i]) && i + 1 < args.length) {
+                config.relayPort(Integer.parseInt(args[++i]));
+            } else if ("--dns".equals(args[i]) && i + 1 < args.length) {
+                nameserver = args[++i];
+            } else if ("--users".equals(args[i]) && i + 1 < args.length) {
+                config.usersFile(new File(args[++i]));
+            } else if ("--per-ip".equals(args[i]) && i + 1 < args.length) {
+                config.sessionsPerIp(Integer.parseInt(args[++i]));
+            } else if ("--per-ip-rate".equals(args[i]) && i + 1 < args.length) {
+                config.connectionsPerIp(Double.parseDouble(args[++i]));
+            } else if ("--metrics-port".equals(args[i]) && i + 1 < args.length) {
+                metricsPort = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
 
         try {
-            MailServer server = new MailServer(domain, maxThreads);
+            if (nameserver != null) {
+                config.resolver(DNSResolver.forNameserver(nameserver));
+            }
+            if (compress) {
+                config.compression(new MessageCompression(compressMin, MessageCompression.DEFAULT_LEVEL));
+            }
+            MailServer server = new MailServer(config);
+            server.startMetrics(metricsPort);
             server.start();
         } catch (Exception e) {
             e.printStackTrace();
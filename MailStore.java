@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Storage backend behind MailboxManager. Implementations do no locking of
+ * their own: MailboxManager holds the mailbox's write lock around store,
+ * delete, setFlags and compact, and its read lock around list and read.
+ */
+public interface MailStore {
+
+    /** Store a message body, already in WireFormat. */
+    StoredMessage store(String mailbox, SpooledMessage message) throws IOException;
+
+    /**
+     * Store the same body for another recipient. The original is a copy
+     * stored earlier in this delivery, which a backend may share instead of
+     * writing the bytes again.
+     */
+    default StoredMessage storeCopy(String mailbox, StoredMessage original, SpooledMessage message)
+            throws IOException {
+        return store(mailbox, message);
+    }
+
+    /** Messages of the mailbox, oldest first. */
+    List<StoredMessage> list(String mailbox) throws IOException;
+
+    /** Message text lines, dot-stuffing removed. */
+    List<String> readLines(StoredMessage message) throws IOException;
+
+    /** Open the stored wire form of a message. */
+    MessageRegion open(StoredMessage message) throws IOException;
+
+    void delete(StoredMessage message) throws IOException;
+
+    /** Replace the flags (StoredMessage FLAG_ bits) recorded for a message. */
+    void setFlags(StoredMessage message, int flags) throws IOException;
+
+    /**
+     * Bring a mailbox back to a consistent state after a crash: remove what
+     * interrupted writes left behind and make the index agree with the
+     * stored messages. Called at startup before any session, for different
+     * mailboxes from several threads at once. Returns the number of
+     * repairs made.
+     */
+    int recover(String mailbox) throws IOException;
+
+    /** Mailboxes whose storage would benefit from compaction. */
+    default List<String> compactionCandidates() {
+        return Collections.emptyList();
+    }
+
+    default void compact(String mailbox) throws IOException {
+    }
+}
@@ -0,0 +1,337 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent metadata of one mailbox, kept as an append-only journal:
+ *
+ *   + <uid> <size> [<segment> <offset> [<stuffed> <flags> [<codec> <stored>]]]
+ *                                                           message added
+ *   * <uid> <flags>                                         flags changed
+ *   - <uid>                                                 message removed
+ *
+ * UIDs are handed out in arrival order and never reused, so they double as
+ * the arrival sequence. The journal is replayed once when the mailbox is
+ * first opened; after that every lookup is served from memory. Callers
+ * serialize access through MailboxManager's mailbox locks.
+ *
+ * The journal stays open for appending, and every record is forced before
+ * the call returns: a message the mail stores have forced to disk is not
+ * listed again after a crash unless its record is durable too.
+ */
+public class MailboxIndex {
+
+    // Rewrite the journal once it holds more superseded records
+    // (tombstones and old flag records) than this...
+    private static final int MIN_TOMBSTONES_BEFORE_REWRITE = 1024;
+
+    private final File file;
+    // Live entries in UID (= arrival) order
+    private final Map<Long, Entry> entries = new LinkedHashMap<>();
+    private long nextUid = 1;
+    private int tombstones = 0;
+    // Open from the first append until the next rewrite
+    private FileChannel journal;
+
+    private MailboxIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the index stored in the given file, replaying its journal if it
+     * exists. Returns an empty index otherwise.
+     */
+    public static MailboxIndex open(File file) throws IOException {
+        MailboxIndex index = new MailboxIndex(file);
+        if (!file.exists()) {
+            return index;
+        }
+        dropTornRecord(file);
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry e = parse(line);
+                if (e != null) {
+                    index.entries.put(e.uid, e);
+                    index.nextUid = Math.max(index.nextUid, e.uid + 1);
+                } else if (line.startsWith("* ")) {
+                    String[] parts = line.split(" ");
+                    try {
+                        Entry old = parts.length == 3
+                                ? index.entries.get(Long.parseLong(parts[1]))
+                                : null;
+                        if (old != null) {
+                            index.entries.put(old.uid, old.withFlags(Integer.parseInt(parts[2])));
+                            index.tombstones++;
+                        }
+                    } catch (NumberFormatException ignored) {
+                    }
+                } else if (line.startsWith("- ")) {
+                    try {
+                        long uid = Long.parseLong(line.substring(2).trim());
+                        index.entries.remove(uid);
+                        index.nextUid = Math.max(index.nextUid, uid + 1);
+                        index.tombstones++;
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+                // Anything else is malformed: ignore it
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Cut off a last record without its newline, left by a crash in the
+     * middle of an append. Otherwise the next append would continue that
+     * line and both records would be lost.
+     */
+    private static void dropTornRecord(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            ByteBuffer last = ByteBuffer.allocate(1);
+            if (size == 0 || (ch.read(last, size - 1) == 1 && last.get(0) == '\n')) {
+                return;
+            }
+            // Back to just after the last newline, or to the start
+            ByteBuffer buf = ByteBuffer.allocate(4096);
+            long end = size;
+            while (end > 0) {
+                long from = Math.max(0, end - buf.capacity());
+                buf.clear().limit((int) (end - from));
+                ch.read(buf, from);
+                for (int i = buf.position() - 1; i >= 0; i--) {
+                    if (buf.get(i) == '\n') {
+                        ch.truncate(from + i + 1);
+                        return;
+                    }
+                }
+                end = from;
+            }
+            ch.truncate(0);
+        }
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /** Reserve the UID of the next message; it is only recorded by add. */
+    public long nextUid() {
+        return nextUid++;
+    }
+
+    public void add(Entry entry) throws IOException {
+        append(format(entry));
+        entries.put(entry.uid, entry);
+        nextUid = Math.max(nextUid, entry.uid + 1);
+    }
+
+    public Entry get(long uid) {
+        return entries.get(uid);
+    }
+
+    public void remove(long uid) throws IOException {
+        if (entries.remove(uid) == null) {
+            return;
+        }
+        append("- " + uid);
+        tombstones++;
+        if (tombstones >= MIN_TOMBSTONES_BEFORE_REWRITE && tombstones > entries.size()) {
+            rewrite(entries.values());
+        }
+    }
+
+    /** Record new flags for a message. */
+    public void setFlags(long uid, int flags) throws IOException {
+        Entry entry = entries.get(uid);
+        if (entry == null || entry.flags == flags) {
+            return;
+        }
+        append("* " + uid + " " + flags);
+        entries.put(uid, entry.withFlags(flags));
+        tombstones++;
+        if (tombstones >= MIN_TOMBSTONES_BEFORE_REWRITE && tombstones > entries.size()) {
+            rewrite(entries.values());
+        }
+    }
+
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Replace the whole journal with the given entries. The new journal is
+     * written aside, forced to disk and renamed over the old one (the
+     * rename forced too), so a crash leaves one or the other intact.
+     */
+    public void rewrite(Collection<Entry> newEntries) throws IOException {
+        List<Entry> copy = new ArrayList<>(newEntries);
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             Writer w = new BufferedWriter(Channels.newWriter(ch, StandardCharsets.UTF_8))) {
+            long lastUid = 0;
+            for (Entry e : copy) {
+                w.write(format(e));
+                w.write('\n');
+                lastUid = Math.max(lastUid, e.uid);
+            }
+            if (nextUid - 1 > lastUid) {
+                // The newest messages are gone: keep their UIDs from being
+                // handed out again, since IMAP clients cache them
+                w.write("- " + (nextUid - 1) + "\n");
+            }
+            w.flush();
+            ch.force(true);
+        }
+        if (journal != null) {
+            // Would keep appending to the replaced file
+            journal.close();
+            journal = null;
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileSync.syncDirectory(file.getParentFile());
+        entries.clear();
+        for (Entry e : copy) {
+            entries.put(e.uid, e);
+            nextUid = Math.max(nextUid, e.uid + 1);
+        }
+        tombstones = 0;
+    }
+
+    private void append(String record) throws IOException {
+        if (journal == null) {
+            boolean created = !file.exists();
+            journal = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            if (created) {
+                FileSync.syncDirectory(file.getParentFile());
+            }
+        }
+        ByteBuffer buf = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) {
+            journal.write(buf);
+        }
+        journal.force(false);
+    }
+
+    private static String format(Entry e) {
+        if (e.codec != MessageCompression.CODEC_NONE) {
+            return "+ " + e.uid + " " + e.size + " " + e.segment + " " + e.offset
+                    + " " + e.stuffedLines + " " + e.flags + " " + e.codec + " " + e.storedSize;
+        }
+        if (e.stuffedLines >= 0 || e.flags != 0) {
+            return "+ " + e.uid + " " + e.size + " " + e.segment + " " + e.offset
+                    + " " + e.stuffedLines + " " + e.flags;
+        }
+        if (e.segment < 0) {
+            return "+ " + e.uid + " " + e.size;
+        }
+        return "+ " + e.uid + " " + e.size + " " + e.segment + " " + e.offset;
+    }
+
+    private static Entry parse(String line) {
+        String[] parts = line.split(" ");
+        if (!parts[0].equals("+") || (parts.length != 3 && parts.length != 5
+                && parts.length != 7 && parts.length != 9)) {
+            return null;
+        }
+        try {
+            long uid = Long.parseLong(parts[1]);
+            long size = Long.parseLong(parts[2]);
+            if (parts.length == 3) {
+                return new Entry(uid, size);
+            }
+            if (parts.length == 5) {
+                return new Entry(uid, size, Integer.parseInt(parts[3]), Long.parseLong(parts[4]));
+            }
+            if (parts.length == 7) {
+                return new Entry(uid, size, Integer.parseInt(parts[3]), Long.parseLong(parts[4]),
+                        Long.parseLong(parts[5]), Integer.parseInt(parts[6]));
+            }
+            return new Entry(uid, size, Integer.parseInt(parts[3]), Long.parseLong(parts[4]),
+                    Long.parseLong(parts[5]), Integer.parseInt(parts[6]),
+                    Integer.parseInt(parts[7]), Long.parseLong(parts[8]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Metadata of one message. Segment and offset locate the message inside
+     * a segment log; they are -1 and 0 for one-file-per-message storage.
+     * stuffedLines counts the lines of the wire form starting with a
+     * stuffed dot (-1 if unknown, for entries written before it was
+     * recorded); flags are the StoredMessage FLAG_ bits. size is always
+     * that of the wire form; storedSize is the number of bytes the message
+     * takes on disk, smaller when codec is not MessageCompression.CODEC_NONE.
+     */
+    public static final class Entry {
+        public final long uid;
+        public final long size;
+        public final int segment;
+        public final long offset;
+        public final long stuffedLines;
+        public final int flags;
+        public final int codec;
+        public final long storedSize;
+
+        public Entry(long uid, long size) {
+            this(uid, size, -1, 0);
+        }
+
+        public Entry(long uid, long size, int segment, long offset) {
+            this(uid, size, segment, offset, -1, 0);
+        }
+
+        public Entry(long uid, long size, int segment, long offset, long stuffedLines, int flags) {
+            this(uid, size, segment, offset, stuffedLines, flags, MessageCompression.CODEC_NONE, size);
+        }
+
+        public Entry(long uid, long size, int segment, long offset, long stuffedLines, int flags,
+                     int codec, long storedSize) {
+            this.uid = uid;
+            this.size = size;
+            this.segment = segment;
+            this.offset = offset;
+            this.stuffedLines = stuffedLines;
+            this.flags = flags;
+            this.codec = codec;
+            this.storedSize = storedSize;
+        }
+
+        public Entry withFlags(int newFlags) {
+            return new Entry(uid, size, segment, offset, stuffedLines, newFlags, codec, storedSize);
+        }
+
+        public Entry movedTo(int newSegment, long newOffset) {
+            return new Entry(uid, size, newSegment, newOffset, stuffedLines, flags, codec, storedSize);
+        }
+
+        public StoredMessage toMessage(String mailbox) {
+            return new StoredMessage(mailbox, uid, size, stuffedLines, flags);
+        }
+    }
+}
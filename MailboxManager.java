@@ -1,81 +1,439 @@
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.util.Comparator;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class MailboxManager {
 
+    // Number of lock stripes, power of two
+    private static final int LOCK_STRIPES = 64;
+    // How often the store is asked for mailboxes worth compacting
+    private static final long COMPACTION_INTERVAL_SECONDS = 60;
+    // Heap given to parsed message headers and MIME structure
+    private static final long STRUCTURE_CACHE_BYTES = 16L * 1024 * 1024;
+
+    // Store operations, lock wait included
+    private static final Histogram STORE_TIME = Metrics.histogram("mailbox_operation_seconds", "operation", "store");
+    private static final Histogram LIST_TIME = Metrics.histogram("mailbox_operation_seconds", "operation", "list");
+    private static final Histogram READ_TIME = Metrics.histogram("mailbox_operation_seconds", "operation", "read");
+    private static final Histogram DELETE_TIME = Metrics.histogram("mailbox_operation_seconds", "operation", "delete");
+    private static final Histogram FLAGS_TIME = Metrics.histogram("mailbox_operation_seconds", "operation", "flags");
+    private static final Histogram SEARCH_TIME = Metrics.histogram("mailbox_operation_seconds", "operation", "search");
+
     private final File baseDir;
+    private final MailStore store;
+    // One read/write lock per stripe of mailboxes: deliveries to different
+    // mailboxes run in parallel and readers of a mailbox share its lock.
+    // Explicit locks instead of synchronized so virtual threads doing disk
+    // I/O while holding them do not pin their carrier thread.
+    private final ReadWriteLock[] locks = new ReadWriteLock[LOCK_STRIPES];
+    private final MessageStructureCache structureCache = new MessageStructureCache(STRUCTURE_CACHE_BYTES);
+    // Search indexes of the mailboxes searched since startup, kept up to
+    // date in the background as messages arrive
+    private final Map<String, SearchIndex> searchIndexes = new ConcurrentHashMap<>();
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "search-indexer");
+        t.setDaemon(true);
+        return t;
+    });
 
     public MailboxManager() {
-        this.baseDir = new File("storage");
+        this(false);
+    }
+
+    /**
+     * @param segmentStore append messages to per-mailbox segment logs instead
+     *                     of writing one file per message
+     */
+    public MailboxManager(boolean segmentStore) {
+        this(new File("storage"), segmentStore);
+    }
+
+    /**
+     * @param baseDir      directory holding the mailboxes, the outbound
+     *                     queue and the spool
+     * @param segmentStore append messages to per-mailbox segment logs instead
+     *                     of writing one file per message
+     */
+    public MailboxManager(File baseDir, boolean segmentStore) {
+        this(baseDir, segmentStore, null);
+    }
+
+    /**
+     * @param compression compresses stored messages that are worth it
+     *                    (see MessageCompression); null to store them as
+     *                    they are
+     */
+    public MailboxManager(File baseDir, boolean segmentStore, MessageCompression compression) {
+        this.baseDir = baseDir;
         if (!baseDir.exists()) {
             baseDir.mkdirs();
         }
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        if (segmentStore) {
+            this.store = new SegmentMailStore(baseDir, compression);
+            startCompaction();
+        } else {
+            this.store = new FileMailStore(baseDir, compression);
+        }
+    }
+
+    /**
+     * Repair what a crash may have left behind (see MailStore.recover) in
+     * every mailbox, and empty the spool, whose files belonged to sessions
+     * that no longer exist. Call it before any session starts. Mailboxes
+     * are independent, so they are recovered in parallel on a fork-join
+     * pool with a thread per core; it also leaves every index loaded.
+     */
+    public void recover() {
+        long start = System.nanoTime();
+        File[] spooled = getSpoolDir().listFiles();
+        if (spooled != null) {
+            for (File f : spooled) {
+                f.delete();
+            }
+        }
+        File[] dirs = baseDir.listFiles(f -> f.isDirectory() && !f.getName().startsWith("."));
+        if (dirs == null || dirs.length == 0) {
+            return;
+        }
+        LongAdder repairs = new LongAdder();
+        List<Callable<Void>> tasks = new ArrayList<>(dirs.length);
+        for (File dir : dirs) {
+            String mailbox = dir.getName();
+            tasks.add(() -> {
+                Lock lock = lockFor(mailbox).writeLock();
+                lock.lock();
+                try {
+                    repairs.add(store.recover(mailbox));
+                } catch (IOException e) {
+                    // Left as it is; its sessions will see the same error
+                    System.err.println("Cannot recover mailbox " + mailbox + ": " + e.getMessage());
+                } finally {
+                    lock.unlock();
+                }
+                return null;
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println("Recovered " + dirs.length + " mailboxes in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms, " + repairs.sum() + " repairs");
+    }
+
+    public void storeLocalMessage(String recipientEmail, String rawMessage) throws IOException {
+        try (SpooledMessage message = SpooledMessage.fromText(rawMessage)) {
+            storeLocalMessage(recipientEmail, message);
+        }
+    }
+
+    /** Store a message body received in wire form (see SpooledMessage). */
+    public void storeLocalMessage(String recipientEmail, SpooledMessage message) throws IOException {
+        long start = System.nanoTime();
+        Lock lock = lockFor(recipientEmail).writeLock();
+        lock.lock();
+        try {
+            store.store(recipientEmail, message);
+        } finally {
+            lock.unlock();
+            STORE_TIME.recordSince(start);
+        }
+        messageStored(recipientEmail);
+    }
+
+    /**
+     * Store one body for several local recipients. Each mailbox is locked in
+     * turn; recipients after the first get a copy the store may share with
+     * the first one (see MailStore.storeCopy).
+     */
+    public void storeLocalMessage(List<String> recipientEmails, SpooledMessage message) throws IOException {
+        StoredMessage first = null;
+        for (String rcpt : recipientEmails) {
+            long start = System.nanoTime();
+            Lock lock = lockFor(rcpt).writeLock();
+            lock.lock();
+            try {
+                if (first == null) {
+                    first = store.store(rcpt, message);
+                } else {
+                    store.storeCopy(rcpt, first, message);
+                }
+            } finally {
+                lock.unlock();
+                STORE_TIME.recordSince(start);
+            }
+            messageStored(rcpt);
+        }
+    }
+
+    /** Where mail for remote domains waits for delivery. */
+    public File getQueueDir() {
+        return new File(baseDir, ".queue");
+    }
+
+    /** Where SMTP sessions spill message bodies too large to keep in memory. */
+    public File getSpoolDir() {
+        return new File(baseDir, ".spool");
+    }
+
+    public List<StoredMessage> listMessages(String userEmail) throws IOException {
+        long start = System.nanoTime();
+        Lock lock = lockFor(userEmail).readLock();
+        lock.lock();
+        try {
+            return store.list(userEmail);
+        } finally {
+            lock.unlock();
+            LIST_TIME.recordSince(start);
+        }
     }
 
-    public synchronized void storeLocalMessage(String recipientEmail, String rawMessage) throws IOException {
-        File userDir = getOrCreateUserDir(recipientEmail);
-        // TODO: later use real UID-based filenames and metadata
-        File msgFile = File.createTempFile("msg_", ".txt", userDir);
-        try (FileWriter fw = new FileWriter(msgFile)) {
-            fw.write(rawMessage);
+    public void deleteMessage(StoredMessage message) throws IOException {
+        if (message == null) {
+            throw new IllegalArgumentException("message cannot be null");
+        }
+        long start = System.nanoTime();
+        Lock lock = lockFor(message.getMailbox()).writeLock();
+        lock.lock();
+        try {
+            store.delete(message);
+        } finally {
+            lock.unlock();
+            DELETE_TIME.recordSince(start);
+        }
+        structureCache.invalidate(message);
+        SearchIndex index = searchIndexes.get(message.getMailbox());
+        if (index != null) {
+            index.getLock().lock();
+            try {
+                index.remove(message.getUid());
+            } finally {
+                index.getLock().unlock();
+            }
         }
     }
 
-    public synchronized List<File> listMessages(String userEmail) {
-        File userDir = getOrCreateUserDir(userEmail);
-        File[] files = userDir.listFiles(File::isFile);
-        if (files == null) {
-            return new ArrayList<>();
+    /** Record new IMAP flags (StoredMessage FLAG_ bits) for a message. */
+    public void setFlags(StoredMessage message, int flags) throws IOException {
+        if (message == null) {
+            throw new IllegalArgumentException("message cannot be null");
+        }
+        long start = System.nanoTime();
+        Lock lock = lockFor(message.getMailbox()).writeLock();
+        lock.lock();
+        try {
+            store.setFlags(message, flags);
+        } finally {
+            lock.unlock();
+            FLAGS_TIME.recordSince(start);
         }
-        Arrays.sort(files, Comparator
-                .comparingLong(File::lastModified)
-                .thenComparing(File::getName));
-        return new ArrayList<>(Arrays.asList(files));
     }
 
-    public synchronized void deleteMessage(File messageFile) throws IOException {
-        if (messageFile == null) {
-            throw new IllegalArgumentException("messageFile cannot be null");
+    public List<String> readMessageLines(StoredMessage message) throws IOException {
+        if (message == null) {
+            throw new IllegalArgumentException("message cannot be null");
         }
-        if (!messageFile.exists() || !messageFile.isFile()) {
-            throw new IOException("Message file does not exist: " + messageFile.getName());
+        long start = System.nanoTime();
+        Lock lock = lockFor(message.getMailbox()).readLock();
+        lock.lock();
+        try {
+            return store.readLines(message);
+        } finally {
+            lock.unlock();
+            READ_TIME.recordSince(start);
         }
-        if (!messageFile.delete()) {
-            throw new IOException("Failed to delete message: " + messageFile.getName());
+    }
+
+    /**
+     * Open the stored wire form of a message for sending. The caller owns
+     * the returned region and must close it.
+     */
+    public MessageRegion openMessage(StoredMessage message) throws IOException {
+        if (message == null) {
+            throw new IllegalArgumentException("message cannot be null");
+        }
+        long start = System.nanoTime();
+        Lock lock = lockFor(message.getMailbox()).readLock();
+        lock.lock();
+        try {
+            return store.open(message);
+        } finally {
+            lock.unlock();
+            READ_TIME.recordSince(start);
         }
     }
 
-    public synchronized List<String> readMessageLines(File messageFile) throws IOException {
-        File validated = validateMessageFile(messageFile);
-        return Files.readAllLines(validated.toPath());
+    /**
+     * Open a message for reading as the message itself, without the
+     * dot-stuffing of its stored wire form. The caller closes the stream.
+     */
+    public InputStream openMessageContent(StoredMessage message) throws IOException {
+        MessageRegion region = openMessage(message);
+        if (message.getStuffedLines() == 0) {
+            return region.newInputStream();
+        }
+        return WireFormat.unstuffing(region.newInputStream());
     }
 
-    public synchronized long messageSize(File messageFile) throws IOException {
-        File validated = validateMessageFile(messageFile);
-        return validated.length();
+    /**
+     * The header fields and MIME part offsets of a message, parsed on
+     * first use and then served from the structure cache.
+     */
+    public MessageStructure messageStructure(StoredMessage message) throws IOException {
+        MessageStructure structure = structureCache.get(message);
+        if (structure == null) {
+            try (InputStream in = openMessageContent(message)) {
+                structure = MimeParser.parse(in, message.getContentSize());
+            }
+            structureCache.put(message, structure);
+        }
+        return structure;
     }
 
-    private File getOrCreateUserDir(String userEmail) {
-        File userDir = new File(baseDir, userEmail);
-        if (!userDir.exists()) {
-            userDir.mkdirs();
+    public MessageStructureCache getStructureCache() {
+        return structureCache;
+    }
+
+    /**
+     * UIDs of the messages of a mailbox matching a query, ascending. The
+     * mailbox is indexed on its first search; after that the index is
+     * updated as messages arrive and are deleted.
+     */
+    public long[] search(String mailbox, SearchIndex.Query query) throws IOException {
+        long start = System.nanoTime();
+        SearchIndex index = searchIndexes.get(mailbox);
+        if (index == null) {
+            SearchIndex opened = SearchIndex.open(new File(baseDir, mailbox));
+            opened.markStale(true);
+            index = searchIndexes.putIfAbsent(mailbox, opened);
+            if (index == null) {
+                index = opened;
+            }
+        }
+        if (index.isStale()) {
+            updateSearchIndex(mailbox, index);
         }
-        return userDir;
+        long[] uids = index.search(query);
+        SEARCH_TIME.recordSince(start);
+        return uids;
     }
 
-    private File validateMessageFile(File messageFile) throws IOException {
-        if (messageFile == null) {
-            throw new IllegalArgumentException("messageFile cannot be null");
+    private void messageStored(String mailbox) {
+        SearchIndex index = searchIndexes.get(mailbox);
+        if (index != null) {
+            index.markStale(true);
+            indexer.execute(() -> {
+                try {
+                    updateSearchIndex(mailbox, index);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
         }
-        if (!messageFile.exists() || !messageFile.isFile()) {
-            throw new IOException("Message file does not exist: " + messageFile.getName());
+    }
+
+    /**
+     * Bring a search index in line with its mailbox: index the messages
+     * newer than its last UID and forget the ones no longer there.
+     */
+    private void updateSearchIndex(String mailbox, SearchIndex index) throws IOException {
+        index.getLock().lock();
+        try {
+            if (!index.isStale()) {
+                return;
+            }
+            // Cleared first: a message stored meanwhile marks it again
+            index.markStale(false);
+            List<StoredMessage> messages = listMessages(mailbox);
+            Set<Long> gone = index.indexedUids();
+            long lastUid = index.lastUid();
+            for (StoredMessage m : messages) {
+                gone.remove(m.getUid());
+                if (m.getUid() > lastUid) {
+                    indexMessage(index, m);
+                }
+            }
+            for (long uid : gone) {
+                index.remove(uid);
+            }
+        } finally {
+            index.getLock().unlock();
+        }
+    }
+
+    private void indexMessage(SearchIndex index, StoredMessage message) throws IOException {
+        MessageStructure structure;
+        Set<String> terms;
+        try {
+            // Parsed here rather than through the structure cache, so bulk
+            // indexing does not evict the entries sessions are using
+            try (InputStream in = openMessageContent(message)) {
+                structure = MimeParser.parse(in, message.getContentSize());
+            }
+            try (InputStream in = openMessageContent(message)) {
+                terms = TextExtractor.terms(structure, in);
+            }
+        } catch (IOException e) {
+            // Deleted since it was listed, or unreadable: leave it out
+            return;
+        }
+        index.add(message.getUid(), TextExtractor.day(structure), terms);
+    }
+
+    public long messageSize(StoredMessage message) {
+        if (message == null) {
+            throw new IllegalArgumentException("message cannot be null");
         }
-        return messageFile;
+        return message.getSize();
+    }
+
+    private void startCompaction() {
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mailbox-compaction");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(this::compactAll,
+                COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void compactAll() {
+        for (String mailbox : store.compactionCandidates()) {
+            Lock lock = lockFor(mailbox).writeLock();
+            lock.lock();
+            try {
+                store.compact(mailbox);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private ReadWriteLock lockFor(String userEmail) {
+        int h = userEmail.hashCode();
+        h ^= (h >>> 16);
+        return locks[h & (LOCK_STRIPES - 1)];
     }
 }
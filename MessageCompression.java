@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Optional compression of stored messages with DEFLATE (java.util.zip,
+ * zlib format, so each message also carries an Adler-32 check). Mail is
+ * mostly text and base64, which compresses to a third or less, and on
+ * slow disks reading fewer bytes outweighs inflating them.
+ *
+ * Messages below the minimum size are stored as they are, as are those
+ * that do not shrink by at least a tenth. The index records the codec of
+ * each message and both its wire-form size, which POP3 and IMAP report
+ * without decompressing anything, and its stored size.
+ */
+public class MessageCompression {
+
+    /** Codecs, as recorded in the mailbox index. */
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+
+    public static final long DEFAULT_MIN_SIZE = 4096;
+    // Fast: most of the saving of the default level for a third of the CPU
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+    // Compressed size above which the message is stored as it is instead
+    private static final double MAX_RATIO = 0.9;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long minSize;
+    private final int level;
+
+    public MessageCompression() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_LEVEL);
+    }
+
+    /**
+     * @param minSize smallest wire-form size worth compressing
+     * @param level   Deflater level, 1 (fastest) to 9 (smallest)
+     */
+    public MessageCompression(long minSize, int level) {
+        this.minSize = minSize;
+        this.level = level;
+    }
+
+    /**
+     * Write a message at the target's position, compressed if it is large
+     * enough and compresses well. Returns the number of bytes written: the
+     * message was compressed if that is less than its size.
+     */
+    public long write(SpooledMessage message, FileChannel target) throws IOException {
+        long start = target.position();
+        if (message.size() >= minSize) {
+            long written = deflate(message, target);
+            if (written <= message.size() * MAX_RATIO) {
+                return written;
+            }
+            target.truncate(start);
+            target.position(start);
+        }
+        return message.writeTo(target);
+    }
+
+    /** Codec of a message written by write, from its size and the bytes written. */
+    public static int codec(long size, long storedSize) {
+        return storedSize < size ? CODEC_DEFLATE : CODEC_NONE;
+    }
+
+    /** The wire form of a message stored with a codec at a range of a file. */
+    public static MessageRegion open(FileChannel channel, long position, long storedSize, long size, int codec)
+            throws IOException {
+        switch (codec) {
+            case CODEC_NONE:
+                return new MessageRegion(channel, position, size);
+            case CODEC_DEFLATE:
+                return new CompressedMessageRegion(channel, position, storedSize, size);
+            default:
+                channel.close();
+                throw new IOException("Unknown message codec " + codec);
+        }
+    }
+
+    private long deflate(SpooledMessage message, FileChannel target) throws IOException {
+        Deflater deflater = new Deflater(level);
+        byte[] input = new byte[BUFFER_SIZE];
+        ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+        long written = 0;
+        try (InputStream in = message.openStream()) {
+            int n;
+            while ((n = in.read(input)) >= 0) {
+                deflater.setInput(input, 0, n);
+                while (!deflater.needsInput()) {
+                    written += drain(deflater, output, target);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                written += drain(deflater, output, target);
+            }
+        } finally {
+            deflater.end();
+        }
+        return written;
+    }
+
+    private static int drain(Deflater deflater, ByteBuffer output, FileChannel target) throws IOException {
+        output.clear();
+        deflater.deflate(output);
+        output.flip();
+        int n = output.remaining();
+        while (output.hasRemaining()) {
+            target.write(output);
+        }
+        return n;
+    }
+}
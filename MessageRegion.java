@@ -0,0 +1,106 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The wire-form bytes of one stored message: a range of an open file.
+ * Whoever holds the region closes it; the range stays readable even if the
+ * message is deleted or compacted away meanwhile.
+ */
+public class MessageRegion implements Closeable {
+
+    private final FileChannel channel;
+    private final long position;
+    private final long count;
+    private long transferred = 0;
+
+    public MessageRegion(FileChannel channel, long position, long count) {
+        this.channel = channel;
+        this.position = position;
+        this.count = count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public boolean isDone() {
+        return transferred >= count;
+    }
+
+    /**
+     * Send as much of the remaining range as the target accepts, using
+     * FileChannel.transferTo (sendfile where the OS supports it).
+     * Returns the number of bytes sent by this call.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long n = channel.transferTo(position + transferred, count - transferred, target);
+        if (n == 0 && channel.size() < position + count) {
+            throw new IOException("Message file truncated");
+        }
+        transferred += n;
+        return n;
+    }
+
+    /**
+     * The sub-range [offset, offset + length) of this region, clipped to
+     * it. The new region takes over the file: close it instead of this one.
+     */
+    public MessageRegion narrow(long offset, long length) {
+        long start = Math.min(offset, count);
+        return new MessageRegion(channel, position + start, Math.min(length, count - start));
+    }
+
+    /**
+     * Read the remaining range as a stream, with positional reads (the
+     * channel's own position is not used). Closing the stream closes the
+     * region.
+     */
+    public InputStream newInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return n < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (isDone()) {
+                    return -1;
+                }
+                int want = (int) Math.min(len, count - transferred);
+                int n = channel.read(ByteBuffer.wrap(b, off, want), position + transferred);
+                if (n < 0) {
+                    throw new IOException("Message file truncated");
+                }
+                transferred += n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                MessageRegion.this.close();
+            }
+        };
+    }
+
+    /** Copy the remaining range through a stream, for targets without a channel. */
+    public void copyTo(OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        while (!isDone()) {
+            transferTo(target);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
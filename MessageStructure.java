@@ -0,0 +1,171 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What MimeParser learned about one stored message: its top-level header
+ * fields and the byte offsets of its MIME parts. Offsets are in the
+ * message itself (RFC822.SIZE coordinates), not in the dot-stuffed wire
+ * form. Instances are immutable once parsed and shared through
+ * MessageStructureCache.
+ */
+public class MessageStructure {
+
+    /**
+     * One MIME part: its header runs from headerStart to bodyStart, its
+     * body from bodyStart to end. A multipart has its parts as children.
+     */
+    public static final class Part {
+        final long headerStart;
+        long bodyStart;
+        long end = -1;
+        String type = "text";
+        String subtype = "plain";
+        Map<String, String> parameters = Collections.emptyMap();
+        String encoding = "7bit";
+        final List<Part> children = new ArrayList<>();
+
+        Part(long headerStart) {
+            this.headerStart = headerStart;
+        }
+
+        public long getHeaderStart() {
+            return headerStart;
+        }
+
+        public long getBodyStart() {
+            return bodyStart;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        /** Media type and subtype, lower case ("text", "plain"). */
+        public String getType() {
+            return type;
+        }
+
+        public String getSubtype() {
+            return subtype;
+        }
+
+        /** Content-Type parameters, names in lower case. */
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+
+        /** Content-Transfer-Encoding, lower case. */
+        public String getEncoding() {
+            return encoding;
+        }
+
+        public List<Part> getChildren() {
+            return children;
+        }
+
+        public boolean isMultipart() {
+            return type.equals("multipart");
+        }
+    }
+
+    private final long size;
+    private final List<String> headerFields;
+    private final boolean headerComplete;
+    private final Part root;
+    private final long weight;
+
+    MessageStructure(long size, List<String> headerFields, boolean headerComplete, Part root) {
+        this.size = size;
+        this.headerFields = Collections.unmodifiableList(headerFields);
+        this.headerComplete = headerComplete;
+        this.root = root;
+        long w = 96;
+        for (String field : headerFields) {
+            w += 48 + 2L * field.length();
+        }
+        this.weight = w + weigh(root);
+    }
+
+    /** Size of the message, unstuffed. */
+    public long getSize() {
+        return size;
+    }
+
+    /** Length of the header, including the empty line that ends it. */
+    public long getHeaderLength() {
+        return root.bodyStart;
+    }
+
+    /**
+     * The header fields in message order, each with its continuation lines
+     * and line breaks. May be cut short for huge headers; see
+     * isHeaderComplete().
+     */
+    public List<String> getHeaderFields() {
+        return headerFields;
+    }
+
+    public boolean isHeaderComplete() {
+        return headerComplete;
+    }
+
+    /** The unfolded value of the first field with this name, or null. */
+    public String getHeader(String name) {
+        for (String field : headerFields) {
+            int colon = field.indexOf(':');
+            if (colon > 0 && field.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return field.substring(colon + 1).replaceAll("\\s+", " ").trim();
+            }
+        }
+        return null;
+    }
+
+    /** The message as a whole: the top-level part. */
+    public Part getRoot() {
+        return root;
+    }
+
+    /**
+     * The part with an IMAP part number such as "2" or "1.3", or null if
+     * there is none. Part 1 of a message that is not multipart is its body.
+     */
+    public Part getPart(String number) {
+        Part part = root;
+        for (String n : number.split("\\.", -1)) {
+            int i;
+            try {
+                i = Integer.parseInt(n);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (part.children.isEmpty()) {
+                if (i != 1) {
+                    return null;
+                }
+            } else if (i < 1 || i > part.children.size()) {
+                return null;
+            } else {
+                part = part.children.get(i - 1);
+            }
+        }
+        return part;
+    }
+
+    /** Rough number of heap bytes held, for MessageStructureCache. */
+    public long weight() {
+        return weight;
+    }
+
+    private static long weigh(Part part) {
+        long w = 128;
+        for (Map.Entry<String, String> p : part.parameters.entrySet()) {
+            w += 64 + 2L * (p.getKey().length() + p.getValue().length());
+        }
+        for (Part child : part.children) {
+            w += weigh(child);
+        }
+        return w;
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Parsed structure (MessageStructure) of recently used messages, keyed by
+ * mailbox and UID. The cache is bounded by an estimate of the heap it
+ * holds, and least recently used entries are evicted first. Stored
+ * messages never change, so an entry only goes away when it is evicted or
+ * its message is deleted.
+ */
+public class MessageStructureCache {
+
+    private final long maxWeight;
+    // Access-ordered: iteration starts at the least recently used entry
+    private final LinkedHashMap<String, MessageStructure> entries = new LinkedHashMap<>(256, 0.75f, true);
+    // Not synchronized: virtual threads must not pin their carrier here
+    private final Lock lock = new ReentrantLock();
+    private long weight = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /** @param maxWeight heap bytes the cached structures may hold, roughly */
+    public MessageStructureCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /** The cached structure of a message, or null (counted as a miss). */
+    public MessageStructure get(StoredMessage message) {
+        MessageStructure structure;
+        lock.lock();
+        try {
+            structure = entries.get(key(message));
+        } finally {
+            lock.unlock();
+        }
+        (structure != null ? hits : misses).increment();
+        return structure;
+    }
+
+    public void put(StoredMessage message, MessageStructure structure) {
+        if (structure.weight() > maxWeight) {
+            return;
+        }
+        lock.lock();
+        try {
+            MessageStructure old = entries.put(key(message), structure);
+            if (old != null) {
+                weight -= old.weight();
+            }
+            weight += structure.weight();
+            Iterator<Map.Entry<String, MessageStructure>> it = entries.entrySet().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                weight -= it.next().getValue().weight();
+                it.remove();
+                evictions.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidate(StoredMessage message) {
+        lock.lock();
+        try {
+            MessageStructure old = entries.remove(key(message));
+            if (old != null) {
+                weight -= old.weight();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /** Estimated heap bytes held by the cached structures. */
+    public long getWeight() {
+        lock.lock();
+        try {
+            return weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String key(StoredMessage message) {
+        return message.getUid() + "/" + message.getMailbox();
+    }
+}
@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Process-wide metrics: counters (LongAdder), latency histograms and
+ * gauges read on demand, each identified by a name and optional label
+ * pairs. Components look their metrics up once, into static fields, so
+ * the hot path only adds to a LongAdder or records into a Histogram.
+ *
+ * Everything registered is visible through JMX as the attributes of
+ * "mailserver:type=Metrics", and as Prometheus-style plain text on a
+ * local port (see serve). Histograms hold nanoseconds and are shown in
+ * seconds: count, sum and the 0.5, 0.99 and 0.999 quantiles.
+ */
+public final class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    // Series name ("name{label="value"}") -> LongAdder, Histogram or Gauge
+    private static final Map<String, Object> SERIES = new ConcurrentSkipListMap<>();
+
+    private static final class Gauge {
+        final LongSupplier value;
+        final boolean cumulative;
+
+        Gauge(LongSupplier value, boolean cumulative) {
+            this.value = value;
+            this.cumulative = cumulative;
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /** The counter with this name and labels ("label", "value", ...). */
+    public static LongAdder counter(String name, String... labels) {
+        return (LongAdder) SERIES.computeIfAbsent(seriesName(name, labels), k -> new LongAdder());
+    }
+
+    /** The histogram with this name and labels ("label", "value", ...). */
+    public static Histogram histogram(String name, String... labels) {
+        return (Histogram) SERIES.computeIfAbsent(seriesName(name, labels), k -> new Histogram());
+    }
+
+    /**
+     * One histogram per value of a label, such as per command; values
+     * outside the list share the "OTHER" histogram.
+     */
+    public static Map<String, Histogram> histograms(String name, String label, String... values) {
+        Map<String, Histogram> byValue = new HashMap<>();
+        for (String value : values) {
+            byValue.put(value, histogram(name, label, value));
+        }
+        byValue.put("OTHER", histogram(name, label, "OTHER"));
+        return byValue;
+    }
+
+    /** A value read when the metrics are collected, such as a queue length. */
+    public static void gauge(String name, LongSupplier value, String... labels) {
+        SERIES.put(seriesName(name, labels), new Gauge(value, false));
+    }
+
+    /** A count kept elsewhere (only ever growing), read when collected. */
+    public static void cumulative(String name, LongSupplier value, String... labels) {
+        SERIES.put(seriesName(name, labels), new Gauge(value, true));
+    }
+
+    private static String seriesName(String name, String... labels) {
+        if (labels.length == 0) {
+            return name;
+        }
+        StringBuilder sb = new StringBuilder(name).append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"").append(labels[i + 1]).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    /** Every metric in the Prometheus text exposition format. */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder();
+        String lastName = null;
+        for (Map.Entry<String, Object> e : SERIES.entrySet()) {
+            String series = e.getKey();
+            int brace = series.indexOf('{');
+            String name = brace < 0 ? series : series.substring(0, brace);
+            String labels = brace < 0 ? "" : series.substring(brace + 1, series.length() - 1);
+            Object metric = e.getValue();
+            if (!name.equals(lastName)) {
+                sb.append("# TYPE ").append(name).append(' ').append(typeOf(metric)).append('\n');
+                lastName = name;
+            }
+            if (metric instanceof Histogram) {
+                Histogram h = (Histogram) metric;
+                for (double q : QUANTILES) {
+                    sb.append(name).append('{').append(labels).append(labels.isEmpty() ? "" : ",")
+                            .append("quantile=\"").append(q).append("\"} ")
+                            .append(seconds(h.percentile(q))).append('\n');
+                }
+                String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+                sb.append(name).append("_sum").append(suffix).append(seconds(h.getSum())).append('\n');
+                sb.append(name).append("_count").append(suffix).append(h.getCount()).append('\n');
+            } else {
+                sb.append(series).append(' ').append(valueOf(metric)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String typeOf(Object metric) {
+        if (metric instanceof Histogram) {
+            return "summary";
+        }
+        return metric instanceof Gauge && !((Gauge) metric).cumulative ? "gauge" : "counter";
+    }
+
+    private static long valueOf(Object metric) {
+        return metric instanceof LongAdder ? ((LongAdder) metric).sum() : ((Gauge) metric).value.getAsLong();
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    /**
+     * Register the metrics with the platform MBean server. Attributes are
+     * named after the series, with ".p50", ".p99", ".p999" and ".count"
+     * for histograms (in seconds).
+     */
+    public static void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(new MetricsMBean(), new ObjectName("mailserver:type=Metrics"));
+    }
+
+    /**
+     * Answer every HTTP request on a loopback port with scrape(). Meant
+     * for a local collector, so it never listens beyond 127.0.0.1.
+     */
+    public static void serve(int port) throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        Thread t = new Thread(() -> {
+            while (true) {
+                try (Socket client = server.accept()) {
+                    client.setSoTimeout(5000);
+                    skipRequest(client.getInputStream());
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    OutputStream out = client.getOutputStream();
+                    out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\n"
+                            + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.write(body);
+                    out.flush();
+                } catch (IOException e) {
+                    // A scraper that went away; keep serving the next one
+                }
+            }
+        }, "metrics");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Read up to the empty line that ends the request header. */
+    private static void skipRequest(InputStream in) throws IOException {
+        int lineLength = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                if (lineLength == 0) {
+                    return;
+                }
+                lineLength = 0;
+            } else if (b != '\r') {
+                lineLength++;
+            }
+        }
+    }
+
+    private static final class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            int dot = attribute.lastIndexOf('.');
+            Object metric = SERIES.get(attribute);
+            if (metric == null && dot > 0) {
+                metric = SERIES.get(attribute.substring(0, dot));
+            }
+            if (metric instanceof Histogram) {
+                Histogram h = (Histogram) metric;
+                switch (attribute.substring(dot + 1)) {
+                    case "count":
+                        return h.getCount();
+                    case "p50":
+                        return h.percentile(0.5) / 1e9;
+                    case "p99":
+                        return h.percentile(0.99) / 1e9;
+                    case "p999":
+                        return h.percentile(0.999) / 1e9;
+                    default:
+                        break;
+                }
+            } else if (metric != null) {
+                return valueOf(metric);
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException ignored) {
+                    // Left out, as the interface allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature)
+                throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            // Rebuilt on every call: metrics may be registered at any time
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> e : SERIES.entrySet()) {
+                String series = e.getKey();
+                if (e.getValue() instanceof Histogram) {
+                    attributes.add(attribute(series + ".count", "long", "Values recorded"));
+                    for (String p : new String[] {"p50", "p99", "p999"}) {
+                        attributes.add(attribute(series + "." + p, "double", "Percentile, seconds"));
+                    }
+                } else {
+                    attributes.add(attribute(series, "long", typeOf(e.getValue())));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Mail server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        private static MBeanAttributeInfo attribute(String name, String type, String description) {
+            return new MBeanAttributeInfo(name, type, description, true, false, false);
+        }
+    }
+}
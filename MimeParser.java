@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Single-pass MIME structure parser over a message stream. It keeps the
+ * top-level header fields and the offsets of every part, never the bodies,
+ * so its memory use does not depend on the message size. A message that
+ * is not multipart is only read up to the end of its header when its size
+ * is already known.
+ */
+final class MimeParser {
+
+    private static final int BUFFER_SIZE = 8192;
+    // Bytes of one line kept for inspection; offsets stay exact beyond it
+    private static final int MAX_LINE = 8192;
+    // Top-level header text kept in the structure; the rest is dropped
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    // Deeper multipart nesting is treated as opaque body text
+    private static final int MAX_DEPTH = 16;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPos = 0;
+    private int bufferLen = 0;
+
+    // The current line, without its terminator (cut at MAX_LINE)
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private long lineStart;
+    // Length of the current and the previous line terminators (0, 1 or 2)
+    private int terminator;
+    private int previousTerminator;
+    // Offset of the next unread byte
+    private long offset = 0;
+
+    private MimeParser(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Parse a message read from the stream, which the caller closes.
+     * knownSize is the message size if the index has it, -1 otherwise.
+     */
+    static MessageStructure parse(InputStream in, long knownSize) throws IOException {
+        return new MimeParser(in).run(knownSize);
+    }
+
+    private MessageStructure run(long knownSize) throws IOException {
+        List<String> fields = new ArrayList<>();
+        MessageStructure.Part root = new MessageStructure.Part(0);
+        boolean complete = readHeader(root, fields);
+
+        // Multiparts whose closing delimiter has not been seen, innermost first
+        Deque<MessageStructure.Part> open = new ArrayDeque<>();
+        if (root.isMultipart() && root.parameters.containsKey("boundary")) {
+            open.push(root);
+        } else if (knownSize >= 0) {
+            root.end = knownSize;
+            return new MessageStructure(knownSize, fields, complete, root);
+        }
+
+        while (!open.isEmpty() && nextLine()) {
+            if (lineLength < 2 || line[0] != '-' || line[1] != '-') {
+                continue;
+            }
+            for (MessageStructure.Part multipart : open) {
+                int kind = delimiter(multipart.parameters.get("boundary"));
+                if (kind == 0) {
+                    continue;
+                }
+                // The line break before a delimiter belongs to the delimiter
+                long bodyEnd = lineStart - previousTerminator;
+                while (open.peek() != multipart) {
+                    open.pop();
+                }
+                if (!multipart.children.isEmpty()) {
+                    endOpenParts(multipart.children.get(multipart.children.size() - 1), bodyEnd);
+                }
+                if (kind == 2) {
+                    // Closing delimiter: what follows is epilogue
+                    open.pop();
+                } else {
+                    MessageStructure.Part child = new MessageStructure.Part(offset);
+                    multipart.children.add(child);
+                    readHeader(child, null);
+                    if (child.isMultipart() && child.parameters.containsKey("boundary")
+                            && open.size() < MAX_DEPTH) {
+                        open.push(child);
+                    }
+                }
+                break;
+            }
+        }
+
+        // Count what is left when the size is not known
+        long size = knownSize;
+        if (size < 0) {
+            while (nextLine()) {
+                // Only the offset matters
+            }
+            size = offset;
+        }
+        endOpenParts(root, size);
+        return new MessageStructure(size, fields, complete, root);
+    }
+
+    /**
+     * Read a part header up to the empty line ending it, and set the
+     * part's body start and content type. Top-level fields are added to
+     * the list if one is given. Returns false if some were dropped.
+     */
+    private boolean readHeader(MessageStructure.Part part, List<String> fields) throws IOException {
+        String contentType = null;
+        String encoding = null;
+        StringBuilder field = null;
+        int kept = 0;
+        boolean complete = true;
+        while (true) {
+            boolean more = nextLine();
+            boolean continuation = more && lineLength > 0 && (line[0] == ' ' || line[0] == '\t');
+            if (field != null && !continuation) {
+                // The previous field is complete
+                String f = field.toString();
+                String name = fieldName(f);
+                if (name.equalsIgnoreCase("Content-Type") && contentType == null) {
+                    contentType = f.substring(f.indexOf(':') + 1);
+                } else if (name.equalsIgnoreCase("Content-Transfer-Encoding") && encoding == null) {
+                    encoding = f.substring(f.indexOf(':') + 1);
+                }
+                if (fields != null) {
+                    if (kept + f.length() <= MAX_HEADER_BYTES) {
+                        fields.add(f);
+                        kept += f.length();
+                    } else {
+                        complete = false;
+                    }
+                }
+                field = null;
+            }
+            if (!more || lineLength == 0) {
+                break;
+            }
+            String text = new String(line, 0, lineLength, LineScanner.CHARSET)
+                    + (terminator == 2 ? "\r\n" : terminator == 1 ? "\n" : "");
+            if (continuation && field != null) {
+                field.append(text);
+            } else {
+                field = new StringBuilder(text);
+            }
+        }
+        part.bodyStart = offset;
+        if (contentType != null) {
+            parseContentType(part, contentType);
+        }
+        if (encoding != null) {
+            part.encoding = encoding.trim().toLowerCase(Locale.ROOT);
+        }
+        return complete;
+    }
+
+    private static String fieldName(String field) {
+        int colon = field.indexOf(':');
+        return colon < 0 ? "" : field.substring(0, colon).trim();
+    }
+
+    /** "type/subtype; name=value; name="quoted value"" (RFC 2045). */
+    private static void parseContentType(MessageStructure.Part part, String value) {
+        String[] pieces = splitParameters(value.replaceAll("[\\r\\n]+[ \\t]", " ").trim());
+        int slash = pieces[0].indexOf('/');
+        if (slash > 0) {
+            part.type = pieces[0].substring(0, slash).trim().toLowerCase(Locale.ROOT);
+            part.subtype = pieces[0].substring(slash + 1).trim().toLowerCase(Locale.ROOT);
+        }
+        Map<String, String> parameters = new HashMap<>();
+        for (int i = 1; i < pieces.length; i++) {
+            int eq = pieces[i].indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            String name = pieces[i].substring(0, eq).trim().toLowerCase(Locale.ROOT);
+            String v = pieces[i].substring(eq + 1).trim();
+            if (v.length() >= 2 && v.charAt(0) == '"' && v.charAt(v.length() - 1) == '"') {
+                v = v.substring(1, v.length() - 1).replaceAll("\\\\(.)", "$1");
+            }
+            parameters.put(name, v);
+        }
+        part.parameters = parameters;
+    }
+
+    /** Split at semicolons outside quoted strings. */
+    private static String[] splitParameters(String value) {
+        List<String> pieces = new ArrayList<>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == '\\' && quoted) {
+                i++;
+            } else if (c == ';' && !quoted) {
+                pieces.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        pieces.add(value.substring(start));
+        return pieces.toArray(new String[0]);
+    }
+
+    /**
+     * 1 if the current line is a delimiter for this boundary, 2 if it is the
+     * closing delimiter, 0 otherwise. Trailing white space is allowed.
+     */
+    private int delimiter(String boundary) {
+        int n = boundary.length();
+        if (lineLength < 2 + n) {
+            return 0;
+        }
+        for (int i = 0; i < n; i++) {
+            if (line[2 + i] != (byte) boundary.charAt(i)) {
+                return 0;
+            }
+        }
+        int i = 2 + n;
+        int kind = 1;
+        if (i + 2 <= lineLength && line[i] == '-' && line[i + 1] == '-') {
+            kind = 2;
+            i += 2;
+        }
+        for (; i < lineLength; i++) {
+            if (line[i] != ' ' && line[i] != '\t') {
+                return 0;
+            }
+        }
+        return kind;
+    }
+
+    /** Close a part and its last descendants that are still open. */
+    private static void endOpenParts(MessageStructure.Part part, long end) {
+        while (part != null && part.end < 0) {
+            // An empty body ends where it starts, not at the delimiter's CRLF
+            part.end = Math.max(end, part.bodyStart);
+            part = part.children.isEmpty() ? null : part.children.get(part.children.size() - 1);
+        }
+    }
+
+    /** Read the next line; false at end of input. */
+    private boolean nextLine() throws IOException {
+        previousTerminator = terminator;
+        lineStart = offset;
+        lineLength = 0;
+        terminator = 0;
+        byte last = 0;
+        while (true) {
+            if (bufferPos == bufferLen) {
+                bufferLen = Math.max(in.read(buffer, 0, BUFFER_SIZE), 0);
+                bufferPos = 0;
+                if (bufferLen == 0) {
+                    break;
+                }
+            }
+            int start = bufferPos;
+            while (bufferPos < bufferLen && buffer[bufferPos] != '\n') {
+                bufferPos++;
+            }
+            keep(start, bufferPos - start);
+            if (bufferPos > start) {
+                last = buffer[bufferPos - 1];
+            }
+            if (bufferPos < bufferLen) {
+                bufferPos++;
+                offset++;
+                terminator = last == '\r' ? 2 : 1;
+                break;
+            }
+        }
+        // Drop the CR, unless the line was cut before it
+        if (terminator == 2 && offset - lineStart - 1 == lineLength) {
+            lineLength--;
+        }
+        return offset > lineStart;
+    }
+
+    private void keep(int from, int n) {
+        offset += n;
+        int room = MAX_LINE - lineLength;
+        int take = Math.min(n, room);
+        if (take <= 0) {
+            return;
+        }
+        if (lineLength + take > line.length) {
+            byte[] bigger = new byte[Math.min(MAX_LINE, Math.max(line.length * 2, lineLength + take))];
+            System.arraycopy(line, 0, bigger, 0, lineLength);
+            line = bigger;
+        }
+        System.arraycopy(buffer, from, line, lineLength, take);
+        lineLength += take;
+    }
+}
@@ -0,0 +1,386 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Durable queue of mail for remote domains. Accepting a message only
+ * writes it to the queue directory, so the SMTP client gets its 250 without
+ * waiting on the remote MX. A small pool then delivers queued messages,
+ * retrying temporary failures with exponential backoff and bouncing to
+ * the sender what cannot be delivered.
+ *
+ * Each entry is two files: "<id>.msg" holds the body in wire form and
+ * "<id>.env" the envelope and retry state. The envelope is written last
+ * (and always replaced atomically), so an entry exists once its .env does;
+ * the queue is reloaded from the directory on startup. Entries whose
+ * envelope cannot be read are moved, body and all, to "quarantine" for an
+ * operator to look at.
+ *
+ * Deliveries go through RemoteDelivery's connection pool, so messages
+ * queued for the same MX reuse its open sessions instead of connecting
+ * once per message.
+ */
+public class OutboundQueue {
+
+    // Deliveries running at the same time
+    private static final int MAX_CONCURRENT_DELIVERIES = 4;
+    // Retry delays: 1 min, 2 min, 4 min, ... capped at 4 h
+    private static final long INITIAL_RETRY_MILLIS = 60_000L;
+    private static final long MAX_RETRY_MILLIS = 4 * 60 * 60_000L;
+    // Give up and bounce after this long in the queue
+    private static final long MAX_QUEUE_AGE_MILLIS = 3 * 24 * 60 * 60_000L;
+    private static final String QUARANTINE_DIR = "quarantine";
+
+    // Outcome of each delivery attempt, and how long the attempt took
+    private static final LongAdder DELIVERED = Metrics.counter("remote_delivery_total", "outcome", "delivered");
+    private static final LongAdder DEFERRED = Metrics.counter("remote_delivery_total", "outcome", "deferred");
+    private static final LongAdder BOUNCED = Metrics.counter("remote_delivery_total", "outcome", "bounced");
+    private static final Histogram ATTEMPT_TIME = Metrics.histogram("remote_delivery_seconds");
+    // Time from enqueue to the message leaving the queue, delivered or bounced
+    private static final Histogram QUEUE_TIME = Metrics.histogram("remote_delivery_queue_seconds");
+
+    private final File queueDir;
+    private final String serverDomain;
+    private final MailboxManager mailboxManager;
+    private final UserManager userManager;
+    private final RemoteDelivery remoteDelivery;
+    private final ScheduledExecutorService scheduler;
+
+    public OutboundQueue(File queueDir,
+                         String serverDomain,
+                         MailboxManager mailboxManager,
+                         UserManager userManager,
+                         RemoteDelivery remoteDelivery) {
+        this.queueDir = queueDir;
+        this.serverDomain = serverDomain;
+        this.mailboxManager = mailboxManager;
+        this.userManager = userManager;
+        this.remoteDelivery = remoteDelivery;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(MAX_CONCURRENT_DELIVERIES, r -> {
+            Thread t = new Thread(r, "outbound-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        if (!queueDir.exists()) {
+            queueDir.mkdirs();
+        }
+    }
+
+    /**
+     * Reschedule everything left in the queue directory by a previous run,
+     * and drop bodies whose envelope was never written.
+     */
+    public void recover() {
+        File[] files = queueDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(".env")) {
+                String id = name.substring(0, name.length() - 4);
+                try {
+                    Entry entry = readEntry(id);
+                    long delay = Math.max(0, entry.nextAttempt - System.currentTimeMillis());
+                    scheduler.schedule(() -> attempt(id), delay, TimeUnit.MILLISECONDS);
+                } catch (IOException | RuntimeException e) {
+                    quarantine(id, e);
+                }
+            } else if (name.endsWith(".msg")) {
+                File env = new File(queueDir, name.substring(0, name.length() - 4) + ".env");
+                if (!env.exists()) {
+                    f.delete();
+                }
+            } else if (name.endsWith(".tmp")) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Queue a message for the recipients of one remote domain. Once this
+     * returns the message is on disk and will survive a restart. bodyType
+     * is the BODY parameter it was received with (null if none), which
+     * the remote host must support too.
+     */
+    public void enqueue(String mailFrom, String domain, List<String> recipients,
+                        SpooledMessage message, String bodyType) throws IOException {
+        File body = File.createTempFile("queue_", ".msg", queueDir);
+        String id = body.getName().substring(0, body.getName().length() - 4);
+        try (FileChannel ch = FileChannel.open(body.toPath(), StandardOpenOption.WRITE)) {
+            message.writeTo(ch);
+            ch.force(true);
+        }
+
+        Entry entry = new Entry();
+        entry.mailFrom = mailFrom;
+        entry.domain = domain;
+        entry.recipients = new ArrayList<>(recipients);
+        entry.bodyType = bodyType;
+        entry.created = System.currentTimeMillis();
+        entry.nextAttempt = entry.created;
+        try {
+            writeEntry(id, entry);
+        } catch (IOException e) {
+            body.delete();
+            throw e;
+        }
+        scheduler.execute(() -> attempt(id));
+    }
+
+    /**
+     * One delivery attempt, run on the scheduler. Whatever goes wrong is
+     * dealt with here: an exception escaping a scheduled task would be
+     * swallowed by the executor and the entry never tried again.
+     */
+    private void attempt(String id) {
+        try {
+            deliver(id);
+        } catch (RuntimeException e) {
+            // After the send (a bounce or the cleanup failed): retrying
+            // could deliver twice, so leave the entry to an operator
+            e.printStackTrace();
+            quarantine(id, e);
+        }
+    }
+
+    private void deliver(String id) {
+        Entry entry;
+        try {
+            entry = readEntry(id);
+        } catch (IOException | RuntimeException e) {
+            quarantine(id, e);
+            return;
+        }
+        File body = new File(queueDir, id + ".msg");
+
+        long start = System.nanoTime();
+        Map<String, String> rejected;
+        try {
+            rejected = remoteDelivery.send(entry.mailFrom, entry.domain, entry.recipients,
+                    body.toPath(), entry.bodyType);
+        } catch (IOException | RuntimeException e) {
+            ATTEMPT_TIME.recordSince(start);
+            if (e instanceof RuntimeException) {
+                // A bug or a reply nobody expected, not a verdict on the
+                // message: retried like a temporary failure
+                System.err.println("Delivery of queue entry " + id + " failed unexpectedly");
+                e.printStackTrace();
+            }
+            failed(id, entry, body, e);
+            return;
+        }
+        ATTEMPT_TIME.recordSince(start);
+        if (!rejected.isEmpty()) {
+            bounce(entry, rejected, body);
+        }
+        (rejected.size() < entry.recipients.size() ? DELIVERED : BOUNCED).increment();
+        QUEUE_TIME.record((System.currentTimeMillis() - entry.created) * 1_000_000L);
+        remove(id);
+    }
+
+    /** Retry a failed attempt later, or bounce it if it is permanent or too old. */
+    private void failed(String id, Entry entry, File body, Exception e) {
+        entry.attempts++;
+        entry.lastError = e instanceof IOException ? String.valueOf(e.getMessage()) : e.toString();
+        boolean permanent = e instanceof RemoteDelivery.DeliveryException
+                && ((RemoteDelivery.DeliveryException) e).isPermanent();
+        long now = System.currentTimeMillis();
+
+        if (permanent || now - entry.created >= MAX_QUEUE_AGE_MILLIS) {
+            Map<String, String> failed = new LinkedHashMap<>();
+            for (String rcpt : entry.recipients) {
+                failed.put(rcpt, entry.lastError);
+            }
+            bounce(entry, failed, body);
+            BOUNCED.increment();
+            QUEUE_TIME.record((now - entry.created) * 1_000_000L);
+            remove(id);
+            return;
+        }
+        DEFERRED.increment();
+
+        long delay = retryDelay(entry.attempts);
+        entry.nextAttempt = now + delay;
+        try {
+            writeEntry(id, entry);
+        } catch (IOException writeError) {
+            writeError.printStackTrace();
+        }
+        scheduler.schedule(() -> attempt(id), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static long retryDelay(int attempts) {
+        int shift = Math.min(attempts - 1, 20);
+        return Math.min(INITIAL_RETRY_MILLIS << shift, MAX_RETRY_MILLIS);
+    }
+
+    /**
+     * Tell the sender which recipients failed. Local senders get the notice
+     * in their mailbox, remote ones through the queue with an empty
+     * reverse-path; bounces themselves are never bounced.
+     */
+    private void bounce(Entry entry, Map<String, String> failed, File body) {
+        String sender = entry.mailFrom;
+        if (sender == null || sender.isEmpty()) {
+            return;
+        }
+        int at = sender.lastIndexOf('@');
+        if (at <= 0 || at == sender.length() - 1) {
+            return;
+        }
+        String senderDomain = sender.substring(at + 1);
+
+        try {
+            String text = buildBounce(sender, failed, body);
+            try (SpooledMessage notice = SpooledMessage.fromText(text)) {
+                if (senderDomain.equalsIgnoreCase(serverDomain)) {
+                    if (userManager.isValidUser(sender, serverDomain)) {
+                        mailboxManager.storeLocalMessage(sender, notice);
+                    }
+                } else {
+                    // The copied headers may hold 8-bit bytes
+                    enqueue("", senderDomain, List.of(sender), notice,
+                            text.chars().anyMatch(c -> c > 0x7F) ? "8BITMIME" : null);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private String buildBounce(String sender, Map<String, String> failed, File body) throws IOException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z", Locale.US);
+        StringBuilder sb = new StringBuilder();
+        sb.append("From: Mail Delivery System <MAILER-DAEMON@").append(serverDomain).append(">\r\n");
+        sb.append("To: <").append(sender).append(">\r\n");
+        sb.append("Subject: Undelivered Mail Returned to Sender\r\n");
+        sb.append("Date: ").append(dateFormat.format(new Date())).append("\r\n");
+        sb.append("Auto-Submitted: auto-replied\r\n");
+        sb.append("\r\n");
+        sb.append("This is the mail system at ").append(serverDomain).append(".\r\n\r\n");
+        sb.append("Your message could not be delivered to the following recipients:\r\n\r\n");
+        for (Map.Entry<String, String> e : failed.entrySet()) {
+            sb.append("  <").append(e.getKey()).append(">: ").append(e.getValue()).append("\r\n");
+        }
+        sb.append("\r\n--- Headers of the original message ---\r\n\r\n");
+        try (InputStream in = Files.newInputStream(body.toPath());
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, LineScanner.CHARSET))) {
+            // Same charset as SpooledMessage.fromText, so 8-bit headers
+            // are copied into the bounce unchanged
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                sb.append(WireFormat.unstuff(line)).append("\r\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    private void remove(String id) {
+        new File(queueDir, id + ".env").delete();
+        new File(queueDir, id + ".msg").delete();
+    }
+
+    /**
+     * Set aside an entry whose envelope cannot be read, so it is neither
+     * retried forever nor dropped: the accepted message stays on disk.
+     */
+    private void quarantine(String id, Exception cause) {
+        File dir = new File(queueDir, QUARANTINE_DIR);
+        dir.mkdirs();
+        try {
+            for (String suffix : new String[] {".env", ".msg"}) {
+                File f = new File(queueDir, id + suffix);
+                if (f.exists()) {
+                    Files.move(f.toPath(), new File(dir, f.getName()).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            System.err.println("Quarantined queue entry " + id + ": " + cause.getMessage());
+        } catch (IOException e) {
+            System.err.println("Cannot quarantine queue entry " + id + ": " + e.getMessage());
+        }
+    }
+
+    private Entry readEntry(String id) throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(new File(queueDir, id + ".env").toPath())) {
+            p.load(in);
+        }
+        Entry entry = new Entry();
+        entry.mailFrom = p.getProperty("from", "");
+        entry.domain = p.getProperty("domain");
+        entry.recipients = new ArrayList<>(Arrays.asList(p.getProperty("recipients", "").split(",")));
+        entry.created = Long.parseLong(p.getProperty("created", "0"));
+        entry.nextAttempt = Long.parseLong(p.getProperty("nextAttempt", "0"));
+        entry.attempts = Integer.parseInt(p.getProperty("attempts", "0"));
+        entry.lastError = p.getProperty("lastError");
+        entry.bodyType = p.getProperty("body");
+        if (entry.domain == null || entry.recipients.get(0).isEmpty()) {
+            throw new IOException("Corrupt queue entry " + id);
+        }
+        return entry;
+    }
+
+    private void writeEntry(String id, Entry entry) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("from", entry.mailFrom == null ? "" : entry.mailFrom);
+        p.setProperty("domain", entry.domain);
+        p.setProperty("recipients", String.join(",", entry.recipients));
+        p.setProperty("created", Long.toString(entry.created));
+        p.setProperty("nextAttempt", Long.toString(entry.nextAttempt));
+        p.setProperty("attempts", Integer.toString(entry.attempts));
+        if (entry.lastError != null) {
+            p.setProperty("lastError", entry.lastError);
+        }
+        if (entry.bodyType != null) {
+            p.setProperty("body", entry.bodyType);
+        }
+        File tmp = new File(queueDir, id + ".env.tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // store() flushes its own buffer; forced so the renamed
+            // envelope is never empty after a power loss
+            p.store(Channels.newOutputStream(ch), null);
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), new File(queueDir, id + ".env").toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // The rename too, or enqueue's promise would not hold
+        FileSync.syncDirectory(queueDir);
+    }
+
+    private static final class Entry {
+        String mailFrom;
+        String domain;
+        List<String> recipients;
+        // BODY parameter, null for plain 7-bit mail
+        String bodyType;
+        long created;
+        long nextAttempt;
+        int attempts;
+        String lastError;
+    }
+}
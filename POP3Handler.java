@@ -1,14 +1,28 @@
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-
-public class POP3Handler implements Runnable {
+import java.util.Map;
+
+public class POP3Handler implements Runnable, ProtocolSession {
+
+    // Replies sent on every listing or retrieval, encoded once
+    private static final byte[] END_OF_LIST = ProtocolOutput.encodeLine(".");
+    private static final byte[] NO_SUCH_MESSAGE = ProtocolOutput.encodeLine("-ERR No such message");
+    private static final byte[] INVALID_MESSAGE_NUMBER =
+            ProtocolOutput.encodeLine("-ERR Invalid message number");
+    private static final byte[] NOT_AUTHENTICATED = ProtocolOutput.encodeLine("-ERR Not authenticated");
+    private static final byte[] SCAN_LISTING = ProtocolOutput.encodeLine("+OK scan listing follows");
+    private static final byte[] UNIQUE_ID_LISTING = ProtocolOutput.encodeLine("+OK unique-id listing follows");
+    // RFC 2449 capabilities
+    private static final byte[] CAPABILITIES = ProtocolOutput.encodeLine(
+            "+OK Capability list follows\r\nUSER\r\nTOP\r\nUIDL\r\n.");
+
+    private static final Map<String, Histogram> COMMAND_TIMES = Metrics.histograms("pop3_command_seconds",
+            "command", "USER", "PASS", "STAT", "LIST", "RETR", "DELE", "RSET", "QUIT",
+            "UIDL", "TOP", "CAPA");
 
     private final Socket client;
     private final MailboxManager mailboxManager;
@@ -17,7 +31,7 @@ public class POP3Handler implements Runnable {
 
     private String currentUser;
     private boolean authenticated = false;
-    private List<File> messages = new ArrayList<>();
+    private List<StoredMessage> messages = new ArrayList<>();
     private boolean[] deletedFlags = new boolean[0];
 
     public POP3Handler(Socket client,
@@ -37,6 +51,7 @@ public class POP3Handler implements Runnable {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            closed();
             try {
                 client.close();
             } catch (IOException ignored) {}
@@ -44,93 +59,118 @@ public class POP3Handler implements Runnable {
     }
 
     private void handleSession() throws IOException {
-        OutputStream out = client.getOutputStream();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
+        ProtocolOutput out = ProtocolOutput.forSocket(client);
+        serve(new LineReader(client.getInputStream()), out);
+    }
 
-        writeLine(out, "+OK POP3 server ready (" + serverDomain + ")");
+    @Override
+    public boolean greet(ProtocolOutput out) throws IOException {
+        out.writeLine("+OK POP3 server ready (" + serverDomain + ")");
+        return true;
+    }
 
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (line.trim().isEmpty()) {
-                continue;
-            }
-            String[] parts = line.split(" ", 2);
-            String cmd = parts[0].toUpperCase();
-            String arg = parts.length > 1 ? parts[1].trim() : null;
-
-            switch (cmd) {
-                case "USER":
-                    handleUser(arg, out);
-                    break;
-                case "PASS":
-                    handlePass(arg, out);
-                    break;
-                case "STAT":
-                    handleStat(out);
-                    break;
-                case "LIST":
-                    handleList(arg, out);
-                    break;
-                case "RETR":
-                    handleRetr(arg, out);
-                    break;
-                case "DELE":
-                    handleDele(arg, out);
-                    break;
-                case "RSET":
-                    handleRset(out);
-                    break;
-                case "QUIT":
-                    handleQuit(out);
-                    return;
-                default:
-                    writeLine(out, "-ERR Unknown command");
-            }
+    @Override
+    public boolean handleLine(String line, ProtocolOutput out) throws IOException {
+        if (line.trim().isEmpty()) {
+            return true;
+        }
+        String[] parts = line.split(" ", 2);
+        String cmd = parts[0].toUpperCase();
+        String arg = parts.length > 1 ? parts[1].trim() : null;
+
+        Histogram timer = COMMAND_TIMES.getOrDefault(cmd, COMMAND_TIMES.get("OTHER"));
+        long start = System.nanoTime();
+        try {
+            return dispatch(cmd, arg, out);
+        } finally {
+            timer.recordSince(start);
+        }
+    }
+
+    private boolean dispatch(String cmd, String arg, ProtocolOutput out) throws IOException {
+        switch (cmd) {
+            case "USER":
+                handleUser(arg, out);
+                break;
+            case "PASS":
+                handlePass(arg, out);
+                break;
+            case "STAT":
+                handleStat(out);
+                break;
+            case "LIST":
+                handleList(arg, out);
+                break;
+            case "RETR":
+                handleRetr(arg, out);
+                break;
+            case "TOP":
+                handleTop(arg, out);
+                break;
+            case "UIDL":
+                handleUidl(arg, out);
+                break;
+            case "CAPA":
+                out.write(CAPABILITIES);
+                break;
+            case "DELE":
+                handleDele(arg, out);
+                break;
+            case "RSET":
+                handleRset(out);
+                break;
+            case "QUIT":
+                handleQuit(out);
+                return false;
+            default:
+                out.writeLine("-ERR Unknown command");
         }
+        return true;
     }
 
-    private void writeLine(OutputStream out, String s) throws IOException {
-        out.write((s + "\r\n").getBytes());
-        out.flush();
+    @Override
+    public boolean lineTooLong(ProtocolOutput out) throws IOException {
+        out.writeLine("-ERR Line too long");
+        return true;
     }
 
-    private void handleUser(String arg, OutputStream out) throws IOException {
+    private void handleUser(String arg, ProtocolOutput out) throws IOException {
         if (arg == null || arg.isEmpty()) {
-            writeLine(out, "-ERR Missing username");
+            out.writeLine("-ERR Missing username");
             return;
         }
 
         if (!userManager.isValidUser(arg, serverDomain)) {
-            writeLine(out, "-ERR Invalid user");
+            out.writeLine("-ERR Invalid user");
             return;
         }
 
         this.currentUser = arg;
         this.authenticated = false;
-        writeLine(out, "+OK User accepted");
+        out.writeLine("+OK User accepted");
     }
 
-    private void handlePass(String arg, OutputStream out) throws IOException {
+    private void handlePass(String arg, ProtocolOutput out) throws IOException {
         if (currentUser == null) {
-            writeLine(out, "-ERR USER required before PASS");
+            out.writeLine("-ERR USER required before PASS");
             return;
         }
 
         if (arg == null) {
-            writeLine(out, "-ERR Missing password");
+            out.writeLine("-ERR Missing password");
             return;
         }
 
         if (userManager.checkPassword(currentUser, arg)) {
             authenticated = true;
             loadMessages();
-            writeLine(out, "+OK Authenticated");
+            out.writeLine("+OK Authenticated");
         } else {
-            writeLine(out, "-ERR Authentication failed");
+            out.writeLine("-ERR Authentication failed");
         }
     }
 
-    private void handleStat(OutputStream out) throws IOException {
+    private void handleStat(ProtocolOutput out) throws IOException {
         if (!ensureAuthenticated(out)) return;
 
         long totalSize = 0;
@@ -138,87 +178,179 @@ public class POP3Handler implements Runnable {
         for (int i = 0; i < messages.size(); i++) {
             if (!deletedFlags[i]) {
                 count++;
-                totalSize += messages.get(i).length();
+                totalSize += messages.get(i).getSize();
             }
         }
-        writeLine(out, "+OK " + count + " " + totalSize);
+        out.writeLine("+OK " + count + " " + totalSize);
     }
 
-    private void handleList(String arg, OutputStream out) throws IOException {
+    private void handleList(String arg, ProtocolOutput out) throws IOException {
         if (!ensureAuthenticated(out)) return;
 
         if (arg == null || arg.isEmpty()) {
-            writeLine(out, "+OK scan listing follows");
+            out.write(SCAN_LISTING);
             for (int i = 0; i < messages.size(); i++) {
                 if (!deletedFlags[i]) {
-                    long size = messages.get(i).length();
-                    writeLine(out, (i + 1) + " " + size);
+                    long size = messages.get(i).getSize();
+                    out.writeLine((i + 1) + " " + size);
                 }
             }
-            writeLine(out, ".");
+            out.write(END_OF_LIST);
         } else {
             int index = parseIndex(arg);
             if (index == -1) {
-                writeLine(out, "-ERR Invalid message number");
+                out.write(INVALID_MESSAGE_NUMBER);
                 return;
             }
             if (!isExistingAndNotDeleted(index)) {
-                writeLine(out, "-ERR No such message");
+                out.write(NO_SUCH_MESSAGE);
                 return;
             }
             long size = mailboxManager.messageSize(messages.get(index - 1));
-            writeLine(out, "+OK " + index + " " + size);
+            out.writeLine("+OK " + index + " " + size);
         }
     }
 
-    private void handleRetr(String arg, OutputStream out) throws IOException {
+    private void handleRetr(String arg, ProtocolOutput out) throws IOException {
         if (!ensureAuthenticated(out)) return;
 
         int index = parseIndex(arg);
         if (index == -1) {
-            writeLine(out, "-ERR Invalid message number");
+            out.write(INVALID_MESSAGE_NUMBER);
             return;
         }
         if (!isExistingAndNotDeleted(index)) {
-            writeLine(out, "-ERR No such message");
+            out.write(NO_SUCH_MESSAGE);
             return;
         }
 
-        File msgFile = messages.get(index - 1);
-        long size = mailboxManager.messageSize(msgFile);
-        writeLine(out, "+OK " + size + " octets");
+        StoredMessage message = messages.get(index - 1);
+        // Opened before the status line so a missing message gets an error,
+        // and closed here if the status line fails before transferFrom owns it
+        MessageRegion region = mailboxManager.openMessage(message);
+        try {
+            out.writeLine("+OK " + message.getSize() + " octets");
+        } catch (IOException | RuntimeException e) {
+            region.close();
+            throw e;
+        }
+
+        // Stored in wire form already: sent straight from the file
+        out.transferFrom(region);
+        out.write(END_OF_LIST);
+    }
 
-        for (String msgLine : mailboxManager.readMessageLines(msgFile)) {
-            writeLine(out, msgLine);
+    /**
+     * The header and the first lines of the body. Only that much of the
+     * message is read, a buffer at a time, and it goes out as stored: the
+     * wire form is already dot-stuffed.
+     */
+    private void handleTop(String arg, ProtocolOutput out) throws IOException {
+        if (!ensureAuthenticated(out)) return;
+
+        String[] args = arg == null ? new String[0] : arg.split("\\s+");
+        long bodyLines = args.length == 2 ? parseLineCount(args[1]) : -1;
+        if (bodyLines < 0) {
+            out.writeLine("-ERR Usage: TOP <message> <lines>");
+            return;
         }
-        writeLine(out, ".");
+        int index = parseIndex(args[0]);
+        if (index == -1) {
+            out.write(INVALID_MESSAGE_NUMBER);
+            return;
+        }
+        if (!isExistingAndNotDeleted(index)) {
+            out.write(NO_SUCH_MESSAGE);
+            return;
+        }
+
+        StoredMessage message = messages.get(index - 1);
+        try (InputStream in = mailboxManager.openMessage(message).newInputStream()) {
+            out.writeLine("+OK Top of message follows");
+            byte[] buf = new byte[8192];
+            boolean inBody = false;
+            boolean emptyLine = true;
+            long lines = 0;
+            int n;
+            scan:
+            while ((n = in.read(buf)) >= 0) {
+                for (int i = 0; i < n; i++) {
+                    if (buf[i] == '\n') {
+                        boolean end;
+                        if (inBody) {
+                            end = ++lines == bodyLines;
+                        } else {
+                            // The empty line ends the header
+                            inBody = emptyLine;
+                            end = inBody && bodyLines == 0;
+                        }
+                        if (end) {
+                            out.write(buf, 0, i + 1);
+                            break scan;
+                        }
+                        emptyLine = true;
+                    } else if (buf[i] != '\r') {
+                        emptyLine = false;
+                    }
+                }
+                out.write(buf, 0, n);
+            }
+        }
+        out.write(END_OF_LIST);
     }
 
-    private void handleDele(String arg, OutputStream out) throws IOException {
+    private void handleUidl(String arg, ProtocolOutput out) throws IOException {
+        if (!ensureAuthenticated(out)) return;
+
+        // UIDs are never reused within a mailbox, so they identify a
+        // message across sessions as RFC 1939 requires
+        if (arg == null || arg.isEmpty()) {
+            out.write(UNIQUE_ID_LISTING);
+            for (int i = 0; i < messages.size(); i++) {
+                if (!deletedFlags[i]) {
+                    out.writeLine((i + 1) + " " + messages.get(i).getUid());
+                }
+            }
+            out.write(END_OF_LIST);
+        } else {
+            int index = parseIndex(arg);
+            if (index == -1) {
+                out.write(INVALID_MESSAGE_NUMBER);
+                return;
+            }
+            if (!isExistingAndNotDeleted(index)) {
+                out.write(NO_SUCH_MESSAGE);
+                return;
+            }
+            out.writeLine("+OK " + index + " " + messages.get(index - 1).getUid());
+        }
+    }
+
+    private void handleDele(String arg, ProtocolOutput out) throws IOException {
         if (!ensureAuthenticated(out)) return;
 
         int index = parseIndex(arg);
         if (index == -1) {
-            writeLine(out, "-ERR Invalid message number");
+            out.write(INVALID_MESSAGE_NUMBER);
             return;
         }
         if (!isExistingAndNotDeleted(index)) {
-            writeLine(out, "-ERR No such message");
+            out.write(NO_SUCH_MESSAGE);
             return;
         }
 
         deletedFlags[index - 1] = true;
-        writeLine(out, "+OK Message " + index + " marked for deletion");
+        out.writeLine("+OK Message " + index + " marked for deletion");
     }
 
-    private void handleRset(OutputStream out) throws IOException {
+    private void handleRset(ProtocolOutput out) throws IOException {
         if (!ensureAuthenticated(out)) return;
 
         Arrays.fill(deletedFlags, false);
-        writeLine(out, "+OK Deletion marks cleared");
+        out.writeLine("+OK Deletion marks cleared");
     }
 
-    private void handleQuit(OutputStream out) throws IOException {
+    private void handleQuit(ProtocolOutput out) throws IOException {
         if (authenticated) {
             for (int i = 0; i < messages.size(); i++) {
                 if (deletedFlags[i]) {
@@ -226,12 +358,12 @@ public class POP3Handler implements Runnable {
                 }
             }
         }
-        writeLine(out, "+OK Goodbye");
+        out.writeLine("+OK Goodbye");
     }
 
-    private boolean ensureAuthenticated(OutputStream out) throws IOException {
+    private boolean ensureAuthenticated(ProtocolOutput out) throws IOException {
         if (!authenticated) {
-            writeLine(out, "-ERR Not authenticated");
+            out.write(NOT_AUTHENTICATED);
             return false;
         }
         return true;
@@ -249,11 +381,21 @@ public class POP3Handler implements Runnable {
         }
     }
 
+    /** A TOP line count (0 or more), or -1. */
+    private long parseLineCount(String arg) {
+        try {
+            long lines = Long.parseLong(arg);
+            return lines >= 0 ? lines : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private boolean isExistingAndNotDeleted(int index) {
         return index >= 1 && index <= messages.size() && !deletedFlags[index - 1];
     }
 
-    private void loadMessages() {
+    private void loadMessages() throws IOException {
         messages = mailboxManager.listMessages(currentUser);
         deletedFlags = new boolean[messages.size()];
     }
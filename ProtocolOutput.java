@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Where a ProtocolSession writes its replies. Besides plain bytes it can
+ * send a stored message straight from its file, so message bodies do not
+ * have to pass through the heap.
+ */
+public abstract class ProtocolOutput extends OutputStream {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * Encode a reply line, CRLF included, in the protocol charset. Constant
+     * replies are encoded once this way and written with write(byte[]).
+     */
+    public static byte[] encodeLine(String s) {
+        byte[] text = s.getBytes(LineScanner.CHARSET);
+        byte[] line = new byte[text.length + 2];
+        System.arraycopy(text, 0, line, 0, text.length);
+        line[text.length] = '\r';
+        line[text.length + 1] = '\n';
+        return line;
+    }
+
+    /**
+     * Write one line followed by CRLF, in the protocol charset. Nothing is
+     * sent before flush().
+     */
+    public void writeLine(String s) throws IOException {
+        write(s.getBytes(LineScanner.CHARSET));
+        write(CRLF, 0, 2);
+    }
+
+    /**
+     * Send the region after everything written so far. The output takes
+     * ownership of the region and closes it once it has been sent.
+     */
+    public abstract void transferFrom(MessageRegion region) throws IOException;
+
+    /** Output for a blocking socket; writes are buffered until flush. */
+    public static ProtocolOutput forSocket(Socket socket) throws IOException {
+        return new SocketOutput(socket);
+    }
+
+    private static final class SocketOutput extends ProtocolOutput {
+        private static final int BUFFER_SIZE = 8192;
+
+        private final SocketChannel channel;
+        private final OutputStream stream;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        SocketOutput(Socket socket) throws IOException {
+            // Sockets accepted from a ServerSocketChannel have a channel;
+            // others fall back to copying through the stream
+            this.channel = socket.getChannel();
+            this.stream = socket.getOutputStream();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > buffer.remaining()) {
+                flush();
+                if (len > buffer.capacity()) {
+                    stream.write(b, off, len);
+                    return;
+                }
+            }
+            buffer.put(b, off, len);
+        }
+
+        @Override
+        public void writeLine(String s) throws IOException {
+            // Encoded straight into the buffer: no intermediate byte array
+            int len = s.length();
+            if (len + 2 > buffer.capacity()) {
+                super.writeLine(s);
+                return;
+            }
+            if (len + 2 > buffer.remaining()) {
+                flush();
+            }
+            for (int i = 0; i < len; i++) {
+                char c = s.charAt(i);
+                buffer.put(c <= 0xFF ? (byte) c : (byte) '?');
+            }
+            buffer.put((byte) '\r');
+            buffer.put((byte) '\n');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer.position() > 0) {
+                stream.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            stream.flush();
+        }
+
+        @Override
+        public void transferFrom(MessageRegion region) throws IOException {
+            try (MessageRegion r = region) {
+                flush();
+                if (channel != null) {
+                    while (!r.isDone()) {
+                        r.transferTo(channel);
+                    }
+                } else {
+                    r.copyTo(stream);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Line-oriented protocol logic, independent of how the connection is driven.
+ * The blocking handlers feed it from a reader loop; the selector front end
+ * feeds it lines as they arrive on a non-blocking channel.
+ */
+public interface ProtocolSession {
+
+    /**
+     * Write the server greeting.
+     * Returns false if the connection should be closed right away.
+     */
+    boolean greet(ProtocolOutput out) throws IOException;
+
+    /**
+     * Handle one command line (without its line terminator).
+     * Returns false once the session is over and the connection should be closed.
+     */
+    boolean handleLine(String line, ProtocolOutput out) throws IOException;
+
+    /**
+     * Number of raw bytes the session expects before its next command line,
+     * such as the rest of an SMTP BDAT chunk; 0 while it reads lines.
+     */
+    default long bytesExpected() {
+        return 0;
+    }
+
+    /**
+     * Handle raw input: the remaining bytes of the buffer, never more than
+     * bytesExpected(). Returns false once the session is over.
+     */
+    default boolean handleBytes(ByteBuffer data, ProtocolOutput out) throws IOException {
+        return false;
+    }
+
+    /**
+     * The client sent a line longer than LineScanner.MAX_LINE_LENGTH, which
+     * was skipped. Returns false if the connection should be closed.
+     */
+    default boolean lineTooLong(ProtocolOutput out) throws IOException {
+        return false;
+    }
+
+    /** Called once when the connection is gone, however the session ended. */
+    default void closed() {
+    }
+
+    /**
+     * Run the session over a blocking connection until either side ends it.
+     * Replies are flushed only when no further input is waiting, so
+     * pipelined commands get their replies back in one write.
+     */
+    default void serve(LineReader in, ProtocolOutput out) throws IOException {
+        if (greet(out)) {
+            out.flush();
+            while (true) {
+                boolean more;
+                long expected = bytesExpected();
+                if (expected > 0) {
+                    ByteBuffer data = in.readBytes(expected);
+                    if (data == null) {
+                        break;
+                    }
+                    more = handleBytes(data, out);
+                } else {
+                    try {
+                        String line = in.readLine();
+                        if (line == null) {
+                            break;
+                        }
+                        more = handleLine(line, out);
+                    } catch (LineReader.LineTooLongException e) {
+                        more = lineTooLong(out);
+                    }
+                }
+                if (!more) {
+                    break;
+                }
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SMTP client side: forwards a queued message to the MX of a remote domain.
+ */
+public class RemoteDelivery {
+
+    // Standard SMTP port of remote MX hosts
+    public static final int SMTP_PORT = 25;
+
+    private final DNSResolver resolver;
+    private final int remotePort;
+    private final SmtpConnectionPool pool;
+
+    public RemoteDelivery(String serverDomain) {
+        this(serverDomain, DNSResolver.systemDefault(), SMTP_PORT);
+    }
+
+    /**
+     * @param resolver   where MX hosts and their addresses are looked up
+     * @param remotePort port to connect to on MX hosts; only differs from
+     *                   SMTP_PORT to relay through a local stand-in server
+     */
+    public RemoteDelivery(String serverDomain, DNSResolver resolver, int remotePort) {
+        this.resolver = resolver;
+        this.remotePort = remotePort;
+        this.pool = new SmtpConnectionPool(serverDomain);
+    }
+
+    /**
+     * A failed delivery attempt. Permanent failures (5xx replies) are not
+     * worth retrying; anything else is.
+     */
+    public static class DeliveryException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean permanent;
+        private final boolean connectionLost;
+
+        public DeliveryException(String message, boolean permanent) {
+            this(message, permanent, false);
+        }
+
+        public DeliveryException(String message, boolean permanent, boolean connectionLost) {
+            super(message);
+            this.permanent = permanent;
+            this.connectionLost = connectionLost;
+        }
+
+        public boolean isPermanent() {
+            return permanent;
+        }
+
+        /** True if the session ended and cannot carry another transaction. */
+        public boolean isConnectionLost() {
+            return connectionLost;
+        }
+    }
+
+    /**
+     * Forward the message body (already in wire form) to the given recipients
+     * through the mail hosts of their domain, trying them in MX preference
+     * order until one accepts a connection. The SMTP session is borrowed
+     * from the connection pool and returned to it after the transaction, so
+     * a burst of messages to one MX shares a single connection.
+     *
+     * bodyType is the BODY parameter the message was received with (null
+     * if none). It is passed on, and a mail host that does not support it
+     * is a permanent failure: nothing here converts the content.
+     *
+     * Returns the recipients the remote server refused with a permanent
+     * error, mapped to its reply; the message went to all the others.
+     * Throws if nothing could be delivered.
+     */
+    public Map<String, String> send(String mailFrom,
+                                    String domain,
+                                    List<String> domainRecipients,
+                                    Path body,
+                                    String bodyType) throws IOException {
+
+        List<String> mxHosts = resolver.lookupMx(domain);
+        if (mxHosts.isEmpty()) {
+            throw new DeliveryException("No mail host found for domain " + domain, true);
+        }
+
+        SmtpConnectionPool.Connection conn = connect(domain, mxHosts);
+        boolean reusable = false;
+        try {
+            Map<String, String> rejected = transaction(conn, mailFrom, domainRecipients, body, bodyType);
+            reusable = true;
+            return rejected;
+        } catch (DeliveryException e) {
+            // A refused transaction leaves the session usable; the pool
+            // sends RSET before the next one. Lost connections do not.
+            reusable = !e.isConnectionLost();
+            throw e;
+        } finally {
+            if (reusable) {
+                pool.release(conn);
+            } else {
+                pool.discard(conn);
+            }
+        }
+    }
+
+    /** A session to the first mail host, and address of it, that answers. */
+    private SmtpConnectionPool.Connection connect(String domain, List<String> mxHosts) throws IOException {
+        IOException lastError = null;
+        for (String host : mxHosts) {
+            try {
+                for (InetAddress address : resolver.lookupAddresses(host)) {
+                    try {
+                        return pool.acquire(host, address, remotePort);
+                    } catch (IOException e) {
+                        lastError = e;
+                    }
+                }
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        if (lastError != null) {
+            throw lastError;
+        }
+        throw new DeliveryException("No address found for the mail hosts of " + domain, false);
+    }
+
+    /**
+     * One MAIL FROM / RCPT TO / DATA transaction on an open session, with
+     * BDAT in place of DATA for binary content (RFC 3030).
+     */
+    private Map<String, String> transaction(SmtpConnectionPool.Connection conn,
+                                            String mailFrom,
+                                            List<String> domainRecipients,
+                                            Path body,
+                                            String bodyType) throws IOException {
+        String mxHost = conn.getHost();
+        Map<String, String> rejected = new LinkedHashMap<>();
+
+        // The host must have announced the body type (RFC 6152, RFC 3030)
+        boolean binary = "BINARYMIME".equals(bodyType);
+        if (binary && !(conn.supports("BINARYMIME") && conn.supports("CHUNKING"))) {
+            throw new DeliveryException(mxHost + " does not accept binary content (BINARYMIME)", true);
+        }
+        if ("8BITMIME".equals(bodyType) && !conn.supports("8BITMIME")) {
+            throw new DeliveryException(mxHost + " does not accept 8-bit content (8BITMIME)", true);
+        }
+        String params = bodyType == null || bodyType.equals("7BIT") ? "" : " BODY=" + bodyType;
+
+        // MAIL FROM (empty reverse-path for bounces)
+        expect(conn.command("MAIL FROM:<" + mailFrom + ">" + params), '2', "MAIL FROM rejected by " + mxHost);
+
+        // RCPT TO for each recipient in this domain
+        int accepted = 0;
+        for (String rcpt : domainRecipients) {
+            String resp = conn.command("RCPT TO:<" + rcpt + ">");
+            if (isPositiveCompletion(resp)) {
+                accepted++;
+            } else if (isPermanent(resp)) {
+                rejected.put(rcpt, resp);
+            } else {
+                throw new DeliveryException("RCPT TO rejected by " + mxHost + ": " + resp, false);
+            }
+        }
+        if (accepted == 0) {
+            throw new DeliveryException("All recipients rejected by " + mxHost + ": "
+                    + rejected.values().iterator().next(), true);
+        }
+
+        if (binary) {
+            sendChunk(conn, body);
+            return rejected;
+        }
+
+        // DATA
+        expect(conn.command("DATA"), '3', "DATA rejected by " + mxHost);
+
+        // Body is already dot-stuffed and CRLF-terminated: copy it, then terminator line
+        OutputStream out = conn.getOutputStream();
+        try (InputStream bodyIn = Files.newInputStream(body)) {
+            bodyIn.transferTo(out);
+        }
+        out.write(".\r\n".getBytes());
+        out.flush();
+
+        expect(conn.readReply(), '2', "Message not accepted by " + mxHost);
+        return rejected;
+    }
+
+    /**
+     * Send the body as a single BDAT LAST chunk. BDAT takes the content as
+     * it is, so the dot-stuffing of the stored wire form is undone on the
+     * way; the chunk size is counted in a first pass.
+     */
+    private void sendChunk(SmtpConnectionPool.Connection conn, Path body) throws IOException {
+        long length;
+        try (InputStream bodyIn = WireFormat.unstuffing(Files.newInputStream(body))) {
+            length = bodyIn.transferTo(OutputStream.nullOutputStream());
+        }
+        OutputStream out = conn.getOutputStream();
+        out.write(("BDAT " + length + " LAST\r\n").getBytes());
+        try (InputStream bodyIn = WireFormat.unstuffing(Files.newInputStream(body))) {
+            bodyIn.transferTo(out);
+        }
+        out.flush();
+        expect(conn.readReply(), '2', "Message not accepted by " + conn.getHost());
+    }
+
+    private void expect(String resp, char expectedClass, String error) throws DeliveryException {
+        if (resp.isEmpty() || resp.charAt(0) != expectedClass) {
+            // 421: the server is closing the session
+            throw new DeliveryException(error + ": " + resp, isPermanent(resp), resp.startsWith("421"));
+        }
+    }
+
+    private boolean isPositiveCompletion(String resp) {
+        return resp != null && !resp.isEmpty() && resp.charAt(0) == '2';
+    }
+
+    private boolean isPermanent(String resp) {
+        return resp != null && !resp.isEmpty() && resp.charAt(0) == '5';
+    }
+}
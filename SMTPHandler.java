@@ -1,186 +1,408 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
-public class SMTPHandler implements Runnable {
+public class SMTPHandler implements Runnable, ProtocolSession {
+
+    // Largest message accepted, advertised through the SIZE extension
+    static final long MAX_MESSAGE_SIZE = 25L * 1024 * 1024;
+
+    // Replies sent on every transaction, encoded once
+    private static final byte[] OK = ProtocolOutput.encodeLine("250 OK");
+    private static final byte[] START_MAIL_INPUT =
+            ProtocolOutput.encodeLine("354 Start mail input; end with <CRLF>.<CRLF>");
+    // EHLO keywords between the greeting line and SIZE
+    private static final byte[] EXTENSIONS = ProtocolOutput.encodeLine(
+            "250-PIPELINING\r\n250-8BITMIME\r\n250-BINARYMIME\r\n250-CHUNKING");
+    private static final byte[] LOCAL_ERROR =
+            ProtocolOutput.encodeLine("451 Requested action aborted: local error in processing");
+    private static final byte[] SYNTAX_ERROR =
+            ProtocolOutput.encodeLine("501 Syntax error in parameters or arguments");
+    private static final byte[] BAD_SEQUENCE = ProtocolOutput.encodeLine("503 Bad sequence of commands");
+    private static final byte[] MAILBOX_NAME_NOT_ALLOWED =
+            ProtocolOutput.encodeLine("553 Requested action not taken: mailbox name not allowed");
+
+    // Time from a command to its reply; DATA counts from the final dot
+    private static final Map<String, Histogram> COMMAND_TIMES = Metrics.histograms("smtp_command_seconds",
+            "command", "EHLO", "HELO", "MAIL", "RCPT", "DATA", "BDAT", "RSET", "NOOP", "QUIT");
 
     private final Socket client;
     private final MailboxManager mailboxManager;
     private final UserManager userManager;
     private final String serverDomain;
+    private final OutboundQueue outboundQueue;
+
+    // Transaction state, kept across handleLine calls
+    private String mailFrom;
+    private final List<String> recipients = new ArrayList<>();
+    private boolean inData = false;
+    private boolean dataLineTooLong = false;
+    // BODY parameter of MAIL FROM, upper-case; null if none was given.
+    // BINARYMIME content may only come through BDAT, and the relay must
+    // find a peer that accepts the same body type
+    private String bodyType;
+    // Body being received, through DATA or BDAT chunks
+    private SpooledMessage data;
+
+    // BDAT chunk in progress: bytes still to read, its size, whether it is
+    // the LAST one, and whether it is only read to be thrown away
+    private long chunkRemaining = 0;
+    private long chunkSize = 0;
+    private boolean chunkLast = false;
+    private boolean chunkDiscard = false;
+    // When the BDAT command of the chunk in progress arrived
+    private long chunkStarted;
 
     public SMTPHandler(Socket client,
                        MailboxManager mailboxManager,
                        UserManager userManager,
-                       String serverDomain) {
+                       String serverDomain,
+                       OutboundQueue outboundQueue) {
         this.client = client;
         this.mailboxManager = mailboxManager;
         this.userManager = userManager;
         this.serverDomain = serverDomain;
+        this.outboundQueue = outboundQueue;
     }
 
     @Override
     public void run() {
-        OutputStream out = null;
+        ProtocolOutput out = null;
         try {
-            out = client.getOutputStream();
-            handleSession(out);
+            out = ProtocolOutput.forSocket(client);
+            // PIPELINING (RFC 2920): serve() holds replies back while the
+            // client has more commands buffered and sends them together
+            serve(new LineReader(client.getInputStream()), out);
         } catch (IOException e) {
             // 421 Service not available, closing transmission channel
             if (out != null) {
                 try {
-                    writeLine(out, "421 " + serverDomain
+                    out.writeLine("421 " + serverDomain
                             + " Service not available, closing transmission channel");
+                    out.flush();
                 } catch (IOException ignored) {
                 }
             }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            closed();
             try {
                 client.close();
             } catch (IOException ignored) {}
         }
     }
 
-    private void handleSession(OutputStream out) throws IOException {
-        BufferedReader in = new BufferedReader(
-                new InputStreamReader(client.getInputStream()));
-
+    @Override
+    public boolean greet(ProtocolOutput out) throws IOException {
         // Greeting (220)
-        writeLine(out, "220 " + serverDomain + " Service ready");
-
-        String line;
-        boolean quit = false;
-        String mailFrom = null;
-        List<String> recipients = new ArrayList<>();
-        boolean inData = false;
-        StringBuilder dataBuffer = new StringBuilder();
-
-        while (!quit && (line = in.readLine()) != null) {
-            if (inData) {
-                // DATA mode: collect message until a single dot line
-                if (line.equals(".")) {
-                    String rawMessage = dataBuffer.toString();
-                    try {
-                        if (mailFrom == null || recipients.isEmpty()) {
-                            // Should not normally happen if we enforce sequences
-                            writeLine(out, "451 Requested action aborted: local error in processing");
-                        } else {
-                            deliverMessage(mailFrom, recipients, rawMessage);
-                            writeLine(out, "250 OK");
-                        }
-                    } catch (IOException e) {
-                        writeLine(out, "451 Requested action aborted: local error in processing");
-                    }
+        out.writeLine("220 " + serverDomain + " Service ready");
+        return true;
+    }
 
-                    // Reset transaction state
-                    mailFrom = null;
-                    recipients.clear();
-                    dataBuffer = new StringBuilder();
+    @Override
+    public boolean handleLine(String line, ProtocolOutput out) throws IOException {
+        if (inData && !line.equals(".")) {
+            return processLine(line, out);
+        }
+        Histogram timer = inData ? COMMAND_TIMES.get("DATA") : commandTimer(line);
+        long start = System.nanoTime();
+        boolean more = processLine(line, out);
+        if (chunkRemaining > 0) {
+            // BDAT: timed once its chunk has been read
+            chunkStarted = start;
+        } else {
+            timer.recordSince(start);
+        }
+        return more;
+    }
+
+    private static Histogram commandTimer(String line) {
+        int end = 0;
+        while (end < line.length() && end < 4 && Character.isLetter(line.charAt(end))) {
+            end++;
+        }
+        Histogram timer = COMMAND_TIMES.get(line.substring(0, end).toUpperCase(Locale.ROOT));
+        return timer != null ? timer : COMMAND_TIMES.get("OTHER");
+    }
+
+    private boolean processLine(String line, ProtocolOutput out) throws IOException {
+        if (inData) {
+            // DATA mode: stream the message into the spool until a single dot line
+            if (line.equals(".")) {
+                try {
+                    if (dataLineTooLong) {
+                        out.writeLine("500 Line too long");
+                    } else if (data.isTooLarge()) {
+                        out.writeLine("552 Requested mail action aborted: exceeded storage allocation");
+                    } else if (mailFrom == null || recipients.isEmpty()) {
+                        // Should not normally happen if we enforce sequences
+                        out.write(LOCAL_ERROR);
+                    } else {
+                        deliverMessage(mailFrom, recipients, data, bodyType);
+                        out.write(OK);
+                    }
+                } catch (IOException e) {
+                    out.write(LOCAL_ERROR);
+                } finally {
+                    resetTransaction();
                     inData = false;
-                } else {
-                    dataBuffer.append(line).append("\r\n");
+                    dataLineTooLong = false;
+                }
+            } else {
+                // Lines stay dot-stuffed: the spool holds the wire form
+                try {
+                    data.appendLine(line);
+                } catch (IOException e) {
+                    // Spool write failed: the final dot gets a 451
+                    mailFrom = null;
                 }
-                continue;
             }
+            return true;
+        }
 
-            String command = line.trim();
-            String upper = command.toUpperCase();
+        String command = line.trim();
+        String upper = command.toUpperCase();
 
-            if (upper.startsWith("HELO")) {
-                String arg = extractArg(command);
-                if (arg.isEmpty()) {
-                    writeLine(out, "501 Syntax error in parameters or arguments");
-                } else {
-                    writeLine(out, "250 " + serverDomain + " greets " + arg);
-                    // Reset transaction on new HELO
-                    mailFrom = null;
-                    recipients.clear();
-                }
+        if (upper.startsWith("EHLO")) {
+            String arg = extractArg(command);
+            if (arg.isEmpty()) {
+                out.write(SYNTAX_ERROR);
+            } else {
+                out.writeLine("250-" + serverDomain + " greets " + arg);
+                out.write(EXTENSIONS);
+                out.writeLine("250 SIZE " + MAX_MESSAGE_SIZE);
+                resetTransaction();
+            }
 
-            } else if (upper.equals("MAIL FROM:")) {
-                // Explicit empty argument
-                writeLine(out, "501 Syntax error in parameters or arguments");
+        } else if (upper.startsWith("HELO")) {
+            String arg = extractArg(command);
+            if (arg.isEmpty()) {
+                out.write(SYNTAX_ERROR);
+            } else {
+                out.writeLine("250 " + serverDomain + " greets " + arg);
+                // Reset transaction on new HELO
+                resetTransaction();
+            }
 
-            } else if (upper.startsWith("MAIL FROM:")) {
-                String email = extractEmailArg(command, "MAIL FROM:");
-                if (email == null) {
-                    writeLine(out, "501 Syntax error in parameters or arguments");
-                } else {
-                    mailFrom = email;
-                    recipients.clear();
-                    writeLine(out, "250 OK");
-                }
+        } else if (upper.equals("MAIL FROM:")) {
+            // Explicit empty argument
+            out.write(SYNTAX_ERROR);
+
+        } else if (upper.startsWith("MAIL FROM:")) {
+            String[] pathAndParams = splitMailParams(command);
+            String email = extractEmailArg(pathAndParams[0], "MAIL FROM:");
+            long declaredSize = declaredSize(pathAndParams[1]);
+            String body = mailParam(pathAndParams[1], "BODY");
+            if (data != null) {
+                // BDAT transaction in progress
+                out.write(BAD_SEQUENCE);
+            } else if (email == null || declaredSize == -2 || !isKnownBodyType(body)) {
+                out.write(SYNTAX_ERROR);
+            } else if (declaredSize > MAX_MESSAGE_SIZE) {
+                // Reject before the client sends a single byte of the body
+                out.writeLine("552 Message size exceeds fixed maximum message size");
+            } else {
+                mailFrom = email;
+                recipients.clear();
+                bodyType = body == null ? null : body.toUpperCase(Locale.ROOT);
+                out.write(OK);
+            }
 
-            } else if (upper.equals("RCPT TO:")) {
-                writeLine(out, "501 Syntax error in parameters or arguments");
+        } else if (upper.equals("RCPT TO:")) {
+            out.write(SYNTAX_ERROR);
 
-            } else if (upper.startsWith("RCPT TO:")) {
-                if (mailFrom == null) {
-                    writeLine(out, "503 Bad sequence of commands");
-                    continue;
-                }
+        } else if (upper.startsWith("RCPT TO:")) {
+            if (mailFrom == null) {
+                out.write(BAD_SEQUENCE);
+                return true;
+            }
 
-                String email = extractEmailArg(command, "RCPT TO:");
-                if (email == null) {
-                    // syntactically bad mailbox
-                    writeLine(out, "553 Requested action not taken: mailbox name not allowed");
-                    continue;
-                }
+            String email = extractEmailArg(command, "RCPT TO:");
+            if (email == null) {
+                // syntactically bad mailbox
+                out.write(MAILBOX_NAME_NOT_ALLOWED);
+                return true;
+            }
 
-                String domain = getDomainPart(email);
-                if (domain == null) {
-                    writeLine(out, "553 Requested action not taken: mailbox name not allowed");
-                    continue;
-                }
+            String domain = getDomainPart(email);
+            if (domain == null || !DNSResolver.isValidName(domain)) {
+                // No domain, or one that no MX lookup could be made for
+                out.write(MAILBOX_NAME_NOT_ALLOWED);
+                return true;
+            }
 
-                if (domain.equalsIgnoreCase(serverDomain)) {
-                    // Local user: must exist
-                    if (!userManager.isValidUser(email, serverDomain)) {
-                        writeLine(out, "550 Requested action not taken: mailbox unavailable");
-                    } else {
-                        recipients.add(email);
-                        writeLine(out, "250 OK");
-                    }
+            if (domain.equalsIgnoreCase(serverDomain)) {
+                // Local user: must exist
+                if (!userManager.isValidUser(email, serverDomain)) {
+                    out.writeLine("550 Requested action not taken: mailbox unavailable");
                 } else {
-                    // Remote domain: accept and later forward via DNS/MX and SMTP
                     recipients.add(email);
-                    writeLine(out, "250 OK");
+                    out.write(OK);
                 }
+            } else {
+                // Remote domain: accept and later forward via DNS/MX and SMTP
+                recipients.add(email);
+                out.write(OK);
+            }
 
-            } else if (upper.equals("DATA")) {
-                if (recipients.isEmpty() || mailFrom == null) {
-                    writeLine(out, "503 Bad sequence of commands");
-                } else {
-                    writeLine(out, "354 Start mail input; end with <CRLF>.<CRLF>");
-                    inData = true;
-                    dataBuffer = new StringBuilder();
-                }
+        } else if (upper.equals("DATA")) {
+            if (recipients.isEmpty() || mailFrom == null || data != null) {
+                out.write(BAD_SEQUENCE);
+            } else if ("BINARYMIME".equals(bodyType)) {
+                // Binary content cannot be dot-terminated (RFC 3030)
+                out.writeLine("503 BINARYMIME requires BDAT");
+            } else {
+                out.write(START_MAIL_INPUT);
+                inData = true;
+                data = new SpooledMessage(mailboxManager.getSpoolDir(), MAX_MESSAGE_SIZE);
+            }
 
-            } else if (upper.equals("QUIT")) {
-                writeLine(out, "221 Bye");
-                quit = true;
+        } else if (upper.startsWith("BDAT ")) {
+            return handleBdat(command, out);
 
-            } else {
-                // Unknown or unsupported command
-                writeLine(out, "501 Syntax error in parameters or arguments");
+        } else if (upper.equals("RSET")) {
+            // Abort the transaction; pipelining clients use it between messages
+            resetTransaction();
+            out.write(OK);
+
+        } else if (upper.equals("NOOP")) {
+            out.write(OK);
+
+        } else if (upper.equals("QUIT")) {
+            out.writeLine("221 Bye");
+            return false;
+
+        } else {
+            // Unknown or unsupported command
+            out.write(SYNTAX_ERROR);
+        }
+        return true;
+    }
+
+    /**
+     * BDAT <size> [LAST] (RFC 3030): the next size bytes are message content,
+     * read as a byte count by handleBytes rather than as lines.
+     */
+    private boolean handleBdat(String command, ProtocolOutput out) throws IOException {
+        String[] args = command.substring(5).trim().split("\\s+");
+        long size;
+        try {
+            size = Long.parseLong(args[0]);
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        boolean last = args.length == 2 && args[1].equalsIgnoreCase("LAST");
+        if (size < 0 || args.length > 2 || (args.length == 2 && !last)) {
+            out.write(SYNTAX_ERROR);
+            return true;
+        }
+
+        chunkRemaining = size;
+        chunkSize = size;
+        chunkLast = last;
+        // Without a transaction the chunk is still read, then refused
+        chunkDiscard = mailFrom == null || recipients.isEmpty();
+        if (!chunkDiscard && data == null) {
+            data = new SpooledMessage(mailboxManager.getSpoolDir(), MAX_MESSAGE_SIZE);
+        }
+        if (size == 0) {
+            finishChunk(out);
+        }
+        return true;
+    }
+
+    @Override
+    public long bytesExpected() {
+        return chunkRemaining;
+    }
+
+    @Override
+    public boolean handleBytes(ByteBuffer bytes, ProtocolOutput out) throws IOException {
+        chunkRemaining -= bytes.remaining();
+        if (!chunkDiscard && mailFrom != null) {
+            try {
+                // Copied in bulk; only dots at line starts are touched
+                data.appendRaw(bytes);
+            } catch (IOException e) {
+                // Spool write failed: the chunk gets a 451
+                mailFrom = null;
             }
         }
+        if (chunkRemaining == 0) {
+            finishChunk(out);
+            COMMAND_TIMES.get("BDAT").recordSince(chunkStarted);
+        }
+        return true;
+    }
+
+    private void finishChunk(ProtocolOutput out) throws IOException {
+        if (chunkDiscard) {
+            out.write(BAD_SEQUENCE);
+        } else if (mailFrom == null) {
+            out.write(LOCAL_ERROR);
+            resetTransaction();
+        } else if (data.isTooLarge()) {
+            out.writeLine("552 Requested mail action aborted: exceeded storage allocation");
+            resetTransaction();
+        } else if (!chunkLast) {
+            out.writeLine("250 " + chunkSize + " octets received");
+        } else {
+            try {
+                data.endRaw();
+                deliverMessage(mailFrom, recipients, data, bodyType);
+                out.write(OK);
+            } catch (IOException e) {
+                out.write(LOCAL_ERROR);
+            } finally {
+                resetTransaction();
+            }
+        }
+    }
+
+    /** Forget the current transaction and release its body, if any. */
+    private void resetTransaction() {
+        mailFrom = null;
+        recipients.clear();
+        bodyType = null;
+        if (data != null) {
+            data.close();
+            data = null;
+        }
+    }
+
+    @Override
+    public boolean lineTooLong(ProtocolOutput out) throws IOException {
+        if (inData) {
+            // Keep reading the body; the transaction fails at the final dot
+            dataLineTooLong = true;
+        } else {
+            out.writeLine("500 Line too long");
+        }
+        return true;
+    }
+
+    @Override
+    public void closed() {
+        // Connection dropped mid-DATA or between BDAT chunks: release the spool
+        if (data != null) {
+            data.close();
+            data = null;
+        }
     }
 
     /**
-     * Deliver a message to local users and forward to remote domains via SMTP/DNS.
+     * Deliver a message to local users and queue it for remote domains.
      */
     private void deliverMessage(String mailFrom,
                                 List<String> recipients,
-                                String rawMessage) throws IOException {
+                                SpooledMessage message,
+                                String bodyType) throws IOException {
 
         List<String> localRecipients = new ArrayList<>();
         Map<String, List<String>> remoteByDomain = new HashMap<>();
@@ -202,148 +424,27 @@ public class SMTPHandler implements Runnable {
             }
         }
 
-        // Local delivery
-        for (String rcpt : localRecipients) {
-            mailboxManager.storeLocalMessage(rcpt, rawMessage);
+        // Local delivery: the body is stored once and shared by all recipients
+        if (!localRecipients.isEmpty()) {
+            mailboxManager.storeLocalMessage(localRecipients, message);
         }
 
-        // Remote delivery: one SMTP session per domain
+        // Remote delivery: queued per domain, sent in the background
         for (Map.Entry<String, List<String>> entry : remoteByDomain.entrySet()) {
             String domain = entry.getKey();
             List<String> rcptsForDomain = entry.getValue();
-            sendToRemoteDomain(mailFrom, domain, rcptsForDomain, rawMessage);
+            outboundQueue.enqueue(mailFrom, domain, rcptsForDomain, message, bodyType);
         }
     }
 
-    /**
-     * Open an SMTP connection to the remote mail server for the given domain,
-     * using DNS MX via `dig +short <domain> MX`, and forward the message.
-     */
-    private void sendToRemoteDomain(String mailFrom,
-                                    String domain,
-                                    List<String> domainRecipients,
-                                    String message) throws IOException {
-
-        String mxHost = lookupMxHost(domain);
-        if (mxHost == null) {
-            throw new IOException("No MX host found for domain " + domain);
-        }
-
-        Socket smtpSocket = new Socket(mxHost, 25);
-        try {
-            BufferedReader in = new BufferedReader(
-                    new InputStreamReader(smtpSocket.getInputStream()));
-            OutputStream out = smtpSocket.getOutputStream();
-
-            // Greeting
-            String resp = in.readLine();
-            if (!isPositiveCompletion(resp)) {
-                throw new IOException("Bad greeting from " + mxHost + ": " + resp);
-            }
-
-            // HELO
-            writeRemoteLine(out, "HELO " + serverDomain);
-            resp = in.readLine();
-            if (!isPositiveCompletion(resp)) {
-                throw new IOException("HELO rejected by " + mxHost + ": " + resp);
-            }
-
-            // MAIL FROM
-            writeRemoteLine(out, "MAIL FROM:<" + mailFrom + ">");
-            resp = in.readLine();
-            if (!isPositiveCompletion(resp)) {
-                throw new IOException("MAIL FROM rejected by " + mxHost + ": " + resp);
-            }
-
-            // RCPT TO for each recipient in this domain
-            for (String rcpt : domainRecipients) {
-                writeRemoteLine(out, "RCPT TO:<" + rcpt + ">");
-                resp = in.readLine();
-                if (!isPositiveCompletion(resp)) {
-                    throw new IOException("RCPT TO rejected by " + mxHost + ": " + resp);
-                }
-            }
-
-            // DATA
-            writeRemoteLine(out, "DATA");
-            resp = in.readLine();
-            if (resp == null || resp.length() == 0 || resp.charAt(0) != '3') {
-                throw new IOException("DATA rejected by " + mxHost + ": " + resp);
-            }
-
-            // Send message body as-is, then terminator line
-            out.write(message.getBytes());
-            if (!message.endsWith("\r\n")) {
-                out.write("\r\n".getBytes());
-            }
-            out.write(".\r\n".getBytes());
-            out.flush();
-
-            resp = in.readLine();
-            if (!isPositiveCompletion(resp)) {
-                throw new IOException("Message not accepted by " + mxHost + ": " + resp);
-            }
-
-            // QUIT
-            writeRemoteLine(out, "QUIT");
-            // Read and ignore final response
-            in.readLine();
-
-        } finally {
-            try {
-                smtpSocket.close();
-            } catch (IOException ignored) {}
-        }
-    }
-
-    /**
-     * Use `dig +short <domain> MX` to find an MX host.
-     * Returns the first host found, or null if none.
-     */
-    private String lookupMxHost(String domain) throws IOException {
-        Process process = new ProcessBuilder("dig", "+short", domain, "MX").start();
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()))) {
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) {
-                    continue;
-                }
-                // Typical line: "10 mail.example.com."
-                String[] parts = line.split("\\s+");
-                if (parts.length >= 2) {
-                    String host = parts[parts.length - 1];
-                    if (host.endsWith(".")) {
-                        host = host.substring(0, host.length() - 1);
-                    }
-                    if (!host.isEmpty()) {
-                        return host;
-                    }
-                }
-            }
-        }
-        return null;
-    }
-
-    private void writeLine(OutputStream out, String s) throws IOException {
-        out.write((s + "\r\n").getBytes());
-        out.flush();
-    }
-
-    private void writeRemoteLine(OutputStream out, String s) throws IOException {
-        out.write((s + "\r\n").getBytes());
-        out.flush();
-    }
-
     private String extractArg(String line) {
         int space = line.indexOf(' ');
         if (space == -1) return "";
         return line.substring(space + 1).trim();
     }
 
-    private String extractEmailArg(String line, String prefix) {
+    // Package-private: exercised directly by the parsing benchmarks
+    static String extractEmailArg(String line, String prefix) {
         if (!line.regionMatches(true, 0, prefix, 0, prefix.length())) {
             return null;
         }
@@ -357,15 +458,57 @@ public class SMTPHandler implements Runnable {
         return arg.isEmpty() ? null : arg;
     }
 
-    private String getDomainPart(String email) {
+    /**
+     * Split "MAIL FROM:<path> PARAM=value ..." into the part up to the
+     * reverse-path and the ESMTP parameters (empty if none).
+     */
+    private String[] splitMailParams(String line) {
+        int close = line.indexOf('>');
+        if (close != -1 && close + 1 < line.length()) {
+            return new String[] { line.substring(0, close + 1), line.substring(close + 1).trim() };
+        }
+        return new String[] { line, "" };
+    }
+
+    /**
+     * Value of the SIZE parameter (RFC 1870), -1 if absent, -2 if malformed.
+     */
+    private long declaredSize(String params) {
+        String size = mailParam(params, "SIZE");
+        if (size == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(size);
+        } catch (NumberFormatException e) {
+            return -2;
+        }
+    }
+
+    /** Value of a NAME=value MAIL FROM parameter, or null if absent. */
+    private String mailParam(String params, String name) {
+        for (String param : params.split("\\s+")) {
+            int eq = param.indexOf('=');
+            if (eq == name.length() && param.regionMatches(true, 0, name, 0, eq)) {
+                return param.substring(eq + 1);
+            }
+        }
+        return null;
+    }
+
+    /** BODY values of RFC 6152 (8BITMIME) and RFC 3030 (BINARYMIME). */
+    private boolean isKnownBodyType(String body) {
+        return body == null
+                || body.equalsIgnoreCase("7BIT")
+                || body.equalsIgnoreCase("8BITMIME")
+                || body.equalsIgnoreCase("BINARYMIME");
+    }
+
+    static String getDomainPart(String email) {
         int at = email.lastIndexOf('@');
         if (at <= 0 || at == email.length() - 1) {
             return null;
         }
         return email.substring(at + 1);
     }
-
-    private boolean isPositiveCompletion(String resp) {
-        return resp != null && !resp.isEmpty() && resp.charAt(0) == '2';
-    }
 }
@@ -0,0 +1,695 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Inverted index of one mailbox: for every term (see TextExtractor), the
+ * UIDs of the messages containing it, and for every message the day of
+ * its Date header. UIDs only grow, so each posting list is appended to in
+ * order and kept as varint-encoded gaps. Removed messages are filtered
+ * out at query time until the next snapshot drops them.
+ *
+ * On disk, a binary snapshot (.search) holds the whole index and a journal
+ * (.search.log) the changes made since, like MailboxIndex:
+ *
+ *   + <uid> <day> <term> <term> ...   message indexed
+ *   - <uid>                           message removed
+ *
+ * The index is derived data: MailboxManager re-indexes whatever a crash
+ * loses when it next opens the mailbox.
+ */
+public class SearchIndex {
+
+    private static final int SNAPSHOT_MAGIC = 0x53524348; // "SRCH"
+    private static final int SNAPSHOT_VERSION = 1;
+    // Fold the journal into a new snapshot after this many records
+    private static final int MAX_JOURNAL_RECORDS = 4096;
+    // Shorter query words only match whole words...
+    private static final int MIN_PREFIX_LENGTH = 3;
+    // ...and so do words starting more terms than this
+    private static final int MAX_PREFIX_TERMS = 256;
+
+    /**
+     * A search over the index. Word queries match the words of a field
+     * that start with each word of the text, so "ali example" finds
+     * "From: Alice <alice@example.com>". A query word shorter than
+     * MIN_PREFIX_LENGTH, or one starting more than MAX_PREFIX_TERMS
+     * indexed words, only matches whole words.
+     */
+    public static final class Query {
+        private static final int WORD = 0;
+        private static final int AND = 1;
+        private static final int OR = 2;
+        private static final int NOT = 3;
+        private static final int DAYS = 4;
+        private static final int ALL = 5;
+
+        private final int kind;
+        private final String[] fields;
+        private final String text;
+        private final Query[] operands;
+        private final long fromDay;
+        private final long toDay;
+
+        private Query(int kind, String[] fields, String text, Query[] operands, long fromDay, long toDay) {
+            this.kind = kind;
+            this.fields = fields;
+            this.text = text;
+            this.operands = operands;
+            this.fromDay = fromDay;
+            this.toDay = toDay;
+        }
+
+        public static Query from(String text) {
+            return words(text, TextExtractor.FROM);
+        }
+
+        /** To and Cc. */
+        public static Query to(String text) {
+            return words(text, TextExtractor.TO);
+        }
+
+        public static Query subject(String text) {
+            return words(text, TextExtractor.SUBJECT);
+        }
+
+        public static Query body(String text) {
+            return words(text, TextExtractor.BODY);
+        }
+
+        /** Any indexed header or the body. */
+        public static Query text(String text) {
+            return words(text, TextExtractor.FROM, TextExtractor.TO, TextExtractor.SUBJECT, TextExtractor.BODY);
+        }
+
+        /** Messages whose Date is in [from, to], either end null for open. */
+        public static Query sentBetween(LocalDate from, LocalDate to) {
+            return new Query(DAYS, null, null, null,
+                    from == null ? Long.MIN_VALUE + 1 : from.toEpochDay(),
+                    to == null ? Long.MAX_VALUE : to.toEpochDay());
+        }
+
+        public static Query all() {
+            return new Query(ALL, null, null, null, 0, 0);
+        }
+
+        public static Query and(Query... operands) {
+            return new Query(AND, null, null, operands, 0, 0);
+        }
+
+        public static Query or(Query... operands) {
+            return new Query(OR, null, null, operands, 0, 0);
+        }
+
+        public static Query not(Query operand) {
+            return new Query(NOT, null, null, new Query[] {operand}, 0, 0);
+        }
+
+        private static Query words(String text, String... fields) {
+            return new Query(WORD, fields, text, null, 0, 0);
+        }
+    }
+
+    /** Reads a posting list one UID at a time, for merging. */
+    private static final class Cursor {
+        private final Postings postings;
+        private int pos = 0;
+        private int read = 0;
+        long uid = 0;
+
+        Cursor(Postings postings) {
+            this.postings = postings;
+        }
+
+        /** Move to the next UID; false at the end of the list. */
+        boolean next() {
+            if (read == postings.count) {
+                return false;
+            }
+            long gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = postings.data[pos++];
+                gap |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            uid += gap;
+            read++;
+            return true;
+        }
+    }
+
+    /** UIDs in ascending order, as varint-encoded gaps. */
+    private static final class Postings {
+        private byte[] data = new byte[8];
+        private int length = 0;
+        private int count = 0;
+        private long last = 0;
+
+        void add(long uid) {
+            if (uid <= last && count > 0) {
+                return;
+            }
+            if (length + 10 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            length = writeVarint(data, length, uid - last);
+            last = uid;
+            count++;
+        }
+
+        long[] decode() {
+            long[] uids = new long[count];
+            long uid = 0;
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                long gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    gap |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                uid += gap;
+                uids[i] = uid;
+            }
+            return uids;
+        }
+    }
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final Lock lock = new ReentrantLock();
+
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    // Every indexed message, removed ones included until the next snapshot
+    private long[] docUids = new long[64];
+    private int[] docDays = new int[64];
+    private int docCount = 0;
+    private final Set<Long> removed = new HashSet<>();
+    private int journalRecords = 0;
+    // Open from the first append until the journal is folded into a snapshot
+    private FileChannel journal;
+    // Set when a message was stored that may not be indexed yet
+    private volatile boolean stale = false;
+
+    private SearchIndex(File dir) {
+        this.snapshotFile = new File(dir, ".search");
+        this.journalFile = new File(dir, ".search.log");
+    }
+
+    /** Open the index kept in a mailbox directory; empty if there is none. */
+    public static SearchIndex open(File dir) throws IOException {
+        SearchIndex index = new SearchIndex(dir);
+        if (index.snapshotFile.exists()) {
+            try {
+                index.readSnapshot();
+            } catch (IOException | RuntimeException e) {
+                // Unreadable or corrupt (a garbage length can surface as
+                // any runtime exception). Derived data: start over rather
+                // than fail the mailbox
+                index.clear();
+                index.journalFile.delete();
+            }
+        }
+        if (index.journalFile.exists()) {
+            index.replayJournal();
+        }
+        return index;
+    }
+
+    public Lock getLock() {
+        return lock;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public void markStale(boolean value) {
+        stale = value;
+    }
+
+    /** Highest UID indexed, 0 if none. Caller holds the lock. */
+    public long lastUid() {
+        return docCount == 0 ? 0 : docUids[docCount - 1];
+    }
+
+    /** UIDs of the indexed messages not removed since. Caller holds the lock. */
+    public Set<Long> indexedUids() {
+        Set<Long> uids = new HashSet<>();
+        for (int i = 0; i < docCount; i++) {
+            if (!removed.contains(docUids[i])) {
+                uids.add(docUids[i]);
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * Index a message newer than every message indexed so far; older UIDs
+     * are ignored. Caller holds the lock.
+     */
+    public void add(long uid, int day, Collection<String> messageTerms) throws IOException {
+        if (uid <= lastUid()) {
+            return;
+        }
+        StringBuilder record = new StringBuilder("+ ").append(uid).append(' ').append(day);
+        for (String term : messageTerms) {
+            record.append(' ').append(term);
+        }
+        // In memory first: the append may write a snapshot, which must
+        // include this message or its UID would be lost to lastUid
+        apply(uid, day, messageTerms);
+        append(record.toString());
+    }
+
+    /** Forget a removed message. Caller holds the lock. */
+    public void remove(long uid) throws IOException {
+        if (Arrays.binarySearch(docUids, 0, docCount, uid) < 0 || !removed.add(uid)) {
+            return;
+        }
+        append("- " + uid);
+    }
+
+    /** UIDs of the live messages matching a query, ascending. */
+    public long[] search(Query query) {
+        lock.lock();
+        try {
+            long[] uids = evaluate(query);
+            if (removed.isEmpty()) {
+                return uids;
+            }
+            int n = 0;
+            for (long uid : uids) {
+                if (!removed.contains(uid)) {
+                    uids[n++] = uid;
+                }
+            }
+            return Arrays.copyOf(uids, n);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long[] evaluate(Query q) {
+        switch (q.kind) {
+            case Query.ALL:
+                return Arrays.copyOf(docUids, docCount);
+            case Query.DAYS: {
+                long[] uids = new long[docCount];
+                int n = 0;
+                for (int i = 0; i < docCount; i++) {
+                    if (docDays[i] != TextExtractor.NO_DAY && docDays[i] >= q.fromDay && docDays[i] <= q.toDay) {
+                        uids[n++] = docUids[i];
+                    }
+                }
+                return Arrays.copyOf(uids, n);
+            }
+            case Query.NOT:
+                return difference(Arrays.copyOf(docUids, docCount), evaluate(q.operands[0]));
+            case Query.AND: {
+                long[] result = null;
+                for (Query operand : q.operands) {
+                    long[] uids = evaluate(operand);
+                    result = result == null ? uids : intersect(result, uids);
+                }
+                return result == null ? Arrays.copyOf(docUids, docCount) : result;
+            }
+            case Query.OR: {
+                long[] result = new long[0];
+                for (Query operand : q.operands) {
+                    result = union(result, evaluate(operand));
+                }
+                return result;
+            }
+            default:
+                return evaluateWords(q);
+        }
+    }
+
+    /** Every word of the text must start a word of one of the fields. */
+    private long[] evaluateWords(Query q) {
+        List<String> words = new ArrayList<>();
+        TextExtractor.tokenize(q.text, 1, words::add);
+        if (words.isEmpty()) {
+            // Nothing to look for, as with an empty IMAP search string
+            return Arrays.copyOf(docUids, docCount);
+        }
+        long[] result = null;
+        for (String word : words) {
+            long[] matches = merge(postingsFor(word, q.fields));
+            result = result == null ? matches : intersect(result, matches);
+            if (result.length == 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The posting lists a query word stands for: its own term in each
+     * field, plus the terms it is a prefix of if it is long enough and
+     * not too common a start.
+     */
+    private List<Postings> postingsFor(String word, String[] fields) {
+        List<Postings> exact = new ArrayList<>();
+        for (String field : fields) {
+            Postings p = terms.get(field + word);
+            if (p != null) {
+                exact.add(p);
+            }
+        }
+        if (word.length() < MIN_PREFIX_LENGTH) {
+            return exact;
+        }
+        List<Postings> expanded = new ArrayList<>();
+        for (String field : fields) {
+            String prefix = field + word;
+            for (Postings p : terms.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+                if (expanded.size() == MAX_PREFIX_TERMS) {
+                    return exact;
+                }
+                expanded.add(p);
+            }
+        }
+        return expanded;
+    }
+
+    /** Union of posting lists, merged in one pass through a heap. */
+    private static long[] merge(List<Postings> lists) {
+        if (lists.isEmpty()) {
+            return new long[0];
+        }
+        if (lists.size() == 1) {
+            return lists.get(0).decode();
+        }
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(lists.size(),
+                (a, b) -> Long.compare(a.uid, b.uid));
+        int total = 0;
+        for (Postings p : lists) {
+            Cursor c = new Cursor(p);
+            if (c.next()) {
+                heap.add(c);
+                total += p.count;
+            }
+        }
+        long[] out = new long[total];
+        int n = 0;
+        while (!heap.isEmpty()) {
+            Cursor c = heap.poll();
+            if (n == 0 || out[n - 1] != c.uid) {
+                out[n++] = c.uid;
+            }
+            if (c.next()) {
+                heap.add(c);
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] out = new long[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static long[] union(long[] a, long[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        long[] out = new long[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            long next;
+            if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                next = a[i++];
+            } else if (i >= a.length || b[j] < a[i]) {
+                next = b[j++];
+            } else {
+                next = a[i++];
+                j++;
+            }
+            out[n++] = next;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static long[] difference(long[] a, long[] b) {
+        long[] out = new long[a.length];
+        int j = 0;
+        int n = 0;
+        for (long uid : a) {
+            while (j < b.length && b[j] < uid) {
+                j++;
+            }
+            if (j >= b.length || b[j] != uid) {
+                out[n++] = uid;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private void apply(long uid, int day, Collection<String> messageTerms) {
+        if (docCount == docUids.length) {
+            docUids = Arrays.copyOf(docUids, docCount * 2);
+            docDays = Arrays.copyOf(docDays, docCount * 2);
+        }
+        docUids[docCount] = uid;
+        docDays[docCount] = day;
+        docCount++;
+        for (String term : messageTerms) {
+            terms.computeIfAbsent(term, t -> new Postings()).add(uid);
+        }
+    }
+
+    private void clear() {
+        terms.clear();
+        docCount = 0;
+        removed.clear();
+    }
+
+    private void append(String record) throws IOException {
+        if (journal == null) {
+            journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        // Not forced: a record lost in a crash is re-indexed on open
+        ByteBuffer buf = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) {
+            journal.write(buf);
+        }
+        if (++journalRecords >= MAX_JOURNAL_RECORDS) {
+            writeSnapshot();
+        }
+    }
+
+    private void replayJournal() throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new FileReader(journalFile, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                try {
+                    if (parts[0].equals("+") && parts.length >= 3) {
+                        long uid = Long.parseLong(parts[1]);
+                        if (uid > lastUid()) {
+                            apply(uid, Integer.parseInt(parts[2]),
+                                    Arrays.asList(parts).subList(3, parts.length));
+                        }
+                    } else if (parts[0].equals("-") && parts.length == 2) {
+                        long uid = Long.parseLong(parts[1]);
+                        if (Arrays.binarySearch(docUids, 0, docCount, uid) >= 0) {
+                            removed.add(uid);
+                        }
+                    }
+                    // Anything else is a torn last line from a crash: ignore it
+                } catch (NumberFormatException ignored) {
+                }
+                journalRecords++;
+            }
+        }
+    }
+
+    /**
+     * Write the live index to a new snapshot, dropping removed messages,
+     * and start an empty journal. Written aside and renamed, like
+     * MailboxIndex.rewrite.
+     */
+    private void writeSnapshot() throws IOException {
+        File tmp = new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".tmp");
+        TreeMap<String, Postings> live = new TreeMap<>();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            int liveDocs = docCount - removed.size();
+            out.writeInt(liveDocs);
+            long last = 0;
+            for (int i = 0; i < docCount; i++) {
+                if (!removed.contains(docUids[i])) {
+                    writeVarint(out, docUids[i] - last);
+                    out.writeInt(docDays[i]);
+                    last = docUids[i];
+                }
+            }
+            for (Map.Entry<String, Postings> e : terms.entrySet()) {
+                Postings kept = e.getValue();
+                if (!removed.isEmpty()) {
+                    kept = new Postings();
+                    for (long uid : e.getValue().decode()) {
+                        if (!removed.contains(uid)) {
+                            kept.add(uid);
+                        }
+                    }
+                }
+                if (kept.count > 0) {
+                    live.put(e.getKey(), kept);
+                }
+            }
+            out.writeInt(live.size());
+            for (Map.Entry<String, Postings> e : live.entrySet()) {
+                Postings p = e.getValue();
+                out.writeUTF(e.getKey());
+                writeVarint(out, p.count);
+                writeVarint(out, p.last);
+                writeVarint(out, p.length);
+                out.write(p.data, 0, p.length);
+            }
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        Files.deleteIfExists(journalFile.toPath());
+        journalRecords = 0;
+
+        // Same content, minus the removed messages
+        long[] uids = new long[Math.max(64, docCount)];
+        int[] days = new int[uids.length];
+        int n = 0;
+        for (int i = 0; i < docCount; i++) {
+            if (!removed.contains(docUids[i])) {
+                uids[n] = docUids[i];
+                days[n] = docDays[i];
+                n++;
+            }
+        }
+        docUids = uids;
+        docDays = days;
+        docCount = n;
+        terms.clear();
+        terms.putAll(live);
+        removed.clear();
+    }
+
+    private void readSnapshot() throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(snapshotFile.toPath())))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a search index: " + snapshotFile);
+            }
+            // Counts beyond what the file could hold are garbage; caught
+            // here before they turn into huge allocations
+            long fileLength = snapshotFile.length();
+            int docs = in.readInt();
+            if (docs < 0 || docs > fileLength) {
+                throw new IOException("Corrupt search index: " + snapshotFile);
+            }
+            docUids = new long[Math.max(64, docs)];
+            docDays = new int[docUids.length];
+            long uid = 0;
+            for (int i = 0; i < docs; i++) {
+                uid += readVarint(in);
+                docUids[i] = uid;
+                docDays[i] = in.readInt();
+            }
+            docCount = docs;
+            int termCount = in.readInt();
+            for (int i = 0; i < termCount; i++) {
+                String term = in.readUTF();
+                Postings p = new Postings();
+                p.count = (int) readVarint(in);
+                p.last = readVarint(in);
+                p.length = (int) readVarint(in);
+                if (p.length < 0 || p.length > fileLength) {
+                    throw new IOException("Corrupt search index: " + snapshotFile);
+                }
+                p.data = new byte[Math.max(8, p.length)];
+                in.readFully(p.data, 0, p.length);
+                terms.put(term, p);
+            }
+        }
+    }
+
+    private static int writeVarint(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
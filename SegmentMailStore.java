@@ -0,0 +1,295 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only log storage. Each mailbox has a "log" directory holding
+ * numbered segment files, into which messages are appended back to back,
+ * and a MailboxIndex ("index") recording the segment and offset of each
+ * message.
+ *
+ * Deleting only appends a tombstone to the index; the bytes stay in the
+ * segment until compaction rewrites the live messages into a fresh segment.
+ *
+ * A message exists once its index record is written, after its bytes are
+ * forced to disk, so an append cut short by a crash is never served: it is
+ * only dead space at the end of the segment until the next compaction. The
+ * segment being appended to stays open between messages.
+ *
+ * With compression on, messages that compress well are appended DEFLATEd
+ * (see MessageCompression); sizes in the log's accounting are those on disk.
+ */
+public class SegmentMailStore implements MailStore {
+
+    // Start a new segment once the current one reaches this size
+    private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+    // Compact once dead bytes exceed this and outweigh the live bytes
+    private static final long MIN_DEAD_BYTES = 1024 * 1024;
+
+    private final File baseDir;
+    // Null when messages are stored as they are
+    private final MessageCompression compression;
+    // Loaded indexes, keyed by mailbox
+    private final Map<String, MailboxLog> logs = new ConcurrentHashMap<>();
+
+    public SegmentMailStore(File baseDir) {
+        this(baseDir, null);
+    }
+
+    public SegmentMailStore(File baseDir, MessageCompression compression) {
+        this.baseDir = baseDir;
+        this.compression = compression;
+    }
+
+    @Override
+    public StoredMessage store(String mailbox, SpooledMessage message) throws IOException {
+        MailboxLog log = log(mailbox);
+        long length = message.size();
+
+        // Rolled over on the uncompressed size, which is all that is known yet
+        if (log.segmentSize > 0 && log.segmentSize + length > MAX_SEGMENT_SIZE) {
+            log.closeSegment();
+            log.segment++;
+            log.segmentSize = 0;
+        }
+        long offset = log.segmentSize;
+        FileChannel ch = log.activeSegment();
+        ch.position(offset);
+        long stored = compression != null ? compression.write(message, ch) : message.writeTo(ch);
+        // On disk before the index record that makes the message exist
+        ch.force(false);
+        log.segmentSize += stored;
+
+        long uid = log.index.nextUid();
+        MailboxIndex.Entry entry = new MailboxIndex.Entry(uid, length, log.segment, offset,
+                message.stuffedLines(), 0, MessageCompression.codec(length, stored), stored);
+        log.index.add(entry);
+        log.liveBytes += stored;
+        return entry.toMessage(mailbox);
+    }
+
+    @Override
+    public List<StoredMessage> list(String mailbox) throws IOException {
+        MailboxIndex index = log(mailbox).index;
+        List<StoredMessage> messages = new ArrayList<>(index.size());
+        for (MailboxIndex.Entry e : index.entries()) {
+            messages.add(e.toMessage(mailbox));
+        }
+        return messages;
+    }
+
+    @Override
+    public List<String> readLines(StoredMessage message) throws IOException {
+        return WireFormat.decodeLines(open(message).newInputStream());
+    }
+
+    @Override
+    public MessageRegion open(StoredMessage message) throws IOException {
+        MailboxLog log = log(message.getMailbox());
+        MailboxIndex.Entry entry = entry(log, message);
+        FileChannel ch = FileChannel.open(segmentFile(log.dir, entry.segment).toPath(),
+                StandardOpenOption.READ);
+        return MessageCompression.open(ch, entry.offset, entry.storedSize, entry.size, entry.codec);
+    }
+
+    @Override
+    public void delete(StoredMessage message) throws IOException {
+        MailboxLog log = log(message.getMailbox());
+        MailboxIndex.Entry entry = entry(log, message);
+        log.index.remove(entry.uid);
+        log.liveBytes -= entry.storedSize;
+        log.deadBytes += entry.storedSize;
+    }
+
+    @Override
+    public void setFlags(StoredMessage message, int flags) throws IOException {
+        MailboxLog log = log(message.getMailbox());
+        log.index.setFlags(entry(log, message).uid, flags);
+    }
+
+    @Override
+    public List<String> compactionCandidates() {
+        List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, MailboxLog> e : logs.entrySet()) {
+            MailboxLog log = e.getValue();
+            if (log.deadBytes >= MIN_DEAD_BYTES && log.deadBytes > log.liveBytes) {
+                candidates.add(e.getKey());
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Copy the live messages into a new segment, then swap in a fresh index
+     * and drop the old segments. The index rename is the commit point: a
+     * crash before it leaves the old index and segments untouched. The new
+     * segment, the new index (see MailboxIndex.rewrite) and the rename
+     * itself are all on disk before any old segment is deleted.
+     */
+    @Override
+    public void compact(String mailbox) throws IOException {
+        MailboxLog log = log(mailbox);
+        // Its file is deleted below; the next store opens the new segment
+        log.closeSegment();
+        int newSegment = log.segment + 1;
+        File newSegmentFile = segmentFile(log.dir, newSegment);
+        List<MailboxIndex.Entry> compacted = new ArrayList<>();
+        long size = 0;
+
+        try (FileChannel out = FileChannel.open(newSegmentFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            for (MailboxIndex.Entry e : log.index.entries()) {
+                try (FileChannel in = FileChannel.open(segmentFile(log.dir, e.segment).toPath(),
+                        StandardOpenOption.READ)) {
+                    long copied = 0;
+                    while (copied < e.storedSize) {
+                        copied += in.transferTo(e.offset + copied, e.storedSize - copied, out);
+                    }
+                }
+                compacted.add(e.movedTo(newSegment, size));
+                size += e.storedSize;
+            }
+            out.force(true);
+        }
+
+        // Forces the new index and its rename (see MailboxIndex.rewrite)
+        log.index.rewrite(compacted);
+
+        for (int s = 0; s < newSegment; s++) {
+            segmentFile(log.dir, s).delete();
+        }
+        log.segment = newSegment;
+        log.segmentSize = size;
+        log.liveBytes = size;
+        log.deadBytes = 0;
+    }
+
+    /**
+     * Forget index entries whose bytes are not all in their segment (the
+     * index record reached the disk but the message did not), and delete
+     * the new index of a compaction cut short; the old one is intact.
+     */
+    @Override
+    public int recover(String mailbox) throws IOException {
+        File dir = new File(new File(baseDir, mailbox), "log");
+        int repairs = new File(dir, "index.tmp").delete() ? 1 : 0;
+        MailboxLog log = log(mailbox);
+        Map<Integer, Long> segmentLengths = new HashMap<>();
+        List<MailboxIndex.Entry> kept = new ArrayList<>(log.index.size());
+        for (MailboxIndex.Entry e : log.index.entries()) {
+            long length = segmentLengths.computeIfAbsent(e.segment, s -> segmentFile(log.dir, s).length());
+            if (e.segment >= 0 && e.offset + e.storedSize <= length) {
+                kept.add(e);
+            }
+        }
+        if (kept.size() < log.index.size()) {
+            repairs += log.index.size() - kept.size();
+            log.index.rewrite(kept);
+            // Loaded again for the live and dead byte counts
+            logs.remove(mailbox);
+            log.closeSegment();
+        }
+        return repairs;
+    }
+
+    private MailboxLog log(String mailbox) throws IOException {
+        MailboxLog log = logs.get(mailbox);
+        if (log != null) {
+            return log;
+        }
+        try {
+            return logs.computeIfAbsent(mailbox, m -> {
+                try {
+                    return load(m);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private MailboxLog load(String mailbox) throws IOException {
+        File dir = new File(new File(baseDir, mailbox), "log");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        MailboxLog log = new MailboxLog(dir, MailboxIndex.open(new File(dir, "index")));
+        for (MailboxIndex.Entry e : log.index.entries()) {
+            log.liveBytes += e.storedSize;
+        }
+
+        // Continue appending to the highest segment on disk; whatever the
+        // segments hold beyond the live messages is dead space
+        long segmentBytes = 0;
+        String[] names = dir.list((d, name) -> name.endsWith(".seg"));
+        if (names != null && names.length > 0) {
+            Arrays.sort(names);
+            for (String name : names) {
+                segmentBytes += new File(dir, name).length();
+            }
+            String last = names[names.length - 1];
+            log.segment = Integer.parseInt(last.substring(0, last.length() - 4));
+            log.segmentSize = segmentFile(dir, log.segment).length();
+        }
+        log.deadBytes = Math.max(0, segmentBytes - log.liveBytes);
+        return log;
+    }
+
+    private MailboxIndex.Entry entry(MailboxLog log, StoredMessage message) throws IOException {
+        MailboxIndex.Entry entry = log.index.get(message.getUid());
+        if (entry == null) {
+            throw new IOException("Message does not exist: " + message.getUid());
+        }
+        return entry;
+    }
+
+    private static File segmentFile(File dir, int segment) {
+        return new File(dir, String.format("%08d.seg", segment));
+    }
+
+    private static final class MailboxLog {
+        final File dir;
+        final MailboxIndex index;
+        int segment = 0;
+        long segmentSize = 0;
+        long liveBytes = 0;
+        long deadBytes = 0;
+        // Open on the current segment from the first store into it
+        private FileChannel active;
+
+        MailboxLog(File dir, MailboxIndex index) {
+            this.dir = dir;
+            this.index = index;
+        }
+
+        FileChannel activeSegment() throws IOException {
+            if (active == null) {
+                File file = segmentFile(dir, segment);
+                boolean created = !file.exists();
+                active = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                if (created) {
+                    FileSync.syncDirectory(dir);
+                }
+            }
+            return active;
+        }
+
+        void closeSegment() throws IOException {
+            if (active != null) {
+                active.close();
+                active = null;
+            }
+        }
+    }
+}
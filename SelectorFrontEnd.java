@@ -0,0 +1,438 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Non-blocking front end: a single selector thread owns every listening and
+ * client channel, and the protocol handlers are driven as per-connection
+ * state machines. Command processing (which may touch the disk or a remote
+ * MX) runs on the worker pool, so idle connections cost no thread at all.
+ * New connections go through AdmissionControl first; one that is turned
+ * away gets its busy reply and is closed without a session.
+ *
+ * Memory per connection is bounded on both sides. Input is read into one
+ * buffer owned by the selector thread and only the bytes actually read are
+ * handed to the worker; between tasks a connection keeps nothing but the
+ * partial line in its LineScanner. Output is queued in chunks: once more
+ * than HIGH_WATER_MARK bytes wait for the client, the connection is not
+ * read from and a task producing a large response waits for the queue to
+ * drain before it goes on.
+ */
+public class SelectorFrontEnd implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    // A task's replies are queued in pieces of about this size...
+    private static final int OUTPUT_CHUNK_SIZE = 16 * 1024;
+    // ...and it waits while more than this is queued for the client
+    private static final long HIGH_WATER_MARK = 64 * 1024;
+    // A client that reads nothing for this long is dropped
+    private static final long DRAIN_TIMEOUT_MILLIS = 5 * 60_000L;
+
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Function<String, ProtocolSession> sessionFactory;
+    private final AdmissionControl admission;
+    // Only used by the selector thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    // Connections whose interest set must be recomputed on the selector thread
+    private final Queue<Connection> pendingUpdates = new ConcurrentLinkedQueue<>();
+
+    public SelectorFrontEnd(ExecutorService workers,
+                            Function<String, ProtocolSession> sessionFactory,
+                            AdmissionControl admission) throws IOException {
+        this.selector = Selector.open();
+        this.workers = workers;
+        this.sessionFactory = sessionFactory;
+        this.admission = admission;
+    }
+
+    public void listen(int port, String protocolName) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT, protocolName);
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "selector");
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                applyPendingUpdates();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(key);
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(conn);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(conn);
+                        }
+                    } catch (IOException e) {
+                        conn.close();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept(SelectionKey key) throws IOException {
+        ServerSocketChannel server = (ServerSocketChannel) key.channel();
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        String protocolName = (String) key.attachment();
+        AdmissionControl.Ticket ticket = admission.tryAdmit(protocolName,
+                ((InetSocketAddress) channel.getRemoteAddress()).getAddress());
+        if (ticket == null) {
+            // Fits in the new socket's send buffer: one write, then gone
+            try {
+                channel.write(ByteBuffer.wrap(admission.rejection(protocolName)));
+            } catch (IOException ignored) {
+                // Gone already
+            }
+            channel.close();
+            return;
+        }
+        ProtocolSession session = sessionFactory.apply(protocolName);
+        Connection conn = new Connection(channel, session, () -> admission.release(ticket));
+        // No interest until the greeting has been produced
+        conn.key = channel.register(selector, 0, conn);
+        conn.busy = true;
+        workers.execute(() -> greet(conn));
+    }
+
+    private void read(Connection conn) throws IOException {
+        ByteBuffer buf = readBuffer;
+        buf.clear();
+        int n = conn.channel.read(buf);
+        if (n == -1) {
+            conn.close();
+            return;
+        }
+        if (n > 0) {
+            // The worker splits the input into lines or raw chunks, since
+            // only the session knows which one comes next (SMTP BDAT).
+            // It gets its own copy of what was read, as the selector reuses
+            // the buffer for the next connection. Reading stops until the
+            // worker is done.
+            buf.flip();
+            ByteBuffer input = ByteBuffer.allocate(n);
+            input.put(buf).flip();
+            conn.busy = true;
+            conn.key.interestOps(0);
+            workers.execute(() -> process(conn, input));
+        }
+    }
+
+    private void write(Connection conn) throws IOException {
+        boolean drained;
+        synchronized (conn) {
+            while (!conn.outQueue.isEmpty()) {
+                Object head = conn.outQueue.peek();
+                if (head instanceof ByteBuffer) {
+                    ByteBuffer buf = (ByteBuffer) head;
+                    conn.channel.write(buf);
+                    if (buf.hasRemaining()) {
+                        break; // socket buffer full, wait for next OP_WRITE
+                    }
+                    conn.queuedBytes -= buf.limit();
+                } else {
+                    MessageRegion region = (MessageRegion) head;
+                    region.transferTo(conn.channel);
+                    if (!region.isDone()) {
+                        break;
+                    }
+                    region.close();
+                    conn.queuedBytes -= region.getCount();
+                }
+                conn.outQueue.poll();
+            }
+            drained = conn.outQueue.isEmpty();
+            if (conn.queuedBytes <= HIGH_WATER_MARK) {
+                // Wakes a task waiting in ConnectionOutput.awaitDrain
+                conn.notifyAll();
+            }
+        }
+        if (drained && conn.closing) {
+            conn.close();
+        } else {
+            // Reading resumes once the queue is below the high-water mark
+            updateInterest(conn);
+        }
+    }
+
+    private void greet(Connection conn) {
+        ConnectionOutput out = new ConnectionOutput(conn);
+        try {
+            if (!conn.session.greet(out)) {
+                conn.closing = true;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            conn.closing = true;
+        }
+        finishTask(conn, out);
+    }
+
+    // Runs on a worker thread; the selector does not touch the connection meanwhile
+    private void process(Connection conn, ByteBuffer buf) {
+        ConnectionOutput out = new ConnectionOutput(conn);
+        ProtocolSession session = conn.session;
+        try {
+            while (buf.hasRemaining()) {
+                boolean more;
+                long expected = session.bytesExpected();
+                if (expected > 0) {
+                    int n = (int) Math.min(expected, buf.remaining());
+                    ByteBuffer data = buf.slice(buf.position(), n);
+                    buf.position(buf.position() + n);
+                    more = session.handleBytes(data, out);
+                } else if (conn.scanner.scan(buf)) {
+                    if (conn.scanner.isTooLong()) {
+                        conn.scanner.takeLine();
+                        more = session.lineTooLong(out);
+                    } else {
+                        more = session.handleLine(conn.scanner.takeLine(), out);
+                    }
+                } else {
+                    // Partial line, kept by the scanner until more input arrives
+                    more = true;
+                }
+                if (!more) {
+                    conn.closing = true;
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            if (conn.channel.isOpen()) {
+                e.printStackTrace();
+            }
+            conn.closing = true;
+        }
+        finishTask(conn, out);
+    }
+
+    private void finishTask(Connection conn, ConnectionOutput out) {
+        out.queueBuffered();
+        conn.busy = false;
+        if (!conn.channel.isOpen()) {
+            // Closed by the selector while this task ran
+            conn.notifyClosed();
+        }
+        pendingUpdates.add(conn);
+        selector.wakeup();
+    }
+
+    private void applyPendingUpdates() {
+        Connection conn;
+        while ((conn = pendingUpdates.poll()) != null) {
+            if (conn.key.isValid()) {
+                updateInterest(conn);
+            }
+        }
+    }
+
+    private void updateInterest(Connection conn) {
+        boolean hasOutput;
+        boolean backlogged;
+        synchronized (conn) {
+            hasOutput = !conn.outQueue.isEmpty();
+            backlogged = conn.queuedBytes > HIGH_WATER_MARK;
+        }
+        if (conn.closing && !hasOutput) {
+            conn.close();
+            return;
+        }
+        int ops = 0;
+        if (hasOutput) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (!conn.busy && !conn.closing && !backlogged) {
+            ops |= SelectionKey.OP_READ;
+        }
+        conn.key.interestOps(ops);
+    }
+
+    /**
+     * Per-connection state: the protocol session plus partial input and
+     * pending output. No read buffer: input is handed to each task.
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        final ProtocolSession session;
+        final LineScanner scanner = new LineScanner();
+        // ByteBuffers and MessageRegions, sent in order; both fields are
+        // guarded by the connection's monitor
+        final Queue<Object> outQueue = new ArrayDeque<>();
+        long queuedBytes;
+        SelectionKey key;
+        volatile boolean busy;
+        volatile boolean closing;
+        final AtomicBoolean sessionClosed = new AtomicBoolean();
+        // Gives back the connection's admission; safe to run more than once
+        final Runnable release;
+
+        Connection(SocketChannel channel, ProtocolSession session, Runnable release) {
+            this.channel = channel;
+            this.session = session;
+            this.release = release;
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            release.run();
+            synchronized (this) {
+                for (Object pending : outQueue) {
+                    if (pending instanceof MessageRegion) {
+                        try {
+                            ((MessageRegion) pending).close();
+                        } catch (IOException ignored) {}
+                    }
+                }
+                outQueue.clear();
+                queuedBytes = 0;
+                notifyAll();
+            }
+            // A running task notifies the session itself when it finishes
+            if (!busy) {
+                notifyClosed();
+            }
+        }
+
+        void notifyClosed() {
+            if (sessionClosed.compareAndSet(false, true)) {
+                session.closed();
+            }
+        }
+    }
+
+    /**
+     * Collects a task's replies and hands them to the selector thread in
+     * chunks of OUTPUT_CHUNK_SIZE (plus any message regions), so a large
+     * response is never held in memory as a whole.
+     */
+    private final class ConnectionOutput extends ProtocolOutput {
+        private final Connection conn;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        ConnectionOutput(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer.write(b);
+            if (buffer.size() >= OUTPUT_CHUNK_SIZE) {
+                queueBuffered();
+                awaitDrain();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            buffer.write(b, off, len);
+            if (buffer.size() >= OUTPUT_CHUNK_SIZE) {
+                queueBuffered();
+                awaitDrain();
+            }
+        }
+
+        @Override
+        public void transferFrom(MessageRegion region) throws IOException {
+            queueBuffered();
+            if (!conn.channel.isOpen()) {
+                region.close();
+                return;
+            }
+            synchronized (conn) {
+                conn.outQueue.add(region);
+                conn.queuedBytes += region.getCount();
+            }
+            awaitDrain();
+        }
+
+        void queueBuffered() {
+            if (buffer.size() > 0) {
+                synchronized (conn) {
+                    conn.outQueue.add(ByteBuffer.wrap(buffer.toByteArray()));
+                    conn.queuedBytes += buffer.size();
+                }
+                buffer.reset();
+            }
+        }
+
+        /**
+         * Block while more than HIGH_WATER_MARK bytes wait for the client.
+         * The connection is busy, so the selector only writes to it; it is
+         * asked to start now rather than at the end of the task.
+         */
+        private void awaitDrain() throws IOException {
+            synchronized (conn) {
+                if (conn.queuedBytes <= HIGH_WATER_MARK) {
+                    return;
+                }
+            }
+            pendingUpdates.add(conn);
+            selector.wakeup();
+            long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+            synchronized (conn) {
+                while (conn.queuedBytes > HIGH_WATER_MARK && conn.channel.isOpen()) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        conn.close();
+                        throw new IOException("Client stopped reading");
+                    }
+                    try {
+                        conn.wait(left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            if (!conn.channel.isOpen()) {
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent outbound SMTP sessions, keyed by MX host and port. A session
+ * that finished a transaction cleanly goes back to the pool and carries the
+ * next message to the same host after an RSET, instead of paying for a new
+ * TCP connection, greeting and EHLO every time.
+ *
+ * At most MAX_PER_HOST sessions are open to one host; callers beyond that
+ * wait for one to be released. Sessions idle for longer than IDLE_TIMEOUT
+ * are closed with QUIT by a background sweep.
+ */
+public class SmtpConnectionPool {
+
+    private static final int MAX_PER_HOST = 4;
+    private static final int MAX_MESSAGES_PER_CONNECTION = 100;
+    private static final long IDLE_TIMEOUT_MILLIS = 60_000L;
+    private static final long ACQUIRE_TIMEOUT_MILLIS = 60_000L;
+    private static final int CONNECT_TIMEOUT_MILLIS = 30_000;
+    private static final int READ_TIMEOUT_MILLIS = 5 * 60_000;
+
+    private final String heloDomain;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    // Idle sessions per host, most recently used first
+    private final Map<String, Deque<Connection>> idle = new HashMap<>();
+    // Open sessions per host, idle or in use
+    private final Map<String, Integer> open = new HashMap<>();
+
+    public SmtpConnectionPool(String heloDomain) {
+        this.heloDomain = heloDomain;
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "smtp-pool-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::evictIdle,
+                IDLE_TIMEOUT_MILLIS / 2, IDLE_TIMEOUT_MILLIS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrow a session to the host that is ready for MAIL FROM. Pooled
+     * sessions are reset (and so checked to be alive) before being handed
+     * out; a new one is opened to the given address of the host if none is
+     * idle and the host is under its cap.
+     */
+    public Connection acquire(String host, InetAddress address, int port) throws IOException {
+        String key = host + ":" + port;
+        long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_MILLIS;
+        while (true) {
+            Connection pooled = null;
+            boolean mayOpen = false;
+            lock.lock();
+            try {
+                Deque<Connection> queue = idle.get(key);
+                if (queue != null && !queue.isEmpty()) {
+                    pooled = queue.pollFirst();
+                } else if (open.getOrDefault(key, 0) < MAX_PER_HOST) {
+                    open.merge(key, 1, Integer::sum);
+                    mayOpen = true;
+                } else {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new IOException("Too many connections to " + key);
+                    }
+                    released.await(wait, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for a connection to " + key);
+            } finally {
+                lock.unlock();
+            }
+
+            if (pooled != null) {
+                if (pooled.reset()) {
+                    return pooled;
+                }
+                discard(pooled);
+                continue;
+            }
+            if (mayOpen) {
+                try {
+                    return Connection.open(key, host, new InetSocketAddress(address, port), heloDomain);
+                } catch (IOException e) {
+                    forget(key);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Give a session back after a completed transaction. It is kept for the
+     * next message unless it has carried enough of them already.
+     */
+    public void release(Connection conn) {
+        conn.messagesSent++;
+        if (conn.messagesSent >= MAX_MESSAGES_PER_CONNECTION) {
+            conn.quit();
+            forget(conn.key);
+            return;
+        }
+        conn.lastUsed = System.currentTimeMillis();
+        lock.lock();
+        try {
+            idle.computeIfAbsent(conn.key, k -> new ArrayDeque<>()).addFirst(conn);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Close a session that failed or is in an unknown state. */
+    public void discard(Connection conn) {
+        conn.close();
+        forget(conn.key);
+    }
+
+    private void forget(String key) {
+        lock.lock();
+        try {
+            open.merge(key, -1, Integer::sum);
+            if (open.get(key) <= 0) {
+                open.remove(key);
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MILLIS;
+        Deque<Connection> expired = new ArrayDeque<>();
+        lock.lock();
+        try {
+            for (Iterator<Deque<Connection>> it = idle.values().iterator(); it.hasNext(); ) {
+                Deque<Connection> queue = it.next();
+                // Least recently used sessions are at the tail
+                while (!queue.isEmpty() && queue.peekLast().lastUsed < cutoff) {
+                    expired.add(queue.pollLast());
+                }
+                if (queue.isEmpty()) {
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Connection conn : expired) {
+            conn.quit();
+            forget(conn.key);
+        }
+    }
+
+    /**
+     * One SMTP client session, greeted and past EHLO (or HELO, for a server
+     * that does not know EHLO and so offers no extensions).
+     */
+    public static final class Connection implements Closeable {
+        private final String key;
+        private final String host;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final OutputStream out;
+        // Keywords of the EHLO reply, upper-case ("8BITMIME", "CHUNKING"...)
+        private final Set<String> extensions = new HashSet<>();
+        private long lastUsed;
+        private int messagesSent;
+
+        private Connection(String key, String host, Socket socket) throws IOException {
+            this.key = key;
+            this.host = host;
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.out = socket.getOutputStream();
+        }
+
+        static Connection open(String key, String host, InetSocketAddress address,
+                               String heloDomain) throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                Connection conn = new Connection(key, host, socket);
+
+                // Greeting
+                String resp = conn.readReply();
+                if (!resp.startsWith("2")) {
+                    throw new RemoteDelivery.DeliveryException(
+                            "Bad greeting from " + host + ": " + resp, resp.startsWith("5"));
+                }
+                // EHLO, falling back to HELO if the command is not known
+                String hello = "EHLO";
+                conn.send(hello + " " + heloDomain);
+                List<String> lines = conn.readReplyLines();
+                resp = lines.get(lines.size() - 1);
+                if (resp.startsWith("5")) {
+                    hello = "HELO";
+                    resp = conn.command(hello + " " + heloDomain);
+                } else if (resp.startsWith("2")) {
+                    // The first line greets; each other one names an extension
+                    for (String line : lines.subList(1, lines.size())) {
+                        String keyword = line.length() > 4 ? line.substring(4).trim().split(" ")[0] : "";
+                        if (!keyword.isEmpty()) {
+                            conn.extensions.add(keyword.toUpperCase(Locale.ROOT));
+                        }
+                    }
+                }
+                if (!resp.startsWith("2")) {
+                    throw new RemoteDelivery.DeliveryException(
+                            hello + " rejected by " + host + ": " + resp, resp.startsWith("5"));
+                }
+                return conn;
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+                throw e;
+            }
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        /** True if the server listed the extension in its EHLO reply. */
+        public boolean supports(String extension) {
+            return extensions.contains(extension);
+        }
+
+        /** Send one command line and return the (last line of the) reply. */
+        public String command(String line) throws IOException {
+            send(line);
+            return readReply();
+        }
+
+        /** Send one command line without waiting for the reply. */
+        public void send(String line) throws IOException {
+            out.write((line + "\r\n").getBytes());
+            out.flush();
+        }
+
+        /** Read a possibly multi-line reply ("250-..." lines) and return its last line. */
+        public String readReply() throws IOException {
+            List<String> lines = readReplyLines();
+            return lines.get(lines.size() - 1);
+        }
+
+        /** Read a possibly multi-line reply, every line of it. */
+        List<String> readReplyLines() throws IOException {
+            List<String> lines = new ArrayList<>();
+            String line = in.readLine();
+            while (line != null) {
+                lines.add(line);
+                if (line.length() <= 3 || line.charAt(3) != '-') {
+                    return lines;
+                }
+                line = in.readLine();
+            }
+            throw new RemoteDelivery.DeliveryException("Connection closed by " + host, false, true);
+        }
+
+        /** RSET before reuse; false if the session is no longer usable. */
+        boolean reset() {
+            try {
+                return command("RSET").startsWith("2");
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void quit() {
+            try {
+                command("QUIT");
+            } catch (IOException ignored) {
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
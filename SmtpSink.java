@@ -0,0 +1,127 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SMTP server that accepts every message and keeps nothing but counts.
+ * LoadGenerator runs one in place of the remote MX hosts: the server under
+ * test is started with --relay-port pointing here, and StubDnsServer sends
+ * every remote domain's MX lookup to this host.
+ */
+public class SmtpSink {
+
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder recipients = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    private ServerSocket server;
+
+    /** Listen on a port (all addresses) and accept connections on a daemon thread. */
+    public void start(int port) throws IOException {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket client = server.accept();
+                    connections.increment();
+                    Thread.ofVirtual().name("sink-session").start(() -> serve(client));
+                } catch (IOException e) {
+                    // Closed by stop(), or a connection reset before accept
+                }
+            }
+        }, "sink-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void stop() {
+        try {
+            server.close();
+        } catch (IOException ignored) {}
+    }
+
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public long getRecipients() {
+        return recipients.sum();
+    }
+
+    /** Message bytes received, in wire form without the final dot. */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            LineReader in = new LineReader(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            reply(out, "220 sink.loadtest ESMTP");
+            int rcpts = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String upper = line.toUpperCase();
+                if (upper.startsWith("EHLO") || upper.startsWith("HELO")) {
+                    reply(out, "250 sink.loadtest");
+                } else if (upper.startsWith("MAIL FROM:")) {
+                    rcpts = 0;
+                    reply(out, "250 OK");
+                } else if (upper.startsWith("RCPT TO:")) {
+                    rcpts++;
+                    reply(out, "250 OK");
+                } else if (upper.equals("DATA")) {
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    if (!skipData(in)) {
+                        return;
+                    }
+                    messages.increment();
+                    recipients.add(rcpts);
+                    rcpts = 0;
+                    reply(out, "250 OK");
+                } else if (upper.equals("RSET")) {
+                    rcpts = 0;
+                    reply(out, "250 OK");
+                } else if (upper.equals("NOOP")) {
+                    reply(out, "250 OK");
+                } else if (upper.equals("QUIT")) {
+                    reply(out, "221 Bye");
+                    return;
+                } else {
+                    reply(out, "500 Command not recognized");
+                }
+            }
+        } catch (IOException e) {
+            // Client went away; nothing to keep
+        }
+    }
+
+    /** Read up to the lone dot; false if the connection ended first. */
+    private boolean skipData(LineReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(".")) {
+                return true;
+            }
+            bytes.add(line.length() + 2);
+        }
+        return false;
+    }
+
+    private static void reply(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A message body in WireFormat, built up as it is received. Small messages
+ * stay in memory; once the body grows past MEMORY_THRESHOLD it is moved to
+ * a spool file and the rest is appended there, so a large DATA never has
+ * to fit in the heap. Past the size limit further bytes are counted but
+ * dropped, letting the session read to the end and then reject.
+ */
+public class SpooledMessage implements Closeable {
+
+    // Bodies up to this size never touch the disk before delivery
+    static final int MEMORY_THRESHOLD = 256 * 1024;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] DOT = {'.'};
+
+    private final File spoolDir;
+    private final long maxSize;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File spoolFile;
+    private OutputStream spoolOut;
+    private long size = 0;
+    // Lines of the wire form that start with a stuffed dot
+    private long stuffedLines = 0;
+    // Whether the next raw byte starts a line (see appendRaw)
+    private boolean atLineStart = true;
+
+    public SpooledMessage(File spoolDir, long maxSize) {
+        this.spoolDir = spoolDir;
+        this.maxSize = maxSize;
+    }
+
+    /** A message built from plain text, converted to wire form. */
+    public static SpooledMessage fromText(String text) {
+        SpooledMessage message = new SpooledMessage(null, Long.MAX_VALUE);
+        byte[] wire = WireFormat.encode(text);
+        message.memory.write(wire, 0, wire.length);
+        message.size = wire.length;
+        message.stuffedLines = WireFormat.countStuffedLines(wire);
+        return message;
+    }
+
+    /**
+     * Append one line exactly as received inside DATA (still dot-stuffed),
+     * terminated with CRLF. The line was decoded by LineScanner, so encoding
+     * it back with the same charset restores the original bytes.
+     */
+    public void appendLine(String line) throws IOException {
+        byte[] bytes = line.getBytes(LineScanner.CHARSET);
+        if (!line.isEmpty() && line.charAt(0) == '.') {
+            stuffedLines++;
+        }
+        write(bytes, 0, bytes.length);
+        write(CRLF, 0, CRLF.length);
+    }
+
+    /**
+     * Append message content received as is (SMTP BDAT), turning it into
+     * the wire form: a dot starting a line is doubled. Nothing else is
+     * scanned or changed, and runs between such dots are copied in bulk.
+     * Consumes the whole buffer.
+     */
+    public void appendRaw(ByteBuffer src) throws IOException {
+        byte[] a = src.array();
+        int end = src.arrayOffset() + src.limit();
+        int start = src.arrayOffset() + src.position();
+        for (int i = start; i < end; i++) {
+            byte b = a[i];
+            if (b == '.' && atLineStart) {
+                write(a, start, i - start);
+                write(DOT, 0, 1);
+                stuffedLines++;
+                start = i;
+            }
+            atLineStart = b == '\n';
+        }
+        write(a, start, end - start);
+        src.position(src.limit());
+    }
+
+    /**
+     * End raw content with CRLF if it does not end with a line break, so
+     * the stored wire form can be followed by the "." terminator line.
+     */
+    public void endRaw() throws IOException {
+        if (!atLineStart) {
+            write(CRLF, 0, CRLF.length);
+            atLineStart = true;
+        }
+    }
+
+    /** Append raw wire-form bytes. */
+    public void write(byte[] b, int off, int len) throws IOException {
+        size += len;
+        if (size > maxSize) {
+            discard();
+            return;
+        }
+        if (spoolOut == null && size > MEMORY_THRESHOLD) {
+            spill();
+        }
+        if (spoolOut != null) {
+            spoolOut.write(b, off, len);
+        } else {
+            memory.write(b, off, len);
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /** Lines starting with a stuffed dot: size() minus these is the message size. */
+    public long stuffedLines() {
+        return stuffedLines;
+    }
+
+    public boolean isTooLarge() {
+        return size > maxSize;
+    }
+
+    /**
+     * Write the whole body into the target channel at its current position.
+     * Returns the number of bytes written.
+     */
+    public long writeTo(FileChannel target) throws IOException {
+        finish();
+        if (spoolFile == null) {
+            ByteBuffer buf = ByteBuffer.wrap(memory.toByteArray());
+            long written = 0;
+            while (buf.hasRemaining()) {
+                written += target.write(buf);
+            }
+            return written;
+        }
+        try (FileChannel in = FileChannel.open(spoolFile.toPath(), StandardOpenOption.READ)) {
+            long count = in.size();
+            long written = 0;
+            while (written < count) {
+                written += in.transferTo(written, count - written, target);
+            }
+            return written;
+        }
+    }
+
+    public InputStream openStream() throws IOException {
+        finish();
+        if (spoolFile == null) {
+            return new ByteArrayInputStream(memory.toByteArray());
+        }
+        return Files.newInputStream(spoolFile.toPath());
+    }
+
+    /** Release the memory buffer and delete the spool file, if any. */
+    @Override
+    public void close() {
+        discard();
+    }
+
+    private void spill() throws IOException {
+        spoolDir.mkdirs();
+        spoolFile = File.createTempFile("data_", ".spool", spoolDir);
+        spoolOut = new BufferedOutputStream(Files.newOutputStream(spoolFile.toPath()));
+        memory.writeTo(spoolOut);
+        memory = new ByteArrayOutputStream();
+    }
+
+    private void finish() throws IOException {
+        if (spoolOut != null) {
+            spoolOut.flush();
+        }
+    }
+
+    private void discard() {
+        memory = new ByteArrayOutputStream();
+        if (spoolOut != null) {
+            try {
+                spoolOut.close();
+            } catch (IOException ignored) {}
+            spoolOut = null;
+        }
+        if (spoolFile != null) {
+            spoolFile.delete();
+            spoolFile = null;
+        }
+    }
+}
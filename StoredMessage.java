@@ -0,0 +1,66 @@
+/**
+ * A message as listed from a mailbox, identified by its UID. UIDs are
+ * stable for the life of the message and increase in arrival order.
+ */
+public class StoredMessage {
+
+    // IMAP system flags, as stored in the mailbox index
+    public static final int FLAG_SEEN = 1;
+    public static final int FLAG_ANSWERED = 2;
+    public static final int FLAG_FLAGGED = 4;
+    public static final int FLAG_DELETED = 8;
+    public static final int FLAG_DRAFT = 16;
+
+    private final String mailbox;
+    private final long uid;
+    private final long size;
+    private final long stuffedLines;
+    private final int flags;
+
+    public StoredMessage(String mailbox, long uid, long size) {
+        this(mailbox, uid, size, -1, 0);
+    }
+
+    public StoredMessage(String mailbox, long uid, long size, long stuffedLines, int flags) {
+        this.mailbox = mailbox;
+        this.uid = uid;
+        this.size = size;
+        this.stuffedLines = stuffedLines;
+        this.flags = flags;
+    }
+
+    public String getMailbox() {
+        return mailbox;
+    }
+
+    public long getUid() {
+        return uid;
+    }
+
+    /** Size of the stored wire form, as sent by POP3 RETR. */
+    public long getSize() {
+        return size;
+    }
+
+    /** Lines starting with a stuffed dot in the wire form, -1 if unknown. */
+    public long getStuffedLines() {
+        return stuffedLines;
+    }
+
+    /**
+     * Size of the message itself (RFC822.SIZE), without dot-stuffing;
+     * -1 if the number of stuffed lines is unknown.
+     */
+    public long getContentSize() {
+        return stuffedLines < 0 ? -1 : size - stuffedLines;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /** The same message with other flags, as recorded by MailboxManager.setFlags. */
+    public StoredMessage withFlags(int newFlags) {
+        return new StoredMessage(mailbox, uid, size, stuffedLines, newFlags);
+    }
+}
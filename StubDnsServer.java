@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UDP nameserver that makes every domain deliverable to one address: an
+ * MX query for any name is answered with "mx.<name>", and an A query for
+ * any name with the configured address. AAAA and all other types get an
+ * empty answer. Used by LoadGenerator together with SmtpSink, so remote
+ * recipients reach the sink instead of the Internet; point the server at
+ * it with --dns.
+ */
+public class StubDnsServer {
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_MX = 15;
+    private static final int CLASS_IN = 1;
+    private static final int MAX_UDP_PAYLOAD = 512;
+
+    private final Inet4Address mailHost;
+    private final int ttl;
+    private final LongAdder queries = new LongAdder();
+
+    private DatagramSocket socket;
+
+    /**
+     * @param mailHost address given for every A query, where SmtpSink listens
+     * @param ttl      TTL of the answers, in seconds; bounds how long the
+     *                 server under test caches them
+     */
+    public StubDnsServer(Inet4Address mailHost, int ttl) {
+        this.mailHost = mailHost;
+        this.ttl = ttl;
+    }
+
+    /** Answer queries on a UDP port (all addresses) from a daemon thread. */
+    public void start(int port) throws IOException {
+        socket = new DatagramSocket(new InetSocketAddress(port));
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[MAX_UDP_PAYLOAD];
+            while (!socket.isClosed()) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                    socket.receive(packet);
+                    byte[] reply = answer(Arrays.copyOf(buf, packet.getLength()));
+                    if (reply != null) {
+                        queries.increment();
+                        socket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+                    }
+                } catch (IOException e) {
+                    // Closed by stop(), or one reply that could not be sent
+                }
+            }
+        }, "stub-dns");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void stop() {
+        socket.close();
+    }
+
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    /** The reply to one query, or null if it is not a single-question query. */
+    private byte[] answer(byte[] query) {
+        if (query.length < 12 || (query[2] & 0x80) != 0 || readShort(query, 4) != 1) {
+            return null;
+        }
+        // The question: labels up to the root, then type and class
+        int p = 12;
+        StringBuilder name = new StringBuilder();
+        while (p < query.length && query[p] != 0) {
+            int len = query[p] & 0xFF;
+            if (len > 63 || p + 1 + len >= query.length) {
+                return null;
+            }
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            name.append(new String(query, p + 1, len, StandardCharsets.US_ASCII));
+            p += 1 + len;
+        }
+        int questionEnd = p + 5;
+        // Longer names would not leave room for "mx." + name in the answer
+        if (questionEnd > query.length || name.length() > 200) {
+            return null;
+        }
+        int type = readShort(query, p + 1);
+
+        ByteBuffer reply = ByteBuffer.allocate(MAX_UDP_PAYLOAD);
+        reply.put(query, 0, 2);                             // id
+        reply.putShort((short) 0x8180);                    // response, recursion available
+        reply.putShort((short) 1);
+        boolean answered = type == TYPE_MX || type == TYPE_A;
+        reply.putShort((short) (answered ? 1 : 0));
+        reply.putShort((short) 0);
+        reply.putShort((short) 0);
+        reply.put(query, 12, questionEnd - 12);
+        if (answered) {
+            reply.putShort((short) 0xC00C);                 // the name in the question
+            reply.putShort((short) type);
+            reply.putShort((short) CLASS_IN);
+            reply.putInt(ttl);
+            if (type == TYPE_MX) {
+                byte[] exchange = encodeName("mx." + name);
+                reply.putShort((short) (2 + exchange.length));
+                reply.putShort((short) 10);
+                reply.put(exchange);
+            } else {
+                byte[] address = mailHost.getAddress();
+                reply.putShort((short) address.length);
+                reply.put(address);
+            }
+        }
+        return Arrays.copyOf(reply.array(), reply.position());
+    }
+
+    private static byte[] encodeName(String name) {
+        ByteBuffer buf = ByteBuffer.allocate(name.length() + 2);
+        for (String label : name.split("\\.")) {
+            if (!label.isEmpty()) {
+                buf.put((byte) label.length());
+                buf.put(label.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        buf.put((byte) 0);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    private static int readShort(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+    }
+}
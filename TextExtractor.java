@@ -0,0 +1,218 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns a stored message into the terms SearchIndex keeps for it: the
+ * words of its From, To/Cc and Subject headers (RFC 2047 encoded words
+ * decoded) and of its text parts (transfer encoding and charset decoded,
+ * HTML tags dropped), each prefixed with its field.
+ */
+final class TextExtractor {
+
+    static final String FROM = "f:";
+    static final String TO = "t:";
+    static final String SUBJECT = "s:";
+    static final String BODY = "b:";
+
+    /** Day of a message without a usable Date header. */
+    static final int NO_DAY = Integer.MIN_VALUE;
+
+    // Body text indexed per message; the rest of a huge message is not
+    private static final int MAX_BODY_BYTES = 1024 * 1024;
+    private static final int MAX_TERM_LENGTH = 40;
+
+    private static final Pattern ENCODED_WORD = Pattern.compile("=\\?([^?\\s]+)\\?([BbQq])\\?([^?\\s]*)\\?=");
+    private static final Pattern TAG = Pattern.compile("<[^>]*>|&[a-zA-Z#0-9]+;");
+
+    private TextExtractor() {
+    }
+
+    /**
+     * The terms of a message, read once from its content stream (which
+     * the caller closes) using the part offsets of its structure.
+     */
+    static Set<String> terms(MessageStructure structure, InputStream content) throws IOException {
+        Set<String> terms = new HashSet<>();
+        addWords(FROM, structure.getHeader("From"), terms);
+        addWords(TO, structure.getHeader("To"), terms);
+        addWords(TO, structure.getHeader("Cc"), terms);
+        addWords(SUBJECT, structure.getHeader("Subject"), terms);
+
+        long position = 0;
+        long budget = MAX_BODY_BYTES;
+        for (MessageStructure.Part part : textParts(structure.getRoot(), new ArrayList<>())) {
+            long length = Math.min(part.getEnd() - part.getBodyStart(), budget);
+            if (length <= 0 || part.getBodyStart() < position) {
+                continue;
+            }
+            skipFully(content, part.getBodyStart() - position);
+            byte[] raw = content.readNBytes((int) length);
+            position = part.getBodyStart() + raw.length;
+            budget -= raw.length;
+            String text = decodeBody(part, raw);
+            if (part.getSubtype().equals("html")) {
+                text = TAG.matcher(text).replaceAll(" ");
+            }
+            tokenize(text, word -> terms.add(BODY + word));
+        }
+        return terms;
+    }
+
+    /** Leaf text/* parts in offset order. */
+    private static List<MessageStructure.Part> textParts(
+            MessageStructure.Part part, List<MessageStructure.Part> found) {
+        if (part.isMultipart()) {
+            for (MessageStructure.Part child : part.getChildren()) {
+                textParts(child, found);
+            }
+        } else if (part.getType().equals("text")) {
+            found.add(part);
+        }
+        return found;
+    }
+
+    /** Epoch day of the Date header, in the sender's time zone. */
+    static int day(MessageStructure structure) {
+        String date = structure.getHeader("Date");
+        if (date == null) {
+            return NO_DAY;
+        }
+        int comment = date.indexOf('(');
+        if (comment >= 0) {
+            date = date.substring(0, comment);
+        }
+        try {
+            return (int) ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toLocalDate().toEpochDay();
+        } catch (DateTimeParseException e) {
+            return NO_DAY;
+        }
+    }
+
+    /**
+     * Split text into lower-case words of letters and digits. Words of one
+     * character, or longer than MAX_TERM_LENGTH, are not indexed; queries
+     * still pass them on, as prefixes.
+     */
+    static void tokenize(String text, Consumer<String> sink) {
+        tokenize(text, 2, sink);
+    }
+
+    static void tokenize(String text, int minLength, Consumer<String> sink) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                if (word.length() >= minLength && word.length() <= MAX_TERM_LENGTH) {
+                    sink.accept(word.toString());
+                }
+                word.setLength(0);
+            }
+        }
+    }
+
+    private static void addWords(String field, String value, Set<String> terms) {
+        if (value != null) {
+            tokenize(decodeHeader(value), word -> terms.add(field + word));
+        }
+    }
+
+    /** Decode RFC 2047 encoded words ("=?UTF-8?B?...?=") in a header value. */
+    static String decodeHeader(String value) {
+        if (!value.contains("=?")) {
+            return value;
+        }
+        Matcher m = ENCODED_WORD.matcher(value);
+        StringBuilder decoded = new StringBuilder();
+        while (m.find()) {
+            String text;
+            try {
+                byte[] bytes = m.group(2).equalsIgnoreCase("B")
+                        ? Base64.getDecoder().decode(m.group(3))
+                        : decodeQuotedPrintable(m.group(3).replace('_', ' ').getBytes(StandardCharsets.ISO_8859_1));
+                text = new String(bytes, charset(m.group(1)));
+            } catch (IllegalArgumentException e) {
+                text = m.group();
+            }
+            m.appendReplacement(decoded, Matcher.quoteReplacement(text));
+        }
+        m.appendTail(decoded);
+        return decoded.toString();
+    }
+
+    private static String decodeBody(MessageStructure.Part part, byte[] raw) {
+        byte[] bytes = raw;
+        if (part.getEncoding().equals("base64")) {
+            try {
+                bytes = Base64.getMimeDecoder().decode(raw);
+            } catch (IllegalArgumentException e) {
+                // Cut short by MAX_BODY_BYTES, or just broken
+                bytes = new byte[0];
+            }
+        } else if (part.getEncoding().equals("quoted-printable")) {
+            bytes = decodeQuotedPrintable(raw);
+        }
+        return new String(bytes, charset(part.getParameters().get("charset")));
+    }
+
+    private static byte[] decodeQuotedPrintable(byte[] raw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+        for (int i = 0; i < raw.length; i++) {
+            byte b = raw[i];
+            if (b != '=') {
+                out.write(b);
+            } else if (i + 2 < raw.length && hex(raw[i + 1]) >= 0 && hex(raw[i + 2]) >= 0) {
+                out.write(hex(raw[i + 1]) * 16 + hex(raw[i + 2]));
+                i += 2;
+            } else if (i + 1 < raw.length && (raw[i + 1] == '\r' || raw[i + 1] == '\n')) {
+                // Soft line break
+                i += raw[i + 1] == '\r' && i + 2 < raw.length && raw[i + 2] == '\n' ? 2 : 1;
+            } else {
+                out.write(b);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static int hex(byte b) {
+        return Character.digit(b, 16);
+    }
+
+    private static Charset charset(String name) {
+        if (name != null) {
+            try {
+                return Charset.forName(name.trim().toLowerCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                // Unknown or malformed name: fall through
+            }
+        }
+        return StandardCharsets.ISO_8859_1;
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new IOException("Message file truncated");
+            }
+            n -= skipped;
+        }
+    }
+}
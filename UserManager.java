@@ -1,36 +1,285 @@
-import java.util.HashSet;
-import java.util.Set;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Directory of the local accounts, read from a users file with one
+ * account per line:
+ *
+ *   <address> pbkdf2-sha256:<iterations>:<salt base64>:<hash base64>
+ *
+ * Blank lines and lines starting with '#' are ignored. "java UserManager
+ * <password>" prints the credential for a password.
+ *
+ * The accounts are held in an immutable map that lookups read without
+ * locking. The file is checked every few seconds and, when it changed,
+ * loaded into a new map that replaces the old one in a single write, so a
+ * reload never holds up RCPT TO or a login. A file that cannot be read
+ * leaves the current accounts in place; write a new file aside and
+ * rename it over the old one so a half-written file is never loaded.
+ *
+ * Checking a password costs a full PBKDF2 derivation. Logins that
+ * succeeded are remembered (as a keyed digest of the password, never the
+ * password itself) so a client polling POP3 every minute pays that cost
+ * once rather than on every connection.
+ */
 public class UserManager {
 
-    private final Set<String> validUsers = new HashSet<>();
+    public static final String DEFAULT_FILE = "users.txt";
+
+    private static final String SCHEME = "pbkdf2-sha256";
+    private static final int ITERATIONS = 100_000;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    // Verified logins remembered, least recently used dropped first
+    private static final int MAX_VERIFIED = 10_000;
+    private static final long RELOAD_CHECK_MILLIS = 2_000;
+
+    // Accounts created with the password "password" when there is no file
+    private static final String[] DEFAULT_USERS = {
+        "dcd@uliege.be", "vj@uliege.be",
+        "dcd@gembloux.uliege.be", "vj@gembloux.uliege.be",
+        "dcd@info.uliege.be", "vj@info.uliege.be",
+    };
+
+    /** A stored credential, parsed once when the file is loaded. */
+    private static final class Credential {
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+
+        Credential(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+
+    /** A successful login: the credential it matched and the password digest. */
+    private static final class Verified {
+        final Credential credential;
+        final byte[] digest;
+
+        Verified(Credential credential, byte[] digest) {
+            this.credential = credential;
+            this.digest = digest;
+        }
+    }
+
+    private final File file;
+    // Address (lower case) -> credential; replaced whole, never modified
+    private volatile Map<String, Credential> accounts = Map.of();
+    private long loadedModified = -1;
+    private long loadedLength = -1;
+
+    // Access-ordered, bounded to MAX_VERIFIED
+    private final LinkedHashMap<String, Verified> verified = new LinkedHashMap<>(256, 0.75f, true);
+    // Not synchronized: virtual threads must not pin their carrier here
+    private final Lock verifiedLock = new ReentrantLock();
+    // Key of the password digests; new for every run, so they mean nothing on disk
+    private final SecretKeySpec digestKey;
 
     public UserManager() {
-        // You can later load from file if you want
-        validUsers.add("dcd@uliege.be");
-        validUsers.add("vj@uliege.be");
-        validUsers.add("dcd@gembloux.uliege.be");
-        validUsers.add("vj@gembloux.uliege.be");
-        validUsers.add("dcd@info.uliege.be");
-        validUsers.add("vj@info.uliege.be");
+        this(new File(DEFAULT_FILE));
+    }
+
+    public UserManager(File file) {
+        this.file = file;
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.digestKey = new SecretKeySpec(key, "HmacSHA256");
+        try {
+            if (!file.exists()) {
+                writeDefaultFile();
+            }
+            reload();
+        } catch (IOException e) {
+            System.err.println("Cannot load users from " + file + ": " + e.getMessage());
+        }
+        ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "users-reload");
+            t.setDaemon(true);
+            return t;
+        });
+        watcher.scheduleWithFixedDelay(this::reloadIfChanged,
+                RELOAD_CHECK_MILLIS, RELOAD_CHECK_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     public boolean isValidUser(String email, String domainOfThisServer) {
-        // Only authenticate users of this server's domain
-        if (!email.endsWith("@" + domainOfThisServer)) {
+        // Only authenticate users of this server's domain: "...@<domain>"
+        int at = email.length() - domainOfThisServer.length() - 1;
+        if (at <= 0 || email.charAt(at) != '@'
+                || !email.regionMatches(true, at + 1, domainOfThisServer, 0, domainOfThisServer.length())) {
             return false;
         }
-        return validUsers.contains(email);
+        return accounts.containsKey(email.toLowerCase(Locale.ROOT));
     }
 
     public boolean checkPassword(String email, String password) {
-        // All passwords are "password"
-        return isValidUser(email, extractDomain(email)) && "password".equals(password);
+        String address = email.toLowerCase(Locale.ROOT);
+        Credential credential = accounts.get(address);
+        if (credential == null) {
+            return false;
+        }
+        byte[] digest = digest(password);
+        Verified known;
+        verifiedLock.lock();
+        try {
+            known = verified.get(address);
+        } finally {
+            verifiedLock.unlock();
+        }
+        // A reload with a new credential for the address makes the entry stale
+        if (known != null && known.credential == credential && MessageDigest.isEqual(known.digest, digest)) {
+            return true;
+        }
+        byte[] hash = derive(password, credential.salt, credential.iterations, credential.hash.length * 8);
+        if (!MessageDigest.isEqual(hash, credential.hash)) {
+            return false;
+        }
+        verifiedLock.lock();
+        try {
+            verified.put(address, new Verified(credential, digest));
+            if (verified.size() > MAX_VERIFIED) {
+                verified.remove(verified.keySet().iterator().next());
+            }
+        } finally {
+            verifiedLock.unlock();
+        }
+        return true;
+    }
+
+    /** Number of accounts currently loaded. */
+    public int size() {
+        return accounts.size();
     }
 
-    private String extractDomain(String email) {
-        int at = email.indexOf('@');
-        if (at == -1) return "";
-        return email.substring(at + 1);
+    /** A users file credential for a password, with a fresh salt. */
+    public static String hashPassword(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        new SecureRandom().nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder();
+        return SCHEME + ":" + ITERATIONS + ":" + b64.encodeToString(salt) + ":"
+                + b64.encodeToString(derive(password, salt, ITERATIONS, HASH_BITS));
+    }
+
+    private void reloadIfChanged() {
+        long modified = file.lastModified();
+        long length = file.length();
+        if (modified == loadedModified && length == loadedLength) {
+            return;
+        }
+        try {
+            reload();
+            System.out.println("Reloaded " + accounts.size() + " users from " + file);
+        } catch (IOException e) {
+            System.err.println("Keeping the current users, cannot reload " + file + ": " + e.getMessage());
+            // Not again until the file changes
+            loadedModified = modified;
+            loadedLength = length;
+        }
+    }
+
+    /** Only the reload thread (and the constructor before it starts) calls this. */
+    private void reload() throws IOException {
+        long modified = file.lastModified();
+        long length = file.length();
+        // Sized for the whole file up front: no rehashing with millions of lines
+        Map<String, Credential> loaded = new HashMap<>((int) Math.min(length / 48 * 4 / 3 + 16, 1 << 30));
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                Credential credential = fields.length == 2 ? parseCredential(fields[1]) : null;
+                if (credential == null || fields[0].indexOf('@') <= 0) {
+                    throw new IOException("Malformed entry on line " + lineNumber);
+                }
+                loaded.put(fields[0].toLowerCase(Locale.ROOT), credential);
+            }
+        }
+        accounts = loaded;
+        loadedModified = modified;
+        loadedLength = length;
+    }
+
+    private static Credential parseCredential(String text) {
+        String[] parts = text.split(":");
+        if (parts.length != 4 || !parts[0].equals(SCHEME)) {
+            return null;
+        }
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] hash = Base64.getDecoder().decode(parts[3]);
+            return iterations > 0 && hash.length > 0 ? new Credential(iterations, salt, hash) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void writeDefaultFile() throws IOException {
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            w.write("# <address> <credential>; java UserManager <password> prints a credential\n");
+            for (String user : DEFAULT_USERS) {
+                w.write(user + " " + hashPassword("password") + "\n");
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations, int bits) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 unavailable", e);
+        }
+    }
+
+    private byte[] digest(String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(digestKey);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: java UserManager <password>");
+            System.exit(1);
+        }
+        System.out.println(hashPassword(args[0]));
     }
 }
@@ -0,0 +1,146 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Conversion between message text and its on-the-wire form: CRLF line
+ * endings, a final CRLF, and dot-stuffing (RFC 5321 4.5.2 / RFC 1939)
+ * already applied. Messages are stored in wire form so they can be sent
+ * to a POP3 client or a remote MX byte for byte.
+ *
+ * Text maps to bytes with LineScanner.CHARSET (ISO-8859-1), as for the
+ * messages received over SMTP, so any stored byte survives being read back
+ * as text and written again.
+ */
+public final class WireFormat {
+
+    private WireFormat() {
+    }
+
+    public static byte[] encode(String message) {
+        return encode(message.getBytes(LineScanner.CHARSET));
+    }
+
+    /**
+     * Wire form of a message given as bytes: line endings become CRLF and
+     * dots are stuffed, every other byte is kept as it is.
+     */
+    public static byte[] encode(byte[] in) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(in.length + in.length / 32 + 2);
+        boolean lineStart = true;
+        for (int i = 0; i < in.length; i++) {
+            byte b = in[i];
+            if (b == '\r' || b == '\n') {
+                // CRLF, bare CR and bare LF all end the line
+                if (b == '\r' && i + 1 < in.length && in[i + 1] == '\n') {
+                    i++;
+                }
+                out.write('\r');
+                out.write('\n');
+                lineStart = true;
+                continue;
+            }
+            if (lineStart && b == '.') {
+                out.write('.');
+            }
+            out.write(b);
+            lineStart = false;
+        }
+        if (!lineStart) {
+            out.write('\r');
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    /** Number of lines of a wire-form message that start with a stuffed dot. */
+    public static long countStuffedLines(byte[] wire) {
+        long count = 0;
+        boolean lineStart = true;
+        for (byte b : wire) {
+            if (lineStart && b == '.') {
+                count++;
+            }
+            lineStart = b == '\n';
+        }
+        return count;
+    }
+
+    /**
+     * The message itself, read from its wire form: the stuffed dot at the
+     * start of a line is dropped, everything else passes through.
+     */
+    public static InputStream unstuffing(InputStream wire) {
+        return new FilterInputStream(wire) {
+            private boolean lineStart = true;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return n < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (true) {
+                    int n = in.read(b, off, len);
+                    if (n <= 0) {
+                        return n;
+                    }
+                    // Compact the chunk in place, dropping stuffed dots
+                    int w = off;
+                    for (int i = off; i < off + n; i++) {
+                        byte c = b[i];
+                        if (!(lineStart && c == '.')) {
+                            b[w++] = c;
+                            lineStart = c == '\n';
+                        } else {
+                            lineStart = false;
+                        }
+                    }
+                    if (w > off) {
+                        return w - off;
+                    }
+                }
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                byte[] buf = new byte[(int) Math.min(n, 8192)];
+                long skipped = 0;
+                while (skipped < n) {
+                    int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+                    if (r < 0) {
+                        break;
+                    }
+                    skipped += r;
+                }
+                return skipped;
+            }
+        };
+    }
+
+    /** Undo dot-stuffing on one line received inside DATA. */
+    public static String unstuff(String line) {
+        return line.startsWith(".") ? line.substring(1) : line;
+    }
+
+    /** Read a stored message back as text lines, without terminators or stuffing. */
+    public static List<String> decodeLines(InputStream in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, LineScanner.CHARSET))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(unstuff(line));
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,48 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/** MailboxManager side of bench.MailboxBenchmark. */
+public class MailboxBenchTarget implements bench.MailboxOps {
+
+    private static final String MAILBOX = "bench@uliege.be";
+    private static final String INBOUND = "inbound@uliege.be";
+
+    private MailboxManager mailboxManager;
+    private SpooledMessage message;
+    private List<StoredMessage> messages;
+
+    @Override
+    public void setUp(File dir, boolean segments, boolean compress, int mailboxSize, int messageSize)
+            throws IOException {
+        mailboxManager = new MailboxManager(dir, segments, compress ? new MessageCompression() : null);
+        // Kept in memory and written again by every store()
+        message = SpooledMessage.fromText(bench.Fixtures.message(messageSize));
+        for (int i = 0; i < mailboxSize; i++) {
+            mailboxManager.storeLocalMessage(MAILBOX, message);
+        }
+        messages = mailboxManager.listMessages(MAILBOX);
+    }
+
+    @Override
+    public void store() throws IOException {
+        mailboxManager.storeLocalMessage(INBOUND, message);
+    }
+
+    @Override
+    public void clearStored() throws IOException {
+        for (StoredMessage m : mailboxManager.listMessages(INBOUND)) {
+            mailboxManager.deleteMessage(m);
+        }
+    }
+
+    @Override
+    public int list() throws IOException {
+        return mailboxManager.listMessages(MAILBOX).size();
+    }
+
+    @Override
+    public int read(int index) throws IOException {
+        return mailboxManager.readMessageLines(messages.get(index % messages.size())).size();
+    }
+}
@@ -0,0 +1,48 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * In-memory stand-in for a client socket: counts the bytes a session
+ * writes, copying message regions through the same stream path a
+ * socket without a channel uses.
+ */
+class NullOutput extends ProtocolOutput {
+
+    private long count;
+
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    };
+
+    @Override
+    public void write(int b) {
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        count += len;
+    }
+
+    @Override
+    public void transferFrom(MessageRegion region) throws IOException {
+        try (MessageRegion r = region) {
+            r.copyTo(sink);
+        }
+    }
+
+    /** Bytes written since the last call. */
+    long take() {
+        long n = count;
+        count = 0;
+        return n;
+    }
+}
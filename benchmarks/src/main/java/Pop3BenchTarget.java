@@ -0,0 +1,33 @@
+import java.io.File;
+import java.io.IOException;
+
+/** POP3Handler side of bench.Pop3Benchmark. */
+public class Pop3BenchTarget implements bench.Pop3Ops {
+
+    private static final String MAILBOX = "dcd@uliege.be";
+
+    private POP3Handler session;
+    private final NullOutput out = new NullOutput();
+
+    @Override
+    public void setUp(File dir, boolean segments, int mailboxSize, int messageSize) throws IOException {
+        MailboxManager mailboxManager = new MailboxManager(dir, segments);
+        try (SpooledMessage message = SpooledMessage.fromText(bench.Fixtures.message(messageSize))) {
+            for (int i = 0; i < mailboxSize; i++) {
+                mailboxManager.storeLocalMessage(MAILBOX, message);
+            }
+        }
+        // Created with the default accounts, password "password"
+        UserManager users = new UserManager(new File(dir, "users.txt"));
+        session = new POP3Handler(null, mailboxManager, users, "uliege.be");
+        session.handleLine("USER " + MAILBOX, out);
+        session.handleLine("PASS password", out);
+        out.take();
+    }
+
+    @Override
+    public long command(String line) throws IOException {
+        session.handleLine(line, out);
+        return out.take();
+    }
+}
@@ -0,0 +1,67 @@
+import java.io.File;
+import java.io.IOException;
+
+/** SMTPHandler side of bench.SmtpBenchmark. */
+public class SmtpBenchTarget implements bench.SmtpOps {
+
+    private static final String DOMAIN = "uliege.be";
+    private static final String RECIPIENT = "dcd@uliege.be";
+
+    private MailboxManager mailboxManager;
+    private SMTPHandler session;
+    private final NullOutput out = new NullOutput();
+    private String[] lines;
+
+    @Override
+    public String extractEmailArg(String line, String prefix) {
+        return SMTPHandler.extractEmailArg(line, prefix);
+    }
+
+    @Override
+    public String getDomainPart(String email) {
+        return SMTPHandler.getDomainPart(email);
+    }
+
+    @Override
+    public void setUp(File dir, int messageSize) throws IOException {
+        mailboxManager = new MailboxManager(dir, false);
+        UserManager users = new UserManager(new File(dir, "users.txt"));
+        OutboundQueue queue = new OutboundQueue(mailboxManager.getQueueDir(), DOMAIN,
+                mailboxManager, users, new RemoteDelivery(DOMAIN));
+        session = new SMTPHandler(null, mailboxManager, users, DOMAIN, queue);
+        session.handleLine("EHLO bench.example.com", out);
+        // As read off the socket: wire form, dots stuffed
+        String wire = new String(WireFormat.encode(bench.Fixtures.message(messageSize)), LineScanner.CHARSET);
+        lines = wire.split("\r\n");
+        out.take();
+    }
+
+    @Override
+    public long transaction() throws IOException {
+        session.handleLine("MAIL FROM:<alice@example.com> SIZE=" + lines.length * 78, out);
+        session.handleLine("RCPT TO:<" + RECIPIENT + ">", out);
+        session.handleLine("DATA", out);
+        for (String line : lines) {
+            session.handleLine(line, out);
+        }
+        session.handleLine(".", out);
+        return out.take();
+    }
+
+    @Override
+    public long accumulate() throws IOException {
+        try (SpooledMessage data = new SpooledMessage(mailboxManager.getSpoolDir(), SMTPHandler.MAX_MESSAGE_SIZE)) {
+            for (String line : lines) {
+                data.appendLine(line);
+            }
+            return data.size();
+        }
+    }
+
+    @Override
+    public void clearDelivered() throws IOException {
+        for (StoredMessage m : mailboxManager.listMessages(RECIPIENT)) {
+            mailboxManager.deleteMessage(m);
+        }
+    }
+}
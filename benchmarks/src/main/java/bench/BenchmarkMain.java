@@ -0,0 +1,27 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar: the usual JMH command line, with the GC
+ * profiler always on so every result comes with its allocation rate
+ * (gc.alloc.rate.norm, bytes per operation) next to the throughput.
+ *
+ *   java -jar target/benchmarks.jar                    # everything
+ *   java -jar target/benchmarks.jar Pop3 -p mailboxSize=1000
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Shared set-up for the benchmarks. The server classes are in the unnamed
+ * package, which code in a named package (as JMH requires for benchmarks)
+ * cannot refer to; each benchmark therefore drives the server through an
+ * interface of this package, implemented by a small target class in the
+ * unnamed package and loaded here by name.
+ */
+public final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /** A new instance of a target class from the unnamed package. */
+    public static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Benchmark target " + className + " not found", e);
+        }
+    }
+
+    public static File tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    public static void delete(File dir) throws IOException {
+        if (dir == null || !dir.exists()) {
+            return;
+        }
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dir.toPath())) {
+            paths = walk.sorted(Comparator.reverseOrder()).toList();
+        }
+        for (Path p : paths) {
+            Files.delete(p);
+        }
+    }
+
+    /**
+     * A plain-text message of about size bytes: a few header fields and
+     * 76-character body lines, some starting with a dot.
+     */
+    public static String message(int size) {
+        StringBuilder sb = new StringBuilder(size + 128);
+        sb.append("From: Alice <alice@example.com>\r\n")
+          .append("To: bench@uliege.be\r\n")
+          .append("Subject: Benchmark message\r\n")
+          .append("Date: Mon, 3 Mar 2025 10:00:00 +0100\r\n")
+          .append("\r\n");
+        int line = 0;
+        while (sb.length() < size) {
+            sb.append(line % 50 == 0 ? '.' : 'x');
+            for (int i = 1; i < 76; i++) {
+                sb.append((char) ('a' + (line + i) % 26));
+            }
+            sb.append("\r\n");
+            line++;
+        }
+        return sb.toString();
+    }
+}
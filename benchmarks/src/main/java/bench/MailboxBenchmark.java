@@ -0,0 +1,80 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MailboxManager store, list and read against a real store in a temporary
+ * directory, for both store layouts, with and without compression.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MailboxBenchmark {
+
+    @Param({"file", "segments"})
+    public String store;
+
+    @Param({"false", "true"})
+    public boolean compress;
+
+    @Param({"10", "1000"})
+    public int mailboxSize;
+
+    @Param({"1024", "65536"})
+    public int messageSize;
+
+    private File dir;
+    private MailboxOps mailbox;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Fixtures.tempDir("mailbox-bench");
+        mailbox = Fixtures.load("MailboxBenchTarget", MailboxOps.class);
+        mailbox.setUp(dir, store.equals("segments"), compress, mailboxSize, messageSize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearStored() throws IOException {
+        // Keeps the disk space of store() bounded by one iteration
+        mailbox.clearStored();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public void storeLocalMessage() throws IOException {
+        mailbox.store();
+    }
+
+    @Benchmark
+    public int listMessages() throws IOException {
+        return mailbox.list();
+    }
+
+    @Benchmark
+    public int readMessageLines() throws IOException {
+        return mailbox.read(next++);
+    }
+}
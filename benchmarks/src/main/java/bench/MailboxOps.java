@@ -0,0 +1,28 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+
+/** MailboxManager operations, implemented by MailboxBenchTarget. */
+public interface MailboxOps {
+
+    /**
+     * A MailboxManager over dir, with one mailbox of mailboxSize messages
+     * of about messageSize bytes to list and read. With compress, messages
+     * are stored through MessageCompression's defaults.
+     */
+    void setUp(File dir, boolean segments, boolean compress, int mailboxSize, int messageSize)
+            throws IOException;
+
+    /** Store one message of messageSize bytes, into a separate mailbox. */
+    void store() throws IOException;
+
+    /** Delete what store() added. */
+    void clearStored() throws IOException;
+
+    /** List the mailbox; returns the message count. */
+    int list() throws IOException;
+
+    /** Read a message of the mailbox as lines; returns the line count. */
+    int read(int index) throws IOException;
+}
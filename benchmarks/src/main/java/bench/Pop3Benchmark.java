@@ -0,0 +1,89 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * POP3 STAT, LIST, UIDL, RETR and TOP on a logged-in session whose replies go to an
+ * in-memory output instead of a socket.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Pop3Benchmark {
+
+    @Param({"file", "segments"})
+    public String store;
+
+    @Param({"10", "1000"})
+    public int mailboxSize;
+
+    @Param({"1024", "65536"})
+    public int messageSize;
+
+    private File dir;
+    private Pop3Ops pop3;
+    private String[] retrieve;
+    private String[] top;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Fixtures.tempDir("pop3-bench");
+        pop3 = Fixtures.load("Pop3BenchTarget", Pop3Ops.class);
+        pop3.setUp(dir, store.equals("segments"), mailboxSize, messageSize);
+        retrieve = new String[mailboxSize];
+        top = new String[mailboxSize];
+        for (int i = 0; i < mailboxSize; i++) {
+            retrieve[i] = "RETR " + (i + 1);
+            top[i] = "TOP " + (i + 1) + " 10";
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public long stat() throws IOException {
+        return pop3.command("STAT");
+    }
+
+    @Benchmark
+    public long list() throws IOException {
+        return pop3.command("LIST");
+    }
+
+    @Benchmark
+    public long uidl() throws IOException {
+        return pop3.command("UIDL");
+    }
+
+    @Benchmark
+    public long retr() throws IOException {
+        return pop3.command(retrieve[next++ % retrieve.length]);
+    }
+
+    @Benchmark
+    public long top() throws IOException {
+        return pop3.command(top[next++ % top.length]);
+    }
+}
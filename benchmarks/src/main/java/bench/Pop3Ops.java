@@ -0,0 +1,14 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+
+/** A logged-in POP3Handler session, implemented by Pop3BenchTarget. */
+public interface Pop3Ops {
+
+    /** Fill a mailbox under dir and log in to it. */
+    void setUp(File dir, boolean segments, int mailboxSize, int messageSize) throws IOException;
+
+    /** Run one command line; returns the number of reply bytes. */
+    long command(String line) throws IOException;
+}
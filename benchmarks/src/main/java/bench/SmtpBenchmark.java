@@ -0,0 +1,84 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SMTPHandler argument parsing, and DATA both as a whole transaction
+ * delivered to a local mailbox and as the spool accumulation alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmtpBenchmark {
+
+    @Param({"1024", "65536"})
+    public int messageSize;
+
+    private File dir;
+    private SmtpOps smtp;
+
+    // Read from fields so the parsing is not constant-folded
+    private String mailFrom = "MAIL FROM:<alice.smith@mail.example.com>";
+    private String rcptTo = "RCPT TO:<dcd@uliege.be>";
+    private String address = "alice.smith@mail.example.com";
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Fixtures.tempDir("smtp-bench");
+        smtp = Fixtures.load("SmtpBenchTarget", SmtpOps.class);
+        smtp.setUp(dir, messageSize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearDelivered() throws IOException {
+        smtp.clearDelivered();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public String extractMailFrom() {
+        return smtp.extractEmailArg(mailFrom, "MAIL FROM:");
+    }
+
+    @Benchmark
+    public String extractRcptTo() {
+        return smtp.extractEmailArg(rcptTo, "RCPT TO:");
+    }
+
+    @Benchmark
+    public String getDomainPart() {
+        return smtp.getDomainPart(address);
+    }
+
+    @Benchmark
+    public long dataTransaction() throws IOException {
+        return smtp.transaction();
+    }
+
+    @Benchmark
+    public long dataAccumulation() throws IOException {
+        return smtp.accumulate();
+    }
+}
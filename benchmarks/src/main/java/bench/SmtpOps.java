@@ -0,0 +1,27 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+
+/** SMTPHandler parsing and DATA handling, implemented by SmtpBenchTarget. */
+public interface SmtpOps {
+
+    String extractEmailArg(String line, String prefix);
+
+    String getDomainPart(String email);
+
+    /** A session of an SMTPHandler delivering to a local mailbox under dir. */
+    void setUp(File dir, int messageSize) throws IOException;
+
+    /**
+     * One MAIL/RCPT/DATA transaction with a message of messageSize bytes,
+     * fed line by line as from the socket; returns the reply bytes.
+     */
+    long transaction() throws IOException;
+
+    /** The same message lines appended to a SpooledMessage only; returns its size. */
+    long accumulate() throws IOException;
+
+    /** Delete the messages delivered by transaction(). */
+    void clearDelivered() throws IOException;
+}
@@ -0,0 +1,105 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class DNSResolverTest {
+
+    private static final String DOMAIN = "example.com";
+
+    /**
+     * A reply to an MX query for DOMAIN with one answer, whose exchange
+     * "mx" is completed by a pointer to the question name at offset 12.
+     */
+    private static byte[] mxReply() throws IOException {
+        byte[] header = DNSResolver.buildQuery(0x1234, DOMAIN, DNSResolver.TYPE_MX);
+        header[2] = (byte) 0x81;  // response, recursion desired
+        header[3] = (byte) 0x80;  // recursion available, rcode 0
+        header[7] = 1;            // one answer
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header, 0, header.length);
+        out.write(new byte[] {
+                (byte) 0xC0, 12,          // name: pointer to the question
+                0, 15, 0, 1,              // MX, IN
+                0, 0, 0x0E, 0x10,         // TTL 3600
+                0, 7,                     // rdlength
+                0, 10,                    // preference
+                2, 'm', 'x', (byte) 0xC0, 12}, 0, 19);
+        return out.toByteArray();
+    }
+
+    @Test
+    void parsesMxAnswerWithCompressedNames() throws IOException {
+        DNSResolver.Answer answer = DNSResolver.parse(mxReply(), DOMAIN, DNSResolver.TYPE_MX);
+
+        assertEquals(0, answer.rcode);
+        assertEquals(1, answer.records.size());
+        DNSResolver.Record mx = answer.records.get(0);
+        assertEquals(DNSResolver.TYPE_MX, mx.type);
+        assertEquals(10, mx.preference);
+        assertEquals("mx." + DOMAIN, mx.host);
+        assertEquals(3600, mx.ttl);
+    }
+
+    @Test
+    void truncatedAnswerIsAnIOException() throws IOException {
+        byte[] reply = mxReply();
+        // Every cut, from the end of the header to the last byte
+        for (int length = 12; length < reply.length; length++) {
+            byte[] cut = Arrays.copyOf(reply, length);
+            assertThrows(IOException.class, () -> DNSResolver.parse(cut, DOMAIN, DNSResolver.TYPE_MX),
+                    "cut at " + length);
+        }
+    }
+
+    @Test
+    void labelRunningPastTheEndIsAnIOException() throws IOException {
+        byte[] reply = mxReply();
+        // The exchange's "mx" label claims 60 bytes
+        reply[reply.length - 5] = 60;
+        assertThrows(IOException.class, () -> DNSResolver.parse(reply, DOMAIN, DNSResolver.TYPE_MX));
+    }
+
+    @Test
+    void compressionLoopIsAnIOException() throws IOException {
+        byte[] reply = mxReply();
+        // The answer's name points at itself
+        int answer = reply.length - 19;
+        reply[answer + 1] = (byte) answer;
+        assertThrows(IOException.class, () -> DNSResolver.parse(reply, DOMAIN, DNSResolver.TYPE_MX));
+    }
+
+    @Test
+    void recordLengthPastTheEndIsAnIOException() throws IOException {
+        byte[] reply = mxReply();
+        reply[reply.length - 8] = 100;  // rdlength
+        assertThrows(IOException.class, () -> DNSResolver.parse(reply, DOMAIN, DNSResolver.TYPE_MX));
+    }
+
+    @Test
+    void validNames() {
+        assertTrue(DNSResolver.isValidName("example.com"));
+        assertTrue(DNSResolver.isValidName("example.com."));
+        assertTrue(DNSResolver.isValidName("a".repeat(63) + ".com"));
+
+        assertFalse(DNSResolver.isValidName(""));
+        assertFalse(DNSResolver.isValidName("."));
+        assertFalse(DNSResolver.isValidName("example..com"));
+        assertFalse(DNSResolver.isValidName("a".repeat(64) + ".com"));
+        assertFalse(DNSResolver.isValidName("a.".repeat(127) + "com"));
+        assertFalse(DNSResolver.isValidName("exämple.com"));
+    }
+
+    @Test
+    void buildQueryRejectsInvalidNames() {
+        assertThrows(IOException.class,
+                () -> DNSResolver.buildQuery(1, "a".repeat(64) + ".com", DNSResolver.TYPE_MX));
+    }
+}
@@ -0,0 +1,119 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SearchIndexTest {
+
+    // More than SearchIndex.MAX_JOURNAL_RECORDS, so a snapshot is written
+    private static final int SNAPSHOT_TRIGGER = 5000;
+
+    @TempDir
+    File dir;
+
+    private static void fill(SearchIndex index) throws IOException {
+        index.add(1, 100, List.of("f:alice", "b:hello"));
+        index.add(2, 101, List.of("f:alex", "b:world"));
+        index.add(3, 102, List.of("f:bob", "b:hello", "s:alicia"));
+    }
+
+    @Test
+    void exactWordsAndPrefixes() throws IOException {
+        SearchIndex index = SearchIndex.open(dir);
+        fill(index);
+
+        assertArrayEquals(new long[] {1, 3}, index.search(SearchIndex.Query.body("hello")));
+        assertArrayEquals(new long[] {1}, index.search(SearchIndex.Query.from("ali")));
+        assertArrayEquals(new long[] {1, 3}, index.search(SearchIndex.Query.text("ali")));
+        // Too short to be a prefix: only a whole word would match
+        assertArrayEquals(new long[0], index.search(SearchIndex.Query.from("al")));
+        assertArrayEquals(new long[] {3},
+                index.search(SearchIndex.Query.and(SearchIndex.Query.body("hello"),
+                        SearchIndex.Query.not(SearchIndex.Query.from("alice")))));
+    }
+
+    @Test
+    void recoversFromTheJournal() throws IOException {
+        SearchIndex index = SearchIndex.open(dir);
+        fill(index);
+        index.remove(2);
+
+        SearchIndex reopened = SearchIndex.open(dir);
+        assertFalse(new File(dir, ".search").exists());
+        assertEquals(3, reopened.lastUid());
+        assertEquals(Set.of(1L, 3L), reopened.indexedUids());
+        assertArrayEquals(new long[0], reopened.search(SearchIndex.Query.from("alex")));
+        assertArrayEquals(new long[] {1, 3}, reopened.search(SearchIndex.Query.body("hello")));
+    }
+
+    @Test
+    void snapshotKeepsPostingsAndDays() throws IOException {
+        SearchIndex index = SearchIndex.open(dir);
+        fill(index);
+        index.remove(2);
+        // Gaps that take one to six varint bytes
+        long[] far = {200, 70_000, 1L << 40};
+        for (long uid : far) {
+            index.add(uid, 103, List.of("b:far"));
+        }
+        long uid = far[far.length - 1];
+        for (int i = 0; i < SNAPSHOT_TRIGGER; i++) {
+            index.add(++uid, 104, List.of("b:filler"));
+        }
+        assertTrue(new File(dir, ".search").exists());
+
+        // Snapshot plus the journal written since
+        SearchIndex reopened = SearchIndex.open(dir);
+        assertEquals(uid, reopened.lastUid());
+        assertArrayEquals(far, reopened.search(SearchIndex.Query.body("far")));
+        assertArrayEquals(new long[] {1, 3}, reopened.search(SearchIndex.Query.body("hello")));
+        assertArrayEquals(new long[0], reopened.search(SearchIndex.Query.from("alex")));
+        assertEquals(SNAPSHOT_TRIGGER, reopened.search(SearchIndex.Query.body("filler")).length);
+        assertArrayEquals(new long[] {1},
+                reopened.search(SearchIndex.Query.sentBetween(LocalDate.ofEpochDay(100),
+                        LocalDate.ofEpochDay(100))));
+    }
+
+    @Test
+    void tornJournalRecordIsIgnored() throws IOException {
+        SearchIndex index = SearchIndex.open(dir);
+        fill(index);
+        Files.write(new File(dir, ".search.log").toPath(), "+ 4".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        SearchIndex reopened = SearchIndex.open(dir);
+        assertEquals(3, reopened.lastUid());
+        assertArrayEquals(new long[] {1, 3}, reopened.search(SearchIndex.Query.body("hello")));
+    }
+
+    @Test
+    void corruptSnapshotStartsOver() throws IOException {
+        SearchIndex index = SearchIndex.open(dir);
+        fill(index);
+        // Right magic and version, then a count no file this size could hold
+        try (DataOutputStream out = new DataOutputStream(
+                Files.newOutputStream(new File(dir, ".search").toPath()))) {
+            out.writeInt(0x53524348);
+            out.writeInt(1);
+            out.writeInt(Integer.MAX_VALUE);
+        }
+
+        SearchIndex reopened = SearchIndex.open(dir);
+        assertEquals(0, reopened.lastUid());
+        assertTrue(reopened.indexedUids().isEmpty());
+        assertFalse(new File(dir, ".search.log").exists());
+    }
+}
@@ -0,0 +1,83 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class WireFormatTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(LineScanner.CHARSET);
+    }
+
+    private static byte[] unstuff(byte[] wire, int chunkSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = WireFormat.unstuffing(new ByteArrayInputStream(wire))) {
+            byte[] buf = new byte[chunkSize];
+            int n;
+            while ((n = in.read(buf, 0, buf.length)) != -1) {
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void encodeNormalizesLineEndingsAndStuffsDots() {
+        byte[] wire = WireFormat.encode("Subject: x\n\n.one\r..two\r\nthree.\r\n.");
+
+        assertArrayEquals(bytes("Subject: x\r\n\r\n..one\r\n...two\r\nthree.\r\n..\r\n"), wire);
+        assertEquals(3, WireFormat.countStuffedLines(wire));
+    }
+
+    @Test
+    void encodeKeepsEightBitBytes() {
+        byte[] raw = {'S', ':', ' ', (byte) 0xE9, (byte) 0xFF, 0, '\n', '.', (byte) 0x80};
+
+        assertArrayEquals(new byte[] {'S', ':', ' ', (byte) 0xE9, (byte) 0xFF, 0, '\r', '\n',
+                '.', '.', (byte) 0x80, '\r', '\n'}, WireFormat.encode(raw));
+        // Text goes through the same charset, byte for byte
+        assertArrayEquals(WireFormat.encode(raw),
+                WireFormat.encode(new String(raw, LineScanner.CHARSET)));
+    }
+
+    @Test
+    void unstuffingUndoesEncode() throws IOException {
+        String text = "From: a@b\r\n\r\n.\r\n..\r\n.dot\r\nmiddle . dot\r\n.\r\nend\r\n";
+        byte[] wire = WireFormat.encode(text);
+
+        // Chunk boundaries must not matter, down to a byte at a time
+        for (int chunk : new int[] {1, 2, 3, 7, 8192}) {
+            assertArrayEquals(bytes(text), unstuff(wire, chunk), "chunk " + chunk);
+        }
+    }
+
+    @Test
+    void unstuffingSkip() throws IOException {
+        byte[] wire = WireFormat.encode("..a\r\n..b\r\n");
+        try (InputStream in = WireFormat.unstuffing(new ByteArrayInputStream(wire))) {
+            assertEquals(5, in.skip(5));
+            assertArrayEquals(bytes("..b\r\n"), in.readAllBytes());
+        }
+    }
+
+    @Test
+    void decodeLinesUndoesEncode() throws IOException {
+        String text = "Subject: café\r\n\r\n.hidden\r\nbody";
+        List<String> lines = WireFormat.decodeLines(new ByteArrayInputStream(WireFormat.encode(text)));
+
+        assertEquals(List.of("Subject: café", "", ".hidden", "body"), lines);
+    }
+
+    @Test
+    void unstuffLine() {
+        assertEquals(".", WireFormat.unstuff(".."));
+        assertEquals("", WireFormat.unstuff("."));
+        assertEquals("a.b", WireFormat.unstuff("a.b"));
+    }
+}